@@ -0,0 +1,73 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code writeXml} of a suite in which only {@code changed} cases change
+ * between writes, so the rest are copied from the elements cached for them.
+ * Cases with more than 1 KiB of output, and cases past the per-suite cache
+ * total, are rendered every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class CachedFragmentBenchmark {
+
+    @Param({"1000", "20000"})
+    int cases;
+
+    @Param({"0", "400"})
+    int outputBytes;
+
+    @Param({"1"})
+    int changed;
+
+    private TestSuiteReporter suite;
+    private File outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        suite = SuiteFixture.build(cases, outputBytes, 0);
+        outputDir = Files.createTempDirectory("junit-reporter-bench").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void touchCases() {
+        SuiteFixture.touch(suite, changed);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        outputDir.delete();
+    }
+
+    @Benchmark
+    public void writeXml() throws IOException {
+        suite.writeXml(outputDir);
+    }
+}
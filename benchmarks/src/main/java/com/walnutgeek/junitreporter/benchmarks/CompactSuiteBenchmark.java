@@ -0,0 +1,63 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registering and timing many passing cases in a regular and in a compact suite.
+ * Names are created up front, so {@code gc.alloc.rate.norm} divided by
+ * {@code cases} approximates the per-case cost of the storage itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class CompactSuiteBenchmark {
+
+    @Param({"1000000"})
+    int cases;
+
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        names = new String[cases];
+        for (int i = 0; i < cases; i++) {
+            names[i] = SuiteFixture.caseName(i);
+        }
+    }
+
+    @Benchmark
+    public TestSuiteReporter regular() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.GeneratedTest");
+        for (int i = 0; i < cases; i++) {
+            suite.testCase(names[i]).setTime(0.001);
+        }
+        return suite;
+    }
+
+    @Benchmark
+    public TestSuiteReporter compact() {
+        TestSuiteReporter suite = TestSuiteReporter.compact("com.example.GeneratedTest");
+        for (int i = 0; i < cases; i++) {
+            int id = suite.caseId(names[i]);
+            suite.setTime(id, 0.001);
+            suite.finish(id);
+        }
+        return suite;
+    }
+}
@@ -0,0 +1,96 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.ReportOptions;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain against gzip report output. Besides time per write, prints the size of
+ * the files produced at the end of each trial. Every case is changed before
+ * each invocation, so the writes render the whole suite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class CompressionBenchmark {
+
+    /** {@code none}, or {@code gzip-N} for deflate level N. */
+    @Param({"none", "gzip-1", "gzip-6"})
+    String compression;
+
+    @Param({"5000"})
+    int cases;
+
+    @Param({"4096"})
+    int outputBytes;
+
+    @Param({"0.2"})
+    double failureRatio;
+
+    private TestSuiteReporter suite;
+    private ReportOptions options;
+    private File outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        suite = SuiteFixture.build(cases, outputBytes, failureRatio);
+        options = compression.equals("none") ? ReportOptions.DEFAULT
+                : ReportOptions.DEFAULT.withGzip(Integer.parseInt(compression.substring("gzip-".length())));
+        outputDir = Files.createTempDirectory("junit-reporter-bench").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void touchCases() {
+        SuiteFixture.touch(suite, cases);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println("Report bytes written (" + compression + "): " + sizeOfOutput());
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        outputDir.delete();
+    }
+
+    @Benchmark
+    public void writeXml() throws IOException {
+        suite.writeXml(outputDir, options);
+    }
+
+    @Benchmark
+    public void writeText() throws IOException {
+        suite.writeText(outputDir, options);
+    }
+
+    private long sizeOfOutput() {
+        long size = 0;
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File f : files) size += f.length();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,72 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads logging into the same test case: the lock-free
+ * {@link TestCaseReporter} against the monitor-based baseline.
+ *
+ * <p>Output accumulates for a whole iteration, so iterations are kept short and
+ * both reporters are recreated before each one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+public class ContentionBenchmark {
+
+    private static final String LINE = "INFO  worker processed item\n";
+
+    private TestCaseReporter lockFree;
+    private SynchronizedTestCaseReporter synchronizedBaseline;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        lockFree = new TestCaseReporter("testShared", "com.example.ContentionTest");
+        synchronizedBaseline = new SynchronizedTestCaseReporter("testShared", "com.example.ContentionTest");
+    }
+
+    @Benchmark
+    public void addStdoutLockFree() {
+        lockFree.addStdout(LINE);
+    }
+
+    @Benchmark
+    public void addStdoutSynchronized() {
+        synchronizedBaseline.addStdout(LINE);
+    }
+
+    @Benchmark
+    public void mixedLockFree(Blackhole bh) {
+        lockFree.addStdout(LINE);
+        lockFree.setTime(0.001);
+        bh.consume(lockFree.hasFailure());
+        bh.consume(lockFree.getFailures());
+    }
+
+    @Benchmark
+    public void mixedSynchronized(Blackhole bh) {
+        synchronizedBaseline.addStdout(LINE);
+        synchronizedBaseline.setTime(0.001);
+        bh.consume(synchronizedBaseline.hasFailure());
+        bh.consume(synchronizedBaseline.getFailures());
+    }
+}
@@ -0,0 +1,90 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.StreamingXmlWriter;
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XML for a few test cases with multi-megabyte stdout and large failure bodies,
+ * into a discarding writer: {@link StreamingXmlWriter} against {@code toDocument()}
+ * and {@link XMLOutputter}. {@code plain} text needs no escaping; {@code markup}
+ * has a {@code <}, a {@code &} and a control character in every 100-char line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class EscapingBenchmark {
+
+    private static final int CASES = 4;
+
+    @Param({"4194304"})
+    int outputBytes;
+
+    @Param({"plain", "markup"})
+    String payload;
+
+    private TestSuiteReporter suite;
+    private final Writer sink = new NullWriter();
+    private final XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
+
+    @Setup
+    public void setUp() {
+        String line = line("markup".equals(payload));
+        suite = new TestSuiteReporter("com.example.EscapingTest");
+        for (int i = 0; i < CASES; i++) {
+            TestCaseReporter tc = suite.testCase(SuiteFixture.caseName(i));
+            StringBuilder body = new StringBuilder();
+            for (int written = 0; written < outputBytes; written += line.length()) {
+                tc.addStdout(line);
+                if (body.length() < outputBytes / 4) body.append(line);
+            }
+            tc.addFailure("java.lang.AssertionError", line.trim(), body.toString());
+        }
+    }
+
+    @Benchmark
+    public void streaming() throws IOException {
+        new StreamingXmlWriter(sink).write(suite);
+    }
+
+    @Benchmark
+    public void jdomBaseline() throws IOException {
+        outputter.output(suite.toDocument(), sink);
+    }
+
+    private static String line(boolean markup) {
+        StringBuilder sb = new StringBuilder(100);
+        for (int i = 0; i < 99; i++) {
+            if (markup && i == 33) {
+                sb.append('<');
+            } else if (markup && i == 66) {
+                sb.append('&');
+            } else if (markup && i == 98) {
+                sb.append('\u001b');
+            } else {
+                sb.append((char) ('a' + i % 26));
+            }
+        }
+        return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,26 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import java.io.Writer;
+
+/** Discards everything, so that benchmarks measure rendering rather than I/O. */
+final class NullWriter extends Writer {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+    }
+
+    @Override
+    public void write(int c) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,89 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording a whole suite from a pool of worker threads: case creation,
+ * output, timing and failures, as a parallel test run would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class PopulateBenchmark {
+
+    @Param({"10000"})
+    int cases;
+
+    @Param({"1024"})
+    int outputBytes;
+
+    @Param({"0.1"})
+    double failureRatio;
+
+    @Param({"1", "4", "16"})
+    int threads;
+
+    private ExecutorService pool;
+    private String line;
+    private int failEvery;
+
+    @Setup
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(threads);
+        line = SuiteFixture.line();
+        failEvery = failureRatio <= 0 ? 0 : (int) Math.max(1, Math.round(1 / failureRatio));
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public TestSuiteReporter populate() throws Exception {
+        final TestSuiteReporter suite = new TestSuiteReporter("com.example.BenchmarkTest");
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            futures.add(pool.submit(() -> {
+                for (int i = first; i < cases; i += threads) {
+                    TestCaseReporter tc = suite.testCase(SuiteFixture.caseName(i));
+                    for (int written = 0; written < outputBytes; written += line.length()) {
+                        tc.addStdout(line);
+                    }
+                    tc.setTime(0.001);
+                    if (failEvery > 0 && i % failEvery == 0) {
+                        tc.addFailure("java.lang.AssertionError", "expected 3 got 4", SuiteFixture.STACK_TRACE);
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        return suite;
+    }
+}
@@ -0,0 +1,84 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.jdom2.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a populated suite: {@code toDocument()}, {@code writeXml} and
+ * {@code writeText}. Every case is changed before each invocation, so the
+ * writes render the whole suite; see {@link CachedFragmentBenchmark} for a
+ * suite written again with few changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class SerializationBenchmark {
+
+    @Param({"1000", "20000"})
+    int cases;
+
+    @Param({"0", "4096"})
+    int outputBytes;
+
+    @Param({"0.0", "0.1"})
+    double failureRatio;
+
+    private TestSuiteReporter suite;
+    private File outputDir;
+
+    @Setup
+    public void setUp() throws IOException {
+        suite = SuiteFixture.build(cases, outputBytes, failureRatio);
+        outputDir = Files.createTempDirectory("junit-reporter-bench").toFile();
+    }
+
+    @Setup(Level.Invocation)
+    public void touchCases() {
+        SuiteFixture.touch(suite, cases);
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = outputDir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        outputDir.delete();
+    }
+
+    @Benchmark
+    public Document toDocument() {
+        return suite.toDocument();
+    }
+
+    @Benchmark
+    public void writeXml() throws IOException {
+        suite.writeXml(outputDir);
+    }
+
+    @Benchmark
+    public void writeText() throws IOException {
+        suite.writeText(outputDir);
+    }
+}
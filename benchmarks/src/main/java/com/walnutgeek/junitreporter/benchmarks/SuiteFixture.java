@@ -0,0 +1,69 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+
+import java.util.Arrays;
+
+/** Builds suites of a given shape for the benchmarks. */
+final class SuiteFixture {
+
+    static final String STACK_TRACE;
+
+    static {
+        StringBuilder sb = new StringBuilder("java.lang.AssertionError: expected 3 got 4\n");
+        for (int i = 0; i < 40; i++) {
+            sb.append("\tat com.example.service.Layer").append(i).append(".call(Layer").append(i).append(".java:")
+                    .append(10 + i).append(")\n");
+        }
+        STACK_TRACE = sb.toString();
+    }
+
+    private SuiteFixture() {
+    }
+
+    static String caseName(int i) {
+        return "testCase" + i;
+    }
+
+    /**
+     * @param cases        number of test cases
+     * @param outputBytes  stdout per test case, written as 100-char lines
+     * @param failureRatio fraction of cases that get a failure with a 40-frame trace
+     */
+    static TestSuiteReporter build(int cases, int outputBytes, double failureRatio) {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.BenchmarkTest");
+        suite.addProperty("env", "benchmark");
+        String line = line();
+        int failEvery = failureRatio <= 0 ? 0 : (int) Math.max(1, Math.round(1 / failureRatio));
+        for (int i = 0; i < cases; i++) {
+            TestCaseReporter tc = suite.testCase(caseName(i));
+            tc.setTime(0.001 * (i % 100));
+            for (int written = 0; written < outputBytes; written += line.length()) {
+                tc.addStdout(line);
+            }
+            if (failEvery > 0 && i % failEvery == 0) {
+                tc.addFailure("java.lang.AssertionError", "expected 3 got 4", STACK_TRACE);
+            }
+        }
+        return suite;
+    }
+
+    /**
+     * Sets the time of the first {@code cases} cases again. Each write after this
+     * renders those cases instead of skipping the report or reusing the
+     * elements cached for them.
+     */
+    static void touch(TestSuiteReporter suite, int cases) {
+        for (int i = 0; i < cases; i++) {
+            TestCaseReporter tc = suite.testCase(caseName(i));
+            tc.setTime(tc.getTime());
+        }
+    }
+
+    static String line() {
+        char[] chars = new char[99];
+        Arrays.fill(chars, 'x');
+        return new String(chars) + "\n";
+    }
+}
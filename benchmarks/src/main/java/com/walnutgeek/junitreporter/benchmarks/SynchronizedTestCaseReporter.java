@@ -0,0 +1,75 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The monitor-based {@code TestCaseReporter} from 0.1.0, kept as the baseline
+ * for {@link ContentionBenchmark}.
+ */
+public class SynchronizedTestCaseReporter {
+
+    private final String name;
+    private final String className;
+    private double time;
+    private final StringBuilder stdout = new StringBuilder();
+    private final StringBuilder stderr = new StringBuilder();
+    private final List<TestCaseReporter.Entry> failures = new ArrayList<>();
+    private final List<TestCaseReporter.Entry> errors = new ArrayList<>();
+
+    public SynchronizedTestCaseReporter(String name, String className) {
+        this.name = name;
+        this.className = className;
+    }
+
+    public String getName() { return name; }
+    public String getClassName() { return className; }
+    public synchronized double getTime() { return time; }
+
+    public synchronized void setTime(double seconds) {
+        this.time = seconds;
+    }
+
+    public synchronized void addStdout(String text) {
+        stdout.append(text);
+    }
+
+    public synchronized void addStderr(String text) {
+        stderr.append(text);
+    }
+
+    public synchronized String getStdout() {
+        return stdout.toString();
+    }
+
+    public synchronized String getStderr() {
+        return stderr.toString();
+    }
+
+    public synchronized void addFailure(String type, String message, String stackTrace) {
+        failures.add(new TestCaseReporter.Entry(type, message, stackTrace));
+    }
+
+    public synchronized void addError(String type, String message, String stackTrace) {
+        errors.add(new TestCaseReporter.Entry(type, message, stackTrace));
+    }
+
+    public synchronized List<TestCaseReporter.Entry> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<>(failures));
+    }
+
+    public synchronized List<TestCaseReporter.Entry> getErrors() {
+        return Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public synchronized boolean hasFailure() {
+        return !failures.isEmpty();
+    }
+
+    public synchronized boolean hasError() {
+        return !errors.isEmpty();
+    }
+}
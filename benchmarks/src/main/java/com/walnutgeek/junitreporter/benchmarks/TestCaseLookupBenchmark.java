@@ -0,0 +1,50 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** {@code TestSuiteReporter.testCase(name)} on existing and new names. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TestCaseLookupBenchmark {
+
+    @Param({"100", "100000"})
+    int cases;
+
+    private TestSuiteReporter suite;
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        suite = SuiteFixture.build(cases, 0, 0);
+        names = new String[cases];
+        for (int i = 0; i < cases; i++) {
+            names[i] = SuiteFixture.caseName(i);
+        }
+    }
+
+    @Benchmark
+    public TestCaseReporter existingCase() {
+        int i = next;
+        next = i + 1 == cases ? 0 : i + 1;
+        return suite.testCase(names[i]);
+    }
+}
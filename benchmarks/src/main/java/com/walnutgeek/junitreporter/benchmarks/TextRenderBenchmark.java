@@ -0,0 +1,81 @@
+package com.walnutgeek.junitreporter.benchmarks;
+
+import com.walnutgeek.junitreporter.TestCaseReporter;
+import com.walnutgeek.junitreporter.TestSuiteReporter;
+import com.walnutgeek.junitreporter.TextReportWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Text report rendering into a discarding writer, so that only formatting cost
+ * and allocation ({@code gc.alloc.rate.norm}) are measured: the streaming
+ * {@link TextReportWriter} against the former StringBuilder + String.format one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class TextRenderBenchmark {
+
+    @Param({"20000"})
+    int cases;
+
+    @Param({"0.1", "1.0"})
+    double failureRatio;
+
+    private TestSuiteReporter suite;
+    private final Writer sink = new NullWriter();
+
+    @Setup
+    public void setUp() {
+        suite = SuiteFixture.build(cases, 0, failureRatio);
+    }
+
+    @Benchmark
+    public void streaming() throws IOException {
+        new TextReportWriter(sink).write(suite);
+    }
+
+    @Benchmark
+    public void stringFormatBaseline() throws IOException {
+        TestSuiteReporter.Summary summary = suite.getSummary();
+        StringBuilder sb = new StringBuilder();
+        sb.append("-------------------------------------------------------------------------------\n");
+        sb.append("Test set: ").append(suite.getName()).append("\n");
+        sb.append("-------------------------------------------------------------------------------\n");
+        sb.append(String.format("Tests run: %d, Failures: %d, Errors: %d, Skipped: 0, Time elapsed: %s s\n",
+                summary.getTests(), summary.getFailures(), summary.getErrors(), format(summary.getTime())));
+        for (int i = 0; i < cases; i++) {
+            TestCaseReporter tc = suite.testCase(SuiteFixture.caseName(i));
+            if (!tc.hasFailure() && !tc.hasError()) continue;
+            sb.append("\n");
+            sb.append(tc.getName()).append("  Time elapsed: ").append(format(tc.getTime())).append(" s  <<< ");
+            sb.append(tc.hasFailure() ? "FAILURE!" : "ERROR!").append("\n");
+            for (TestCaseReporter.Entry f : tc.getFailures()) {
+                sb.append(f.getType()).append(": ").append(f.getMessage()).append("\n");
+                sb.append(f.getBody()).append("\n");
+            }
+        }
+        sink.write(sb.toString());
+    }
+
+    private static String format(double seconds) {
+        return String.format(Locale.US, "%.3f", seconds);
+    }
+}
@@ -0,0 +1,236 @@
+package com.walnutgeek.junitreporter;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test cases of a compact {@link TestSuiteReporter}, stored as parallel arrays
+ * indexed by a dense case id: names, times in nanoseconds and bitsets for the
+ * failed, errored and finished flags, found by name through an open-addressing
+ * table of ids. A passing case costs a few array slots besides its name.
+ *
+ * <p>Failure and error entries go to side tables keyed by id, and a case only
+ * gets a full {@link TestCaseReporter} once it is asked for one, for example to
+ * capture output. All methods synchronize on the store: compact mode trades the
+ * lock-free updates of regular suites for density.
+ */
+final class CompactCaseStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String className;
+    private final SuiteContext context;
+
+    private String[] names = new String[INITIAL_CAPACITY];
+    private long[] timeNanos = new long[INITIAL_CAPACITY];
+    /** Case id + 1 per slot, 0 for an empty slot; at most half full. */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int size;
+    private final BitSet failed = new BitSet();
+    private final BitSet errored = new BitSet();
+    private final BitSet finished = new BitSet();
+    private Map<Integer, TestCaseReporter.Entry[]> failures;
+    private Map<Integer, TestCaseReporter.Entry[]> errors;
+    private Map<Integer, TestCaseReporter> promoted;
+
+    CompactCaseStore(String className, SuiteContext context) {
+        this.className = className;
+        this.context = context;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Returns the id of {@code name}, registering the case if it is new. */
+    synchronized int id(String name) {
+        int mask = table.length - 1;
+        for (int slot = spread(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (id < 0) {
+                break;
+            }
+            if (names[id].equals(name)) {
+                return id;
+            }
+        }
+        int id = size++;
+        if (id == names.length) {
+            names = Arrays.copyOf(names, id * 2);
+            timeNanos = Arrays.copyOf(timeNanos, id * 2);
+        }
+        names[id] = name;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(table, id, name);
+        }
+        context.tests.increment();
+        context.modifications.increment();
+        ReporterMetrics m = context.metrics;
+        if (m != ReporterMetrics.NONE) {
+            m.testCaseCreated(context.reporter, null);
+        }
+        return id;
+    }
+
+    synchronized void setTime(int id, long nanos) {
+        TestCaseReporter tc = promoted(id);
+        if (tc != null) {
+            tc.setTimeNanos(nanos);
+            return;
+        }
+        context.timeNanos.add(nanos - timeNanos[id]);
+        timeNanos[id] = nanos;
+        context.modifications.increment();
+    }
+
+    synchronized void addFailure(int id, TestCaseReporter.Entry entry) {
+        TestCaseReporter tc = promoted(id);
+        if (tc != null) {
+            tc.addFailure(entry);
+            return;
+        }
+        if (failures == null) failures = new HashMap<>();
+        failures.put(id, append(failures.get(id), entry));
+        if (!failed.get(id)) {
+            failed.set(id);
+            context.failures.increment();
+        }
+        context.modifications.increment();
+    }
+
+    synchronized void addError(int id, TestCaseReporter.Entry entry) {
+        TestCaseReporter tc = promoted(id);
+        if (tc != null) {
+            tc.addError(entry);
+            return;
+        }
+        if (errors == null) errors = new HashMap<>();
+        errors.put(id, append(errors.get(id), entry));
+        if (!errored.get(id)) {
+            errored.set(id);
+            context.errors.increment();
+        }
+        context.modifications.increment();
+    }
+
+    /**
+     * Returns {@code true} on the first call for a case kept in the arrays; a
+     * promoted case is finished through its reporter, which reports it itself.
+     */
+    synchronized boolean finish(int id) {
+        TestCaseReporter tc = promoted(id);
+        if (tc != null) {
+            tc.finish();
+            return false;
+        }
+        if (finished.get(id)) return false;
+        finished.set(id);
+        return true;
+    }
+
+    /** The full reporter of case {@code id}, created from the arrays on first use. */
+    synchronized TestCaseReporter promote(int id) {
+        TestCaseReporter tc = promoted(id);
+        if (tc == null) {
+            tc = new TestCaseReporter(names[id], className, context);
+            tc.adopt(timeNanos[id], remove(failures, id), remove(errors, id), finished.get(id));
+            timeNanos[id] = 0;
+            if (promoted == null) promoted = new HashMap<>();
+            promoted.put(id, tc);
+        }
+        return tc;
+    }
+
+    synchronized List<TestCaseReporter> promotedCases() {
+        return promoted == null ? new ArrayList<TestCaseReporter>() : new ArrayList<>(promoted.values());
+    }
+
+    /**
+     * Snapshots of the cases registered so far. The arrays are copied under the
+     * lock; each {@link TestCaseReporter.Snapshot} is created as the list is read.
+     */
+    synchronized List<TestCaseReporter.Snapshot> snapshots() {
+        final int count = size;
+        final String[] names = Arrays.copyOf(this.names, count);
+        final long[] times = Arrays.copyOf(this.timeNanos, count);
+        final Map<Integer, TestCaseReporter.Entry[]> failures = copy(this.failures);
+        final Map<Integer, TestCaseReporter.Entry[]> errors = copy(this.errors);
+        final Map<Integer, TestCaseReporter.Snapshot> promoted = new HashMap<>();
+        if (this.promoted != null) {
+            for (Map.Entry<Integer, TestCaseReporter> entry : this.promoted.entrySet()) {
+                promoted.put(entry.getKey(), entry.getValue().snapshot());
+            }
+        }
+        return new AbstractList<TestCaseReporter.Snapshot>() {
+            @Override
+            public TestCaseReporter.Snapshot get(int id) {
+                if (id < 0 || id >= count) throw new IndexOutOfBoundsException(String.valueOf(id));
+                TestCaseReporter.Snapshot snapshot = promoted.get(id);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+                return new TestCaseReporter.Snapshot(names[id], className, times[id], failures.get(id), errors.get(id));
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+    }
+
+    private static Map<Integer, TestCaseReporter.Entry[]> copy(Map<Integer, TestCaseReporter.Entry[]> entries) {
+        return entries == null ? Collections.<Integer, TestCaseReporter.Entry[]>emptyMap() : new HashMap<>(entries);
+    }
+
+    private TestCaseReporter promoted(int id) {
+        check(id);
+        return promoted == null ? null : promoted.get(id);
+    }
+
+    private void check(int id) {
+        if (id < 0 || id >= size) {
+            throw new IllegalArgumentException("Unknown test case id: " + id);
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] rehashed = new int[capacity];
+        for (int id = 0; id < size; id++) {
+            insert(rehashed, id, names[id]);
+        }
+        table = rehashed;
+    }
+
+    private static void insert(int[] table, int id, String name) {
+        int mask = table.length - 1;
+        int slot = spread(name.hashCode()) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static TestCaseReporter.Entry[] append(TestCaseReporter.Entry[] entries, TestCaseReporter.Entry entry) {
+        if (entries == null) return new TestCaseReporter.Entry[] {entry};
+        TestCaseReporter.Entry[] updated = Arrays.copyOf(entries, entries.length + 1);
+        updated[entries.length] = entry;
+        return updated;
+    }
+
+    private static TestCaseReporter.Entry[] remove(Map<Integer, TestCaseReporter.Entry[]> entries, int id) {
+        return entries == null ? null : entries.remove(id);
+    }
+}
@@ -0,0 +1,238 @@
+package com.walnutgeek.junitreporter;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Suite-wide table of failure and error text. When a shared fixture breaks,
+ * thousands of cases report the same multi-KB stack trace; interning by content
+ * keeps one copy of each distinct text, so memory grows with distinct failures
+ * rather than with failing cases.
+ *
+ * <p>Stack traces can also be truncated before interning, to at most
+ * {@code maxFrames} {@code at} lines per exception in the cause chain and at
+ * most {@code maxChars} characters overall, and frames of classes matching
+ * excluded prefixes can be left out. Traces of a {@link Throwable} are rendered
+ * with the settings in effect when they are first needed.
+ */
+final class EntryInterner {
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final ConcurrentHashMap<String, String> texts = new ConcurrentHashMap<>();
+    private volatile int maxFrames = UNLIMITED;
+    private volatile int maxChars = UNLIMITED;
+    private volatile String[] excludedFrames = new String[0];
+
+    void setLimits(int maxFrames, int maxChars) {
+        if (maxFrames < 0 || maxChars < 0) {
+            throw new IllegalArgumentException("limits must not be negative");
+        }
+        this.maxFrames = maxFrames;
+        this.maxChars = maxChars;
+    }
+
+    /** Leaves out frames whose {@code class.method} starts with one of {@code prefixes}. */
+    void setExcludedFrames(String... prefixes) {
+        for (String prefix : prefixes) {
+            if (prefix == null || prefix.isEmpty()) {
+                throw new IllegalArgumentException("frame prefixes must not be empty");
+            }
+        }
+        this.excludedFrames = prefixes.clone();
+    }
+
+    TestCaseReporter.Entry entry(String type, String message, String stackTrace) {
+        return new TestCaseReporter.Entry(intern(type), intern(message), intern(truncate(stackTrace)));
+    }
+
+    /** An entry whose stack trace is rendered from {@code thrown} when it is first read. */
+    TestCaseReporter.Entry entry(Throwable thrown) {
+        return new TestCaseReporter.Entry(intern(thrown.getClass().getName()), intern(thrown.getMessage()),
+                thrown, this);
+    }
+
+    String intern(String text) {
+        if (text == null || text.isEmpty()) {
+            return text;
+        }
+        String existing = texts.putIfAbsent(text, text);
+        return existing == null ? text : existing;
+    }
+
+    /** Number of distinct texts held. */
+    int size() {
+        return texts.size();
+    }
+
+    void clear() {
+        texts.clear();
+    }
+
+    String truncate(String stackTrace) {
+        if (stackTrace == null) {
+            return null;
+        }
+        int frames = maxFrames;
+        String[] excluded = excludedFrames;
+        String text = frames == UNLIMITED && excluded.length == 0 ? stackTrace
+                : limitFrames(stackTrace, frames, excluded);
+        return limitChars(text);
+    }
+
+    private String limitChars(String text) {
+        int chars = maxChars;
+        if (text.length() > chars) {
+            return text.substring(0, chars) + "\n\t... truncated";
+        }
+        return text;
+    }
+
+    /**
+     * Renders {@code thrown} the way {@link Throwable#printStackTrace()} does,
+     * causes and suppressed exceptions included, but with excluded and surplus
+     * frames replaced by counts as they are for a trace given as text.
+     */
+    String render(Throwable thrown) {
+        StringBuilder sb = new StringBuilder(1024);
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        render(sb, thrown, new StackTraceElement[0], "", "", seen, maxFrames, excludedFrames);
+        sb.setLength(sb.length() - 1);
+        return limitChars(sb.toString());
+    }
+
+    private static void render(StringBuilder sb, Throwable t, StackTraceElement[] enclosing, String caption,
+                               String prefix, Set<Throwable> seen, int max, String[] excluded) {
+        if (!seen.add(t)) {
+            sb.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append("]\n");
+            return;
+        }
+        StackTraceElement[] trace = t.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        sb.append(prefix).append(caption).append(t).append('\n');
+        int kept = 0;
+        int filtered = 0;
+        int skipped = 0;
+        for (int i = 0; i <= m; i++) {
+            if (isExcluded(trace[i], excluded)) {
+                filtered++;
+                continue;
+            }
+            if (kept == max) {
+                skipped = m + 1 - i;
+                break;
+            }
+            filtered = appendCount(sb, prefix, filtered, " frames filtered");
+            sb.append(prefix).append("\tat ").append(trace[i]).append('\n');
+            kept++;
+        }
+        appendCount(sb, prefix, filtered, " frames filtered");
+        appendCount(sb, prefix, skipped, " frames truncated");
+        appendCount(sb, prefix, trace.length - 1 - m, " more");
+        for (Throwable suppressed : t.getSuppressed()) {
+            render(sb, suppressed, trace, "Suppressed: ", prefix + "\t", seen, max, excluded);
+        }
+        Throwable cause = t.getCause();
+        if (cause != null) {
+            render(sb, cause, trace, "Caused by: ", prefix, seen, max, excluded);
+        }
+    }
+
+    private static int appendCount(StringBuilder sb, String prefix, int count, String what) {
+        if (count > 0) {
+            sb.append(prefix).append("\t... ").append(count).append(what).append('\n');
+        }
+        return 0;
+    }
+
+    private static boolean isExcluded(StackTraceElement frame, String[] excluded) {
+        if (excluded.length == 0) return false;
+        String name = frame.getClassName() + '.' + frame.getMethodName();
+        for (String prefix : excluded) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the first {@code max} frames of each exception in the chain that are
+     * not excluded, replacing the rest by counts.
+     */
+    private static String limitFrames(String stackTrace, int max, String[] excluded) {
+        StringBuilder sb = null;
+        int frames = 0;
+        int filtered = 0;
+        int skipped = 0;
+        int start = 0;
+        int length = stackTrace.length();
+        while (start < length) {
+            int end = stackTrace.indexOf('\n', start);
+            end = end < 0 ? length : end + 1;
+            int at = frameStart(stackTrace, start, end);
+            if (at >= 0) {
+                boolean exclude = isExcluded(stackTrace, at, excluded);
+                if (exclude || ++frames > max) {
+                    if (sb == null) {
+                        sb = new StringBuilder(length).append(stackTrace, 0, start);
+                    }
+                    if (exclude && skipped == 0) {
+                        filtered++;
+                    } else {
+                        if (filtered > 0) {
+                            sb.append("\t... ").append(filtered).append(" frames filtered\n");
+                            filtered = 0;
+                        }
+                        skipped++;
+                    }
+                    start = end;
+                    continue;
+                }
+            } else {
+                frames = 0;
+                if (skipped > 0) {
+                    sb.append("\t... ").append(skipped).append(" frames truncated\n");
+                    skipped = 0;
+                }
+            }
+            if (filtered > 0) {
+                sb.append("\t... ").append(filtered).append(" frames filtered\n");
+                filtered = 0;
+            }
+            if (sb != null) {
+                sb.append(stackTrace, start, end);
+            }
+            start = end;
+        }
+        if (sb == null) {
+            return stackTrace;
+        }
+        if (filtered > 0) {
+            sb.append("\t... ").append(filtered).append(" frames filtered");
+        }
+        if (skipped > 0) {
+            sb.append("\t... ").append(skipped).append(" frames truncated");
+        }
+        return sb.toString();
+    }
+
+    /** Index of the frame after {@code at } if the line is a stack frame, otherwise -1. */
+    private static int frameStart(String s, int start, int end) {
+        int i = start;
+        while (i < end && (s.charAt(i) == ' ' || s.charAt(i) == '\t')) i++;
+        return s.startsWith("at ", i) ? i + 3 : -1;
+    }
+
+    private static boolean isExcluded(String s, int frame, String[] excluded) {
+        for (String prefix : excluded) {
+            if (s.startsWith(prefix, frame)) return true;
+        }
+        return false;
+    }
+}
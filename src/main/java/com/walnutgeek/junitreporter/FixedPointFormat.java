@@ -0,0 +1,76 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Formats counts and times for reports without {@code String.format}. Digits
+ * are produced into a scratch buffer owned by the instance, so writing to a
+ * {@link Writer} allocates nothing; one instance per writer, not thread-safe.
+ *
+ * <p>Times are given in nanoseconds and printed as seconds with three decimals,
+ * rounded half up, matching {@code %.3f}.
+ */
+final class FixedPointFormat {
+
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+
+    /** Room for a sign, 19 digits and a decimal point. */
+    private final char[] buf = new char[21];
+
+    void writeSeconds(long nanos, Writer out) throws IOException {
+        int start = formatSeconds(nanos);
+        out.write(buf, start, buf.length - start);
+    }
+
+    void writeInt(long value, Writer out) throws IOException {
+        int start = formatInt(value);
+        out.write(buf, start, buf.length - start);
+    }
+
+    /** For {@code toDocument()}, whose attributes are strings anyway; writers use {@link #writeSeconds}. */
+    String seconds(long nanos) {
+        int start = formatSeconds(nanos);
+        return new String(buf, start, buf.length - start);
+    }
+
+    String integer(long value) {
+        int start = formatInt(value);
+        return new String(buf, start, buf.length - start);
+    }
+
+    /** Fills the end of {@link #buf}; returns the index of the first char. */
+    private int formatSeconds(long nanos) {
+        boolean negative = nanos < 0;
+        long millis = ((negative ? -nanos : nanos) + NANOS_PER_MILLI / 2) / NANOS_PER_MILLI;
+        int pos = buf.length;
+        long fraction = millis % 1000;
+        for (int i = 0; i < 3; i++) {
+            buf[--pos] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        buf[--pos] = '.';
+        pos = digits(millis / 1000, pos);
+        if (negative && millis != 0) {
+            buf[--pos] = '-';
+        }
+        return pos;
+    }
+
+    private int formatInt(long value) {
+        if (value < 0) {
+            int pos = digits(-value, buf.length);
+            buf[--pos] = '-';
+            return pos;
+        }
+        return digits(value, buf.length);
+    }
+
+    private int digits(long value, int pos) {
+        do {
+            buf[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return pos;
+    }
+}
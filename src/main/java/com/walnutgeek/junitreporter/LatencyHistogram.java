@@ -0,0 +1,161 @@
+package com.walnutgeek.junitreporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds, for test cases that run
+ * many times. Buckets are log-linear as in HdrHistogram: values below 64 are
+ * exact, and above that each power of two is split into 32 buckets, so a
+ * reported percentile is within 3.2% of the recorded value while the whole
+ * range of {@code long} fits in under 2000 counters (15 KiB).
+ *
+ * <p>{@link #record} is lock-free and may be called from any number of threads;
+ * min and max are exact.
+ */
+public final class LatencyHistogram {
+
+    /** Sub-bucket bits: each power of two above {@code 2^SUB_BITS} has {@code 2^(SUB_BITS - 1)} buckets. */
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /** Min, max and percentiles of a histogram at one point in time, in nanoseconds. */
+    public static final class Stats {
+        /** Names of the test case properties reports carry for these statistics. */
+        static final String[] PROPERTY_NAMES = {
+                "latency.count", "latency.min.ns", "latency.p50.ns", "latency.p90.ns", "latency.p99.ns",
+                "latency.max.ns"};
+
+        private final long count;
+        private final long min;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        Stats(long count, long min, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.min = min;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+        public long getMin() { return min; }
+        public long getP50() { return p50; }
+        public long getP90() { return p90; }
+        public long getP99() { return p99; }
+        public long getMax() { return max; }
+
+        /** Values in the order of {@link #PROPERTY_NAMES}. */
+        long[] propertyValues() {
+            return new long[] {count, min, p50, p90, p99, max};
+        }
+    }
+
+    /** Records one duration; negative values count as 0. */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        for (long m = min.get(); value < m; m = min.get()) {
+            if (min.compareAndSet(m, value)) break;
+        }
+        for (long m = max.get(); value > m; m = max.get()) {
+            if (max.compareAndSet(m, value)) break;
+        }
+        count.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Smallest recorded value, 0 when empty. */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+
+    /** Largest recorded value, 0 when empty. */
+    public long getMax() {
+        return count.get() == 0 ? 0 : max.get();
+    }
+
+    /**
+     * Value at or below which {@code percentile} percent of the recorded values
+     * fall: the upper end of the bucket holding it, capped at {@link #getMax()}.
+     * Percentile 0 is the minimum.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (!(percentile >= 0 && percentile <= 100)) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        return stats(new double[] {percentile})[0];
+    }
+
+    /** Min, p50, p90, p99 and max, computed in one pass over the buckets. */
+    public Stats stats() {
+        long total = count.get();
+        if (total == 0) {
+            return new Stats(0, 0, 0, 0, 0, 0);
+        }
+        long[] p = stats(new double[] {50, 90, 99});
+        return new Stats(total, getMin(), p[0], p[1], p[2], getMax());
+    }
+
+    /** Values at ascending {@code percentiles}. */
+    private long[] stats(double[] percentiles) {
+        long[] values = new long[percentiles.length];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return values;
+        }
+        long lo = getMin();
+        long hi = getMax();
+        long seen = 0;
+        int next = 0;
+        while (next < percentiles.length && percentiles[next] <= 0) {
+            values[next++] = lo;
+        }
+        for (int i = 0; i < BUCKETS && next < percentiles.length; i++) {
+            seen += counts.get(i);
+            while (next < percentiles.length && seen >= Math.max(1, Math.ceil(total * percentiles[next] / 100))) {
+                values[next++] = Math.max(lo, Math.min(hi, highestValue(i)));
+            }
+        }
+        for (; next < percentiles.length; next++) {
+            values[next] = hi;
+        }
+        return values;
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /** Largest value that maps to bucket {@code index}. */
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - HALF_COUNT) / HALF_COUNT;
+        long sub = index - shift * HALF_COUNT;
+        long low = sub << shift;
+        return low + ((1L << shift) - 1);
+    }
+}
@@ -0,0 +1,113 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory limits for captured stdout/stderr, shared by all test cases of a suite.
+ * Sizes are in bytes of heap held by the in-memory buffers. Also tracks spill
+ * files that were released while snapshots could still read them.
+ */
+final class OutputBudget {
+
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    private volatile long caseLimit = UNLIMITED;
+    private volatile long suiteLimit = UNLIMITED;
+    private volatile File spillDirectory;
+    private final AtomicLong used = new AtomicLong();
+    /** Buffers that took memory while the suite limit was set, oldest first; see {@link OutputBuffer}. */
+    private final ConcurrentLinkedQueue<OutputBuffer> queued = new ConcurrentLinkedQueue<>();
+    private final ReferenceQueue<Object> unreachable = new ReferenceQueue<>();
+    private final Set<Retired> retired = ConcurrentHashMap.newKeySet();
+
+    /** A released spill file, deleted once the object that readers reach it through is collected. */
+    private static final class Retired extends PhantomReference<Object> {
+        final File file;
+
+        Retired(File file, Object holder, ReferenceQueue<Object> queue) {
+            super(holder, queue);
+            this.file = file;
+        }
+    }
+
+    void setLimits(long caseLimit, long suiteLimit) {
+        if (caseLimit < 0 || suiteLimit < 0) {
+            throw new IllegalArgumentException("limits must not be negative");
+        }
+        this.caseLimit = caseLimit;
+        this.suiteLimit = suiteLimit;
+    }
+
+    long getCaseLimit() {
+        return caseLimit;
+    }
+
+    long getSuiteLimit() {
+        return suiteLimit;
+    }
+
+    File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /** Accounts for newly buffered bytes and returns the suite-wide total. */
+    long reserve(long bytes) {
+        return used.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    long getUsed() {
+        return used.get();
+    }
+
+    void queue(OutputBuffer buffer) {
+        queued.add(buffer);
+    }
+
+    OutputBuffer pollQueued() {
+        return queued.poll();
+    }
+
+    /**
+     * Deletes {@code file} once {@code holder}, which every reader of the file
+     * references, has become unreachable, or at {@link #deleteRetired()}.
+     */
+    void retire(File file, Object holder) {
+        retired.add(new Retired(file, holder, unreachable));
+        expungeRetired();
+    }
+
+    /** Deletes the retired files nothing can read any more. */
+    void expungeRetired() {
+        for (Reference<?> ref; (ref = unreachable.poll()) != null; ) {
+            Retired r = (Retired) ref;
+            if (retired.remove(r)) {
+                r.file.delete();
+            }
+        }
+    }
+
+    /** Deletes all retired files, whether or not they can still be read. */
+    void deleteRetired() {
+        for (Retired r : retired) {
+            if (retired.remove(r)) {
+                r.clear();
+                r.file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,596 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Captured stdout or stderr of one test case.
+ *
+ * <p>Appends are lock-free: text, or UTF-8 bytes kept as they were captured, goes
+ * into an append-only linked list of segments. When the case limit of the
+ * {@link OutputBudget} is exceeded, the appending thread that wins a {@code tryLock}
+ * moves the oldest segments to a temp file; other appenders never wait for it.
+ * When the suite limit is exceeded, the appending thread spills the buffers of
+ * the suite that took memory first, until the suite fits again. Readers take a
+ * {@link Mark} and see exactly the text appended before it, streaming the
+ * spilled prefix back from disk. {@link #retainTail} replaces the content with
+ * its last bytes.
+ *
+ * <p>A spill file that a mark has seen is not deleted when the buffer lets go
+ * of it, since a snapshot may still be read from it; it is handed to the
+ * {@link OutputBudget} instead, which deletes it once no mark can reach it.
+ */
+final class OutputBuffer {
+
+    /** Bytes of heap per buffered char; byte segments count one per byte. */
+    private static final int CHAR_BYTES = 2;
+    /** Chars encoded at a time when text is spilled. */
+    private static final int ENCODE_CHUNK = 2048;
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    /** Largest tail {@link #retainTail} keeps, so that it fits in an array. */
+    private static final long MAX_TAIL_BYTES = Integer.MAX_VALUE / 4;
+    /** Starts the content kept by {@link #retainTail} when something was dropped. */
+    private static final byte[] TRUNCATED = "... truncated\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final class Segment {
+        private static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+        /** Either {@link #text} or {@link #bytes} is set. */
+        final String text;
+        final byte[] bytes;
+        /** Heap bytes appended up to and including this segment. */
+        long end;
+        volatile Segment next;
+
+        Segment(String text) {
+            this.text = text;
+            this.bytes = null;
+        }
+
+        Segment(byte[] bytes) {
+            this.text = null;
+            this.bytes = bytes;
+        }
+
+        long size() {
+            return text != null ? (long) text.length() * CHAR_BYTES : bytes.length;
+        }
+
+        /** Whether the segment ends inside a character, which the next segment may complete. */
+        boolean endsIncomplete() {
+            if (text != null) {
+                return !text.isEmpty() && Character.isHighSurrogate(text.charAt(text.length() - 1));
+            }
+            for (int i = bytes.length - 1; i >= 0 && i >= bytes.length - 3; i--) {
+                int b = bytes[i] & 0xFF;
+                if (b < 0x80) return false;
+                if (b >= 0xC0) return Utf8.validLength(bytes, i, bytes.length) < 0;
+            }
+            return false;
+        }
+    }
+
+    /** A temp file holding spilled output. */
+    private static final class SpillFile {
+        final File path;
+        /** Whether a {@link Mark} may read the file, so that it must outlive the buffer's use of it. */
+        volatile boolean shared;
+
+        SpillFile(File path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Immutable description of the content before the segments in memory: what
+     * has been moved to disk or, after {@link #retainTail}, the tail kept of it.
+     */
+    private static final class Spilled {
+        final SpillFile file;
+        final long bytes;
+        /** Last segment written to {@link #file}; text after it is in memory. */
+        final Segment last;
+        /**
+         * Heap bytes dropped by {@link #release()} and {@link #retainTail}, not part
+         * of the content any more; the kept tail counts one per byte.
+         */
+        final long released;
+        /** UTF-8 content up to {@link #last} kept by {@link #retainTail}, or {@code null}; never with a file. */
+        final byte[] tail;
+
+        Spilled(SpillFile file, long bytes, Segment last, long released, byte[] tail) {
+            this.file = file;
+            this.bytes = bytes;
+            this.last = last;
+            this.released = released;
+            this.tail = tail;
+        }
+
+        long tailLength() {
+            return tail == null ? 0 : tail.length;
+        }
+    }
+
+    /** Point-in-time view of the buffer; text appended later is not visible through it. */
+    static final class Mark {
+        private final Spilled spilled;
+        private final Segment end;
+
+        private Mark(Spilled spilled, Segment end) {
+            this.spilled = spilled;
+            this.end = end;
+        }
+
+        boolean isEmpty() {
+            return length() == 0;
+        }
+
+        /** Heap bytes of the content, counting spilled content as if it were still in memory. */
+        long length() {
+            return end.end - spilled.released;
+        }
+    }
+
+    private static final AtomicIntegerFieldUpdater<OutputBuffer> QUEUED =
+            AtomicIntegerFieldUpdater.newUpdater(OutputBuffer.class, "queued");
+
+    private final OutputBudget budget;
+    private final AtomicReference<Segment> tail;
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private volatile Spilled spilled;
+    /** 1 while the buffer is in the budget's queue of buffers holding memory. */
+    private volatile int queued;
+
+    OutputBuffer(OutputBudget budget) {
+        this.budget = budget;
+        Segment head = new Segment("");
+        this.tail = new AtomicReference<>(head);
+        this.spilled = new Spilled(null, 0, head, 0, null);
+    }
+
+    void append(String text) {
+        if (text.isEmpty()) return;
+        link(new Segment(text));
+    }
+
+    /** Appends UTF-8 bytes, copied from {@code b}; see {@link TestCaseReporter#addStdout(byte[], int, int)}. */
+    void appendUtf8(byte[] b, int off, int len) {
+        if (len == 0) return;
+        link(new Segment(Arrays.copyOfRange(b, off, off + len)));
+    }
+
+    private void link(Segment node) {
+        long size = node.size();
+        for (;;) {
+            Segment t = tail.get();
+            Segment next = t.next;
+            if (next != null) {
+                tail.compareAndSet(t, next);
+                continue;
+            }
+            node.end = t.end + size;
+            if (Segment.NEXT.compareAndSet(t, null, node)) {
+                tail.compareAndSet(t, node);
+                break;
+            }
+        }
+        long suiteUsed = budget.reserve(size);
+        long memoryBytes = node.end - spilled.last.end;
+        if (memoryBytes > budget.getCaseLimit()) {
+            trySpill();
+        }
+        if (budget.getSuiteLimit() != OutputBudget.UNLIMITED) {
+            queue();
+            if (suiteUsed > budget.getSuiteLimit()) {
+                spillOldest();
+            }
+        }
+    }
+
+    /** Puts the buffer at the end of the budget's queue, unless it is queued already. */
+    private void queue() {
+        if (queued == 0 && QUEUED.compareAndSet(this, 0, 1)) {
+            budget.queue(this);
+        }
+    }
+
+    /**
+     * Spills buffers of the suite, in the order they took memory, until the suite
+     * is within its limit. One being spilled or trimmed by another thread is
+     * passed over; it queues itself again if it still holds memory afterwards.
+     */
+    private void spillOldest() {
+        OutputBuffer oldest;
+        while (budget.getUsed() > budget.getSuiteLimit() && (oldest = budget.pollQueued()) != null) {
+            oldest.queued = 0;
+            oldest.trySpill();
+        }
+    }
+
+    private void trySpill() {
+        if (spillLock.tryLock()) {
+            try {
+                spill();
+            } finally {
+                spillLock.unlock();
+            }
+        }
+    }
+
+    Mark mark() {
+        for (;;) {
+            Spilled s = spilled;
+            if (s.file != null && !s.file.shared) {
+                s.file.shared = true;
+                if (spilled != s) continue;  // let go of meanwhile, maybe before the flag was seen
+            }
+            return new Mark(s, last(s.last));
+        }
+    }
+
+    /** A mark only measured, never read from, which does not keep a spill file. */
+    private Mark peek() {
+        Spilled s = spilled;
+        return new Mark(s, last(s.last));
+    }
+
+    boolean isEmpty() {
+        return peek().isEmpty();
+    }
+
+    boolean isSpilled() {
+        return spilled.file != null;
+    }
+
+    long length() {
+        return peek().length();
+    }
+
+    @Override
+    public String toString() {
+        return toString(mark());
+    }
+
+    String toString(Mark mark) {
+        if (mark.spilled.file == null && mark.spilled.tail == null) {
+            if (mark.spilled.last == mark.end) return "";
+            if (mark.spilled.last.next == mark.end && mark.end.text != null) return mark.end.text;
+        }
+        StringWriter out = new StringWriter((int) Math.min(Integer.MAX_VALUE, mark.length() / CHAR_BYTES));
+        try {
+            writeTo(mark, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+
+    void writeTo(Writer out) throws IOException {
+        writeTo(mark(), out);
+    }
+
+    /**
+     * Streams the content visible through {@code mark}: the spilled prefix from
+     * disk, then memory. If {@code out} is a {@link Utf8.Sink}, captured bytes and
+     * the spill file are handed to it undecoded; otherwise they are decoded here.
+     */
+    void writeTo(Mark mark, Writer out) throws IOException {
+        Utf8.Sink sink = out instanceof Utf8.Sink ? (Utf8.Sink) out : null;
+        Utf8.Decoder decoder = null;
+        Spilled s = mark.spilled;
+        if (s.file != null) {
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            if (sink == null) decoder = new Utf8.Decoder();
+            try (InputStream in = new BoundedInputStream(new FileInputStream(s.file.path), s.bytes)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    if (sink != null) {
+                        sink.writeUtf8(buf, 0, n);
+                    } else {
+                        decoder.write(buf, 0, n, out);
+                    }
+                }
+            }
+        }
+        if (s.tail != null) {
+            if (sink != null) {
+                sink.writeUtf8(s.tail, 0, s.tail.length);
+            } else {
+                decoder = new Utf8.Decoder();
+                decoder.write(s.tail, 0, s.tail.length, out);
+            }
+        }
+        if (s.last != mark.end) {
+            for (Segment seg = s.last.next; ; seg = seg.next) {
+                if (seg.text != null) {
+                    if (decoder != null) decoder.end(out);
+                    out.write(seg.text);
+                } else if (sink != null) {
+                    sink.writeUtf8(seg.bytes, 0, seg.bytes.length);
+                } else {
+                    if (decoder == null) decoder = new Utf8.Decoder();
+                    decoder.write(seg.bytes, 0, seg.bytes.length, out);
+                }
+                if (seg == mark.end) break;
+            }
+        }
+        if (decoder != null) decoder.end(out);
+    }
+
+    /**
+     * Drops the content and returns the buffered memory to the budget. The spill
+     * file is deleted, or retired if marks taken before may still read it.
+     */
+    void release() {
+        spillLock.lock();
+        try {
+            Spilled s = spilled;
+            Segment end = last(s.last);
+            budget.release(end.end - s.last.end + s.tailLength());
+            spilled = new Spilled(null, 0, end, end.end, null);
+            if (s.file != null) {
+                discard(s.file);
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a spill file {@link #spilled} no longer refers to, unless a mark
+     * has seen it: then it is deleted when the last such mark is collected.
+     */
+    private void discard(SpillFile file) {
+        // reading the flag after publishing the new state pairs with mark(), which sets it and then re-reads the state
+        if (file.shared) {
+            budget.retire(file.path, file);
+        } else {
+            file.path.delete();
+        }
+    }
+
+    /**
+     * Replaces the content with its last {@code maxBytes} bytes as UTF-8, held in
+     * memory after a {@code ... truncated} line, and lets go of the spill file as
+     * {@link #release()} does. Text appended meanwhile is kept in full. Does
+     * nothing if the content fits.
+     *
+     * @return whether anything was dropped
+     */
+    boolean retainTail(long maxBytes) {
+        spillLock.lock();
+        try {
+            Spilled s = spilled;
+            Segment end = completeEnd(s);
+            if (s.file == null && s.tail == null && (end.end - s.last.end) * Utf8.MAX_BYTES_PER_CHAR / CHAR_BYTES
+                    <= maxBytes) {
+                return false;  // fits even at three bytes per char
+            }
+            maxBytes = Math.min(maxBytes, MAX_TAIL_BYTES);
+            Utf8.ByteArrayWriter content = new Utf8.ByteArrayWriter((int) Math.min(maxBytes * 2 + 16, 1 << 20));
+            boolean dropped = tail(s, end, maxBytes, content);
+            byte[] b = content.array();
+            int from = (int) Math.max(0, content.size() - maxBytes);
+            while (from < content.size() && (b[from] & 0xC0) == 0x80) {
+                from++;  // start on a character
+            }
+            if (!dropped && from == 0) {
+                return false;
+            }
+            byte[] kept = new byte[TRUNCATED.length + content.size() - from];
+            System.arraycopy(TRUNCATED, 0, kept, 0, TRUNCATED.length);
+            System.arraycopy(b, from, kept, TRUNCATED.length, content.size() - from);
+            spilled = new Spilled(null, 0, end, end.end - kept.length, kept);
+            if (s.file != null) {
+                discard(s.file);
+            }
+            budget.release(end.end - s.last.end + s.tailLength());
+            budget.reserve(kept.length);
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read spilled output", e);
+        } finally {
+            spillLock.unlock();
+            if (budget.getSuiteLimit() != OutputBudget.UNLIMITED) {
+                queue();
+            }
+        }
+    }
+
+    /**
+     * Writes at least the last {@code maxBytes} bytes of the content up to {@code end}
+     * to {@code out}, possibly starting inside a character.
+     *
+     * @return whether content before what was written exists
+     */
+    private static boolean tail(Spilled s, Segment end, long maxBytes, Utf8.ByteArrayWriter out)
+            throws IOException {
+        // a segment takes at least one UTF-8 byte per two bytes of heap
+        ArrayList<Segment> segments = new ArrayList<>();
+        for (Segment seg = s.last; seg != end; ) {
+            seg = seg.next;
+            segments.add(seg);
+        }
+        int first = segments.size();
+        long heap = 0;
+        while (first > 0 && heap < maxBytes * CHAR_BYTES) {
+            heap += segments.get(--first).size();
+        }
+        boolean dropped = first > 0;
+        if (!dropped && heap < maxBytes * CHAR_BYTES) {
+            long need = maxBytes * CHAR_BYTES - heap;
+            if (s.tail != null) {
+                int from = (int) Math.max(0, s.tail.length - need);
+                out.writeUtf8(s.tail, from, s.tail.length - from);
+                dropped = from > 0;
+            } else if (s.file != null) {
+                long from = Math.max(0, s.bytes - need);
+                byte[] buf = new byte[(int) (s.bytes - from)];
+                try (RandomAccessFile in = new RandomAccessFile(s.file.path, "r")) {
+                    in.seek(from);
+                    in.readFully(buf);
+                }
+                out.writeUtf8(buf, 0, buf.length);
+                dropped = from > 0;
+            }
+        } else if (s.file != null || s.tail != null) {
+            dropped = true;
+        }
+        for (int i = first; i < segments.size(); i++) {
+            Segment seg = segments.get(i);
+            if (seg.text != null) {
+                out.write(seg.text);
+            } else {
+                out.writeUtf8(seg.bytes, 0, seg.bytes.length);
+            }
+        }
+        out.end();
+        return dropped;
+    }
+
+    /** Called with {@link #spillLock} held. */
+    private void spill() {
+        Spilled s = spilled;
+        Segment end = completeEnd(s);
+        if (end == s.last) return;
+        SpillFile file = s.file;
+        long bytes = s.bytes;
+        try {
+            if (file == null) {
+                budget.expungeRetired();
+                file = new SpillFile(File.createTempFile("junit-reporter-", ".out", budget.getSpillDirectory()));
+            }
+            CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file.path, true));
+            try (OutputStream out = new BufferedOutputStream(counter)) {
+                if (s.tail != null) {
+                    out.write(s.tail);
+                }
+                byte[] encoded = null;
+                for (Segment seg = s.last.next; ; seg = seg.next) {
+                    if (seg.bytes != null) {
+                        out.write(seg.bytes);
+                    } else {
+                        if (encoded == null) encoded = new byte[ENCODE_CHUNK * Utf8.MAX_BYTES_PER_CHAR];
+                        writeEncoded(seg.text, encoded, out);
+                    }
+                    if (seg == end) break;
+                }
+            }
+            bytes += counter.count;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to spill captured output to disk", e);
+        }
+        spilled = new Spilled(file, bytes, end, s.released, null);
+        budget.release(end.end - s.last.end + s.tailLength());
+    }
+
+    /**
+     * The last segment appended after {@code s}, or the one before it if it ends
+     * inside a character, keeping a character split across appends together.
+     */
+    private static Segment completeEnd(Spilled s) {
+        Segment end = last(s.last);
+        if (end != s.last && end.endsIncomplete()) {
+            Segment prev = s.last;
+            while (prev.next != end) prev = prev.next;
+            end = prev;
+        }
+        return end;
+    }
+
+    /** Encodes {@code text} to UTF-8 a chunk at a time, never splitting a surrogate pair. */
+    private static void writeEncoded(String text, byte[] buf, OutputStream out) throws IOException {
+        int len = text.length();
+        for (int off = 0; off < len; ) {
+            int n = Math.min(ENCODE_CHUNK, len - off);
+            if (off + n < len && Character.isHighSurrogate(text.charAt(off + n - 1))) {
+                n--;
+            }
+            out.write(buf, 0, Utf8.encode(text, off, n, buf, 0));
+            off += n;
+        }
+    }
+
+    private static Segment last(Segment from) {
+        Segment seg = from;
+        for (Segment next = seg.next; next != null; next = seg.next) {
+            seg = next;
+        }
+        return seg;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Reads only the part of a spill file that was complete when a mark was taken. */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+}
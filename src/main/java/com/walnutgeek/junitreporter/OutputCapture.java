@@ -0,0 +1,465 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Stdout and stderr streams that route what a thread prints into the
+ * {@link TestCaseReporter} bound to that thread.
+ *
+ * <p>Output is collected as UTF-8 in per-thread buffers, without the lock a
+ * plain {@link PrintStream} takes on every call, and handed to the test case in
+ * batches: when a buffer fills up, on {@code flush()}, and on {@link #unbind()}.
+ * When the default charset is UTF-8, bytes written to the streams are kept as
+ * they are.
+ * Threads without a binding print to the original streams.
+ *
+ * <pre>
+ * try (OutputCapture capture = OutputCapture.install()) {   // replaces System.out and System.err
+ *     // on each test thread
+ *     capture.bind(suite.testCase("testFoo"));
+ *     try { ... } finally { capture.unbind(); }
+ * }
+ * </pre>
+ *
+ * <p>A binding is not inherited: output of threads started by a test goes to
+ * the original streams unless they bind the test case too. Unbind before
+ * {@link TestCaseReporter#finish()}, so buffered text reaches the case first.
+ */
+public final class OutputCapture implements Closeable {
+
+    /** Bytes buffered per thread and stream before they are added to the test case. */
+    private static final int BATCH_SIZE = 8 * 1024;
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final PrintStream originalOut;
+    private final PrintStream originalErr;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final Charset charset;
+    private final boolean utf8;
+    private final ThreadLocal<Binding> bindings = new ThreadLocal<>();
+    private boolean installed;
+
+    /** Capture streams that print to {@code out} and {@code err} on unbound threads. */
+    public OutputCapture(PrintStream out, PrintStream err) {
+        this.originalOut = out;
+        this.originalErr = err;
+        this.charset = Charset.defaultCharset();
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        this.out = new CaptureStream(out, false);
+        this.err = new CaptureStream(err, true);
+    }
+
+    /** Creates a capture of the current {@code System.out}/{@code System.err} and installs it in their place. */
+    public static OutputCapture install() {
+        OutputCapture capture = new OutputCapture(System.out, System.err);
+        synchronized (capture) {
+            System.setOut(capture.out);
+            System.setErr(capture.err);
+            capture.installed = true;
+        }
+        return capture;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public PrintStream getErr() {
+        return err;
+    }
+
+    /** Routes output of the current thread to {@code testCase}, flushing text buffered for a previous case. */
+    public void bind(TestCaseReporter testCase) {
+        if (testCase == null) {
+            throw new IllegalArgumentException("testCase is null");
+        }
+        Binding binding = bindings.get();
+        if (binding == null) {
+            binding = new Binding();
+            bindings.set(binding);
+        } else if (binding.testCase != null) {
+            binding.finish();
+        }
+        binding.testCase = testCase;
+    }
+
+    /** Flushes buffered text of the current thread to its test case and removes the binding. */
+    public void unbind() {
+        Binding binding = bindings.get();
+        if (binding != null && binding.testCase != null) {
+            binding.finish();
+            binding.testCase = null;
+        }
+    }
+
+    /** The test case bound to the current thread, or {@code null}. */
+    public TestCaseReporter current() {
+        Binding binding = bindings.get();
+        return binding == null ? null : binding.testCase;
+    }
+
+    /**
+     * Puts the original streams back if {@link #install()} replaced them and
+     * nothing replaced them since. Text still buffered by bound threads is only
+     * delivered when they unbind.
+     */
+    @Override
+    public synchronized void close() {
+        if (!installed) return;
+        installed = false;
+        if (System.out == out) System.setOut(originalOut);
+        if (System.err == err) System.setErr(originalErr);
+    }
+
+    /** Output buffers of one thread. */
+    private final class Binding {
+        TestCaseReporter testCase;
+        final Sink stdout = new Sink(false);
+        final Sink stderr = new Sink(true);
+
+        void finish() {
+            stdout.finish(testCase);
+            stderr.finish(testCase);
+        }
+    }
+
+    /**
+     * Output printed by one thread to one stream, not yet added to its test case,
+     * kept as UTF-8 in a fixed batch buffer.
+     */
+    private final class Sink {
+        private final boolean stderr;
+        private final byte[] batch = new byte[BATCH_SIZE];
+        private int size;
+        /** High surrogate that ended the last print, waiting for its pair. */
+        private char pendingHigh;
+        /** Decodes bytes written in a charset other than UTF-8. */
+        private CharsetDecoder decoder;
+        private CharBuffer decoded;
+        /** Trailing bytes of an incomplete character from the last {@link #write}. */
+        private ByteBuffer pending;
+
+        Sink(boolean stderr) {
+            this.stderr = stderr;
+        }
+
+        void append(TestCaseReporter testCase, CharSequence s) {
+            int len = s.length();
+            if (len == 0) return;
+            int off = 0;
+            if (pendingHigh != 0) {
+                if (Character.isLowSurrogate(s.charAt(0))) {
+                    encode(testCase, new String(new char[] {pendingHigh, s.charAt(0)}), 0, 2);
+                    off = 1;
+                } else {
+                    encode(testCase, String.valueOf(pendingHigh), 0, 1);
+                }
+                pendingHigh = 0;
+            }
+            int end = len;
+            if (end > off && Character.isHighSurrogate(s.charAt(end - 1))) {
+                pendingHigh = s.charAt(--end);
+            }
+            encode(testCase, s, off, end - off);
+        }
+
+        void append(TestCaseReporter testCase, char c) {
+            if (c < 0x80 && pendingHigh == 0) {
+                if (size == batch.length) flush(testCase);
+                batch[size++] = (byte) c;
+            } else {
+                append(testCase, String.valueOf(c));
+            }
+        }
+
+        /** Takes bytes written to the stream; UTF-8 is copied as is, other charsets are decoded. */
+        void write(TestCaseReporter testCase, byte[] buf, int off, int len) {
+            if (len == 0) return;
+            if (!utf8) {
+                decode(testCase, buf, off, len);
+                return;
+            }
+            resolvePendingHigh(testCase);
+            if (len > batch.length - size) {
+                flush(testCase);
+                if (len >= batch.length) {
+                    add(testCase, buf, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(buf, off, batch, size, len);
+            size += len;
+        }
+
+        void flush(TestCaseReporter testCase) {
+            if (size == 0) return;
+            add(testCase, batch, 0, size);
+            size = 0;
+        }
+
+        /** Flushes everything, replacing a character left incomplete. */
+        void finish(TestCaseReporter testCase) {
+            resolvePendingHigh(testCase);
+            if (pending != null) {
+                encode(testCase, String.valueOf(XmlEscaper.REPLACEMENT), 0, 1);
+                pending = null;
+            }
+            flush(testCase);
+        }
+
+        private void resolvePendingHigh(TestCaseReporter testCase) {
+            if (pendingHigh != 0) {
+                encode(testCase, String.valueOf(pendingHigh), 0, 1);
+                pendingHigh = 0;
+            }
+        }
+
+        /** Encodes chars into the batch, flushing it whenever it fills up. */
+        private void encode(TestCaseReporter testCase, CharSequence s, int off, int len) {
+            while (len > 0) {
+                int room = (batch.length - size) / Utf8.MAX_BYTES_PER_CHAR;
+                if (room < 2) {
+                    flush(testCase);
+                    continue;
+                }
+                int n = Math.min(len, room);
+                if (n < len && Character.isHighSurrogate(s.charAt(off + n - 1))) {
+                    n--;
+                }
+                size = Utf8.encode(s, off, n, batch, size);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void decode(TestCaseReporter testCase, byte[] buf, int off, int len) {
+            if (decoder == null) {
+                decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                decoded = CharBuffer.allocate(1024);
+            }
+            ByteBuffer in;
+            if (pending == null) {
+                in = ByteBuffer.wrap(buf, off, len);
+            } else {
+                in = ByteBuffer.allocate(pending.remaining() + len);
+                in.put(pending).put(buf, off, len);
+                ((Buffer) in).flip();
+                pending = null;
+            }
+            while (decoder.decode(in, decoded, false).isOverflow()) {
+                drainDecoded(testCase);
+            }
+            drainDecoded(testCase);
+            if (in.hasRemaining()) {
+                pending = ByteBuffer.allocate(in.remaining());
+                pending.put(in);
+                ((Buffer) pending).flip();
+            }
+        }
+
+        private void drainDecoded(TestCaseReporter testCase) {
+            ((Buffer) decoded).flip();
+            append(testCase, decoded);
+            ((Buffer) decoded).clear();
+        }
+
+        private void add(TestCaseReporter testCase, byte[] b, int off, int len) {
+            if (stderr) {
+                testCase.addStderr(b, off, len);
+            } else {
+                testCase.addStdout(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * {@link PrintStream} that appends to the current thread's {@link Sink} when
+     * it is bound, and otherwise behaves like the stream it wraps.
+     */
+    private final class CaptureStream extends PrintStream {
+        private final boolean stderr;
+
+        CaptureStream(PrintStream original, boolean stderr) {
+            super(original, false);
+            this.stderr = stderr;
+        }
+
+        /** Returns the bound test case of the current thread, or {@code null} to fall back to the original. */
+        private Binding binding() {
+            Binding binding = bindings.get();
+            return binding == null || binding.testCase == null ? null : binding;
+        }
+
+        private Sink sink(Binding binding) {
+            return stderr ? binding.stderr : binding.stdout;
+        }
+
+        private boolean print(String s, boolean newLine) {
+            Binding binding = binding();
+            if (binding == null) return false;
+            Sink sink = sink(binding);
+            sink.append(binding.testCase, s);
+            if (newLine) sink.append(binding.testCase, LINE_SEPARATOR);
+            return true;
+        }
+
+        @Override
+        public void write(int b) {
+            Binding binding = binding();
+            if (binding == null) {
+                super.write(b);
+            } else {
+                sink(binding).write(binding.testCase, new byte[] {(byte) b}, 0, 1);
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            Binding binding = binding();
+            if (binding == null) {
+                super.write(buf, off, len);
+            } else {
+                sink(binding).write(binding.testCase, buf, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            Binding binding = binding();
+            if (binding == null) {
+                super.flush();
+            } else {
+                sink(binding).flush(binding.testCase);
+            }
+        }
+
+        @Override
+        public void print(String s) {
+            if (!print(String.valueOf(s), false)) super.print(s);
+        }
+
+        @Override
+        public void print(Object obj) {
+            if (!print(String.valueOf(obj), false)) super.print(obj);
+        }
+
+        @Override
+        public void print(boolean b) {
+            if (!print(String.valueOf(b), false)) super.print(b);
+        }
+
+        @Override
+        public void print(char c) {
+            Binding binding = binding();
+            if (binding == null) {
+                super.print(c);
+            } else {
+                sink(binding).append(binding.testCase, c);
+            }
+        }
+
+        @Override
+        public void print(int i) {
+            if (!print(String.valueOf(i), false)) super.print(i);
+        }
+
+        @Override
+        public void print(long l) {
+            if (!print(String.valueOf(l), false)) super.print(l);
+        }
+
+        @Override
+        public void print(float f) {
+            if (!print(String.valueOf(f), false)) super.print(f);
+        }
+
+        @Override
+        public void print(double d) {
+            if (!print(String.valueOf(d), false)) super.print(d);
+        }
+
+        @Override
+        public void print(char[] s) {
+            Binding binding = binding();
+            if (binding == null) {
+                super.print(s);
+            } else {
+                sink(binding).append(binding.testCase, CharBuffer.wrap(s));
+            }
+        }
+
+        @Override
+        public void println() {
+            if (!print("", true)) super.println();
+        }
+
+        @Override
+        public void println(String s) {
+            if (!print(String.valueOf(s), true)) super.println(s);
+        }
+
+        @Override
+        public void println(Object obj) {
+            if (!print(String.valueOf(obj), true)) super.println(obj);
+        }
+
+        @Override
+        public void println(boolean b) {
+            if (!print(String.valueOf(b), true)) super.println(b);
+        }
+
+        @Override
+        public void println(char c) {
+            if (!print(String.valueOf(c), true)) super.println(c);
+        }
+
+        @Override
+        public void println(int i) {
+            if (!print(String.valueOf(i), true)) super.println(i);
+        }
+
+        @Override
+        public void println(long l) {
+            if (!print(String.valueOf(l), true)) super.println(l);
+        }
+
+        @Override
+        public void println(float f) {
+            if (!print(String.valueOf(f), true)) super.println(f);
+        }
+
+        @Override
+        public void println(double d) {
+            if (!print(String.valueOf(d), true)) super.println(d);
+        }
+
+        @Override
+        public void println(char[] s) {
+            if (!print(new String(s), true)) super.println(s);
+        }
+
+        @Override
+        public PrintStream format(String format, Object... args) {
+            if (!print(String.format(format, args), false)) super.format(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(Locale l, String format, Object... args) {
+            if (!print(String.format(l, format, args), false)) super.format(l, format, args);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.walnutgeek.junitreporter;
+
+/**
+ * What captured stdout/stderr a suite keeps once its test cases are
+ * {@linkplain TestCaseReporter#finish() finished}. Failing cases, those with a
+ * failure or an error, always keep their output in full; passing cases can be
+ * cut down to a tail or dropped, so memory grows with failures rather than with
+ * log volume. Instances are immutable; the {@code with...} methods return
+ * modified copies.
+ *
+ * <pre>
+ * suite.setOutputRetention(OutputRetention.KEEP_ALL
+ *         .withPassingTail(8 * 1024)          // last 8 KiB of each stream of a passing case
+ *         .withSuiteBudget(64 &lt;&lt; 20));      // then drop the oldest passing output past 64 MiB
+ * </pre>
+ */
+public final class OutputRetention {
+
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    /** Keeps all output, the default. */
+    public static final OutputRetention KEEP_ALL = new OutputRetention(UNLIMITED, UNLIMITED);
+
+    private final long passingTailBytes;
+    private final long suiteBudgetBytes;
+
+    private OutputRetention(long passingTailBytes, long suiteBudgetBytes) {
+        this.passingTailBytes = passingTailBytes;
+        this.suiteBudgetBytes = suiteBudgetBytes;
+    }
+
+    /**
+     * When a passing case finishes, keep only the last {@code bytes} bytes of each
+     * of its streams, as UTF-8, after a {@code ... truncated} line. Zero drops the
+     * output altogether.
+     */
+    public OutputRetention withPassingTail(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("tail must not be negative: " + bytes);
+        }
+        return new OutputRetention(bytes, suiteBudgetBytes);
+    }
+
+    /** Drops the output of passing cases when they finish. */
+    public OutputRetention withoutPassingOutput() {
+        return withPassingTail(0);
+    }
+
+    /**
+     * When the output held by finished cases of the suite grows past {@code bytes},
+     * counted like {@link TestSuiteReporter#setOutputMemoryLimits} counts it, drop
+     * the output of the passing cases that finished first until it fits again.
+     * Output of failing cases counts towards the budget but is never dropped.
+     */
+    public OutputRetention withSuiteBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("budget must not be negative: " + bytes);
+        }
+        return new OutputRetention(passingTailBytes, bytes);
+    }
+
+    /** Bytes kept per stream of a passing case, {@link Long#MAX_VALUE} when unlimited. */
+    public long getPassingTailBytes() {
+        return passingTailBytes;
+    }
+
+    /** Output budget of the finished cases of a suite, {@link Long#MAX_VALUE} when unlimited. */
+    public long getSuiteBudgetBytes() {
+        return suiteBudgetBytes;
+    }
+}
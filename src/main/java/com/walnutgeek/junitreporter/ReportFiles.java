@@ -0,0 +1,451 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens report files according to {@link ReportOptions}, and reads them back.
+ *
+ * <p>Reports are written through a {@link FileChannel} into a temp file next to
+ * the target and renamed into place by {@link Output#commit()}, so a reader
+ * never sees a half-written report. Plain reports are encoded straight into
+ * pooled byte buffers, optionally direct.
+ */
+final class ReportFiles {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final BufferPool HEAP_BUFFERS = new BufferPool(false);
+    private static final BufferPool DIRECT_BUFFERS = new BufferPool(true);
+
+    private ReportFiles() {
+    }
+
+    /**
+     * Opens a temp file for {@code file}. Write through {@link Output#writer()},
+     * then {@link Output#commit()}; closing without committing deletes the temp file.
+     */
+    static Output create(File file, ReportOptions options) throws IOException {
+        Path target = file.getAbsoluteFile().toPath();
+        for (;;) {
+            Path temp = tempPath(target);
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            try {
+                return new Output(target, temp, channel, options);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+    }
+
+    /** Writes {@code content} to {@code file} through a temp file renamed into place. */
+    static void write(File file, byte[] content, boolean force) throws IOException {
+        Path target = file.getAbsoluteFile().toPath();
+        Path temp;
+        FileChannel channel;
+        for (;;) {
+            temp = tempPath(target);
+            try {
+                channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+        try {
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (force) {
+                    channel.force(true);
+                }
+            } finally {
+                channel.close();
+            }
+            move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** A temp file name next to {@code target}. */
+    private static Path tempPath(Path target) {
+        // not Files.createTempFile: that makes the file owner-only, and the report should keep the umask
+        return target.resolveSibling("." + target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    }
+
+    private static void move(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Opens {@code file} for reading, decompressing it if its name ends with {@code .gz}. */
+    static InputStream openInput(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /** A report being written to a temp file, published by {@link #commit()}. */
+    static final class Output implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final boolean force;
+        private final Writer writer;
+        /** Counts the bytes going into the compressor, {@code null} for a plain report. */
+        private final CountingOutputStream uncompressed;
+        private boolean done;
+
+        private Output(Path target, Path temp, FileChannel channel, ReportOptions options) throws IOException {
+            this.target = target;
+            this.temp = temp;
+            this.channel = channel;
+            this.force = options.isForce();
+            int bufferSize = options.getBufferSize();
+            if (options.isGzip()) {
+                this.uncompressed = new CountingOutputStream(new LeveledGZIPOutputStream(
+                        new ChannelOutputStream(channel), bufferSize, options.getCompressionLevel()));
+                // the encoder has its own byte buffer, so buffer chars to cut per-call overhead
+                this.writer = new BufferedWriter(new OutputStreamWriter(uncompressed, StandardCharsets.UTF_8),
+                        bufferSize / 2);
+            } else {
+                BufferPool pool = options.isDirectBuffers() ? DIRECT_BUFFERS : HEAP_BUFFERS;
+                this.writer = new ChannelWriter(channel, pool, bufferSize);
+                this.uncompressed = null;
+            }
+        }
+
+        Writer writer() {
+            return writer;
+        }
+
+        /**
+         * Bytes of the report written through {@link #writer()} so far, before
+         * compression. A compressed report flushes the writer's buffers to count them.
+         */
+        long position() throws IOException {
+            if (uncompressed == null) {
+                return ((ChannelWriter) writer).position();
+            }
+            writer.flush();
+            return uncompressed.count;
+        }
+
+        /**
+         * Finishes the file and atomically moves it to its final name.
+         *
+         * @return the size of the file in bytes
+         */
+        long commit() throws IOException {
+            writer.close();
+            if (force) {
+                channel.force(true);
+            }
+            long size = channel.size();
+            channel.close();
+            move(temp, target);
+            done = true;
+            return size;
+        }
+
+        /** Discards the temp file unless {@link #commit()} succeeded. */
+        @Override
+        public void close() throws IOException {
+            if (done) return;
+            done = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // the partial file is deleted anyway
+            } finally {
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * UTF-8 writer that buffers chars and encodes them straight into a pooled
+     * byte buffer, which is written to the channel when full. Captured UTF-8
+     * bytes are copied into the same buffer as they are. Closing it flushes
+     * but leaves the channel open.
+     */
+    private static final class ChannelWriter extends Writer implements Utf8.RawWriter {
+        private final FileChannel channel;
+        private final BufferPool pool;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars;
+        private ByteBuffer bytes;
+        /** Bytes written to the channel. */
+        private long written;
+
+        ChannelWriter(FileChannel channel, BufferPool pool, int bufferSize) {
+            this.channel = channel;
+            this.pool = pool;
+            this.chars = CharBuffer.allocate(bufferSize / 2);
+            this.bytes = pool.acquire(bufferSize);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            ensureOpen();
+            if (!chars.hasRemaining()) encode(false);
+            chars.put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!chars.hasRemaining()) encode(false);
+                int n = Math.min(len, chars.remaining());
+                chars.put(cbuf, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!chars.hasRemaining()) encode(false);
+                int n = Math.min(len, chars.remaining());
+                str.getChars(off, off + n, chars.array(), chars.arrayOffset() + chars.position());
+                ((Buffer) chars).position(chars.position() + n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void writeUtf8(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            encode(false);
+            if (chars.position() > 0) {
+                // a high surrogate waiting for its pair, which never came
+                ((Buffer) chars).clear();
+                chars.put(XmlEscaper.REPLACEMENT);
+                encode(false);
+            }
+            if (len > bytes.capacity()) {
+                drain();
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                written += len;
+                return;
+            }
+            while (len > 0) {
+                if (!bytes.hasRemaining()) drain();
+                int n = Math.min(len, bytes.remaining());
+                bytes.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureOpen();
+            encode(false);
+            drain();
+        }
+
+        /** Bytes written so far; a high surrogate waiting for its pair is not counted yet. */
+        long position() throws IOException {
+            ensureOpen();
+            encode(false);
+            return written + bytes.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (bytes == null) return;
+            try {
+                encode(true);
+                while (encoder.flush(bytes).isOverflow()) {
+                    drain();
+                }
+                drain();
+            } finally {
+                pool.release(bytes);
+                bytes = null;
+            }
+        }
+
+        /** Moves buffered chars into {@link #bytes}; a trailing high surrogate waits for its pair. */
+        private void encode(boolean endOfInput) throws IOException {
+            ((Buffer) chars).flip();
+            for (;;) {
+                CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isUnderflow()) {
+                    break;
+                } else {
+                    result.throwException();
+                }
+            }
+            chars.compact();
+        }
+
+        private void drain() throws IOException {
+            ((Buffer) bytes).flip();
+            written += bytes.remaining();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            ((Buffer) bytes).clear();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (bytes == null) throw new IOException("Writer closed");
+        }
+    }
+
+    /** Writes arrays to a channel; closing it leaves the channel open. */
+    private static final class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+
+        ChannelOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /** Passes bytes through, counting them. */
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Small free list of equally sized byte buffers, shared by concurrent report writers. */
+    static final class BufferPool {
+        private static final int MAX_POOLED = 16;
+
+        private final boolean direct;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        BufferPool(boolean direct) {
+            this.direct = direct;
+        }
+
+        ByteBuffer acquire(int capacity) {
+            for (ByteBuffer buffer = free.poll(); buffer != null; buffer = free.poll()) {
+                size.decrementAndGet();
+                if (buffer.capacity() == capacity) {
+                    return buffer;
+                }
+            }
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        void release(ByteBuffer buffer) {
+            if (size.incrementAndGet() <= MAX_POOLED) {
+                ((Buffer) buffer).clear();
+                free.offer(buffer);
+            } else {
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /** {@link GZIPOutputStream} with a configurable deflate level. */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int size, int level) throws IOException {
+            super(out, size);
+            def.setLevel(level);
+        }
+    }
+}
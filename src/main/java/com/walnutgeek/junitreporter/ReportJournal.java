@@ -0,0 +1,423 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk journal of finished test cases of one suite.
+ *
+ * <p>Each finished case is rendered to its {@code <testcase>} XML fragment and
+ * appended as a checksummed record as soon as {@link TestCaseReporter#finish()}
+ * is called, so the results survive a JVM crash. {@code writeXml} copies the
+ * fragments into the final report; {@link #recover(File, File)} turns a journal
+ * left behind by a crashed run into a valid partial report.
+ *
+ * <p>Record layout: {@code type:byte length:int payload crc32:int}. A record cut
+ * short by a crash fails its length or checksum and ends the journal.
+ */
+public final class ReportJournal implements Closeable {
+
+    static final String SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x4A524A31; // "JRJ1"
+    private static final byte SUITE = 'S';
+    private static final byte PROPERTY = 'P';
+    static final byte CASE = 'C';
+    private static final int FAILED = 1;
+    private static final int ERRORED = 2;
+    /** Offset of the first record, after the magic number. */
+    static final long HEADER_LENGTH = 4;
+
+    /** Journal length paired with the totals of the cases it holds, see {@link #position()}. */
+    static final class Position {
+        final long length;
+        final int cases;
+        final int failures;
+        final int errors;
+        final long timeNanos;
+
+        Position(long length, int cases, int failures, int errors, long timeNanos) {
+            this.length = length;
+            this.cases = cases;
+            this.failures = failures;
+            this.errors = errors;
+            this.timeNanos = timeNanos;
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Length of the journal up to the last complete record. */
+    private volatile long length;
+    /** Totals of the journaled cases; guarded by {@link #lock}. */
+    private int cases;
+    private int failures;
+    private int errors;
+    private long timeNanos;
+
+    private ReportJournal(File file, FileOutputStream out, long length) {
+        this.file = file;
+        this.out = out;
+        this.length = length;
+    }
+
+    static ReportJournal create(File file, String suiteName, String timestamp) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            new DataOutputStream(header).writeInt(MAGIC);
+            out.write(header.toByteArray());
+            ReportJournal journal = new ReportJournal(file, out, header.size());
+            journal.append(SUITE, payload(suiteName, timestamp));
+            return journal;
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    void appendProperty(String key, String value) throws IOException {
+        append(PROPERTY, payload(key, value));
+    }
+
+    /**
+     * Renders the case outside the lock, then appends it and marks it journaled
+     * with the offset of its record.
+     */
+    void appendCase(TestCaseReporter tc) throws IOException {
+        TestCaseReporter.Snapshot snapshot = tc.snapshot();
+        StringWriter fragment = new StringWriter();
+        new StreamingXmlWriter(fragment).writeFragment(snapshot);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeByte((snapshot.hasFailure() ? FAILED : 0) | (snapshot.hasError() ? ERRORED : 0));
+        data.writeLong(snapshot.getTimeNanos());
+        data.write(fragment.toString().getBytes(StandardCharsets.UTF_8));
+        lock.lock();
+        try {
+            long offset = append(CASE, bytes.toByteArray());
+            cases++;
+            if (snapshot.hasFailure()) failures++;
+            if (snapshot.hasError()) errors++;
+            timeNanos += snapshot.getTimeNanos();
+            tc.markJournaled(offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The current length and the totals of the cases it covers: those whose
+     * record starts below {@link Position#length}.
+     */
+    Position position() {
+        lock.lock();
+        try {
+            return new Position(length, cases, failures, errors, timeNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Copies the fragments of all cases in the first {@code limit} bytes of a journal, in finish order. */
+    static void copyCasesTo(File file, long limit, Writer writer) throws IOException {
+        try (RecordReader reader = new RecordReader(file, limit)) {
+            for (byte type = reader.next(); type != 0; type = reader.next()) {
+                if (type == CASE) {
+                    writer.write(reader.fragment());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            out.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes {@code TEST-{suite}.xml} into {@code outputDir} from a journal left
+     * behind by a run that did not finish. Only complete records are used; the
+     * totals are computed from the recovered cases, which are listed in the order
+     * they finished.
+     *
+     * @return the report file written
+     */
+    public static File recover(File journalFile, File outputDir) throws IOException {
+        String suiteName = null;
+        String timestamp = null;
+        Map<String, String> properties = new LinkedHashMap<>();
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        long timeNanos = 0;
+        try (RecordReader reader = new RecordReader(journalFile, Long.MAX_VALUE)) {
+            for (byte type = reader.next(); type != 0; type = reader.next()) {
+                if (type == SUITE) {
+                    suiteName = reader.string();
+                    timestamp = reader.string();
+                } else if (type == PROPERTY) {
+                    properties.put(reader.string(), reader.string());
+                } else if (type == CASE) {
+                    tests++;
+                    if (reader.failed()) failures++;
+                    if (reader.errored()) errors++;
+                    timeNanos += reader.timeNanos;
+                }
+            }
+        }
+        if (suiteName == null) {
+            throw new IOException("Not a report journal: " + journalFile);
+        }
+
+        File report = new File(outputDir, "TEST-" + suiteName + ".xml");
+        TestSuiteReporter.Summary summary = new TestSuiteReporter.Summary(tests, failures, errors, timeNanos);
+        try (ReportFiles.Output output = ReportFiles.create(report, ReportOptions.DEFAULT)) {
+            StreamingXmlWriter xml = new StreamingXmlWriter(output.writer());
+            xml.writeRecovered(suiteName, timestamp, summary, properties, journalFile);
+            output.commit();
+        }
+        return report;
+    }
+
+    /** Appends a record and returns its offset. */
+    private long append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 9);
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeByte(type);
+        data.writeInt(payload.length);
+        data.write(payload);
+        data.writeInt((int) crc.getValue());
+        lock.lock();
+        try {
+            long offset = length;
+            out.write(record.toByteArray());
+            length += record.size();
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] payload(String first, String second) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        writeString(data, first);
+        writeString(data, second);
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] utf8 = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        data.writeInt(utf8.length);
+        data.write(utf8);
+    }
+
+    /** Sequential reader of complete, checksummed records. */
+    static final class RecordReader implements Closeable {
+        private final DataInputStream in;
+        private long remaining;
+        private DataInputStream payload;
+        private byte[] fragmentBytes;
+        int flags;
+        long timeNanos;
+
+        /** Reads the records in the first {@code limit} bytes. */
+        RecordReader(File file, long limit) throws IOException {
+            InputStream raw = new BufferedInputStream(new FileInputStream(file));
+            this.in = new DataInputStream(raw);
+            this.remaining = limit - HEADER_LENGTH;
+            try {
+                if (limit < HEADER_LENGTH || in.readInt() != MAGIC) {
+                    throw new IOException("Not a report journal: " + file);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e instanceof EOFException ? new IOException("Not a report journal: " + file) : e;
+            }
+        }
+
+        /** Returns the type of the next complete record, or 0 at the end of the valid journal. */
+        byte next() throws IOException {
+            if (remaining < 9) return 0;
+            byte[] bytes;
+            byte type;
+            try {
+                type = in.readByte();
+                int len = in.readInt();
+                if (len < 0 || len > remaining - 9) return 0;
+                bytes = new byte[len];
+                in.readFully(bytes);
+                int expected = in.readInt();
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, len);
+                if ((int) crc.getValue() != expected) return 0;
+                remaining -= 9 + len;
+            } catch (EOFException e) {
+                return 0;
+            }
+            payload = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (type == CASE) {
+                flags = payload.readByte();
+                timeNanos = payload.readLong();
+                fragmentBytes = bytes;
+            }
+            return type;
+        }
+
+        String string() throws IOException {
+            byte[] utf8 = new byte[payload.readInt()];
+            payload.readFully(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        boolean failed() {
+            return (flags & FAILED) != 0;
+        }
+
+        boolean errored() {
+            return (flags & ERRORED) != 0;
+        }
+
+        /** Length in bytes of the {@code <testcase>} fragment of the current case record. */
+        int fragmentLength() {
+            return fragmentBytes.length - 9;
+        }
+
+        /** The {@code <testcase>} fragment of the current case record. */
+        String fragment() {
+            return new String(fragmentBytes, 9, fragmentBytes.length - 9, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads case records at offsets recorded by {@link TestCaseReporter#markJournaled},
+     * so that journaled cases can be written in suite order. Reads go through a
+     * buffer, so cases that finished in suite order are read sequentially.
+     */
+    static final class CaseReader implements Closeable {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final File file;
+        private final FileChannel channel;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        /** File offset of {@code buffer[0]}, and the number of bytes in the buffer. */
+        private long bufferStart;
+        private int bufferLength;
+        private int fragmentStart;
+        private int fragmentLength;
+        int flags;
+        long timeNanos;
+
+        CaseReader(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+
+        /** Reads the case record at {@code offset}. */
+        void read(long offset) throws IOException {
+            int pos = fill(offset, 5);
+            int len = (buffer[pos + 1] & 0xFF) << 24 | (buffer[pos + 2] & 0xFF) << 16
+                    | (buffer[pos + 3] & 0xFF) << 8 | buffer[pos + 4] & 0xFF;
+            if (buffer[pos] != CASE || len < 9) {
+                throw new IOException("No case record at " + offset + " in " + file);
+            }
+            pos = fill(offset, 9 + len);
+            CRC32 crc = new CRC32();
+            crc.update(buffer, pos + 5, len);
+            int end = pos + 5 + len;
+            int expected = (buffer[end] & 0xFF) << 24 | (buffer[end + 1] & 0xFF) << 16
+                    | (buffer[end + 2] & 0xFF) << 8 | buffer[end + 3] & 0xFF;
+            if ((int) crc.getValue() != expected) {
+                throw new IOException("Corrupt case record at " + offset + " in " + file);
+            }
+            flags = buffer[pos + 5];
+            long nanos = 0;
+            for (int i = pos + 6; i < pos + 14; i++) {
+                nanos = nanos << 8 | buffer[i] & 0xFF;
+            }
+            timeNanos = nanos;
+            fragmentStart = pos + 14;
+            fragmentLength = len - 9;
+        }
+
+        boolean failed() {
+            return (flags & FAILED) != 0;
+        }
+
+        boolean errored() {
+            return (flags & ERRORED) != 0;
+        }
+
+        /** Length in bytes of the {@code <testcase>} fragment of the last case read. */
+        int fragmentLength() {
+            return fragmentLength;
+        }
+
+        /** The {@code <testcase>} fragment of the last case read. */
+        String fragment() {
+            return new String(buffer, fragmentStart, fragmentLength, StandardCharsets.UTF_8);
+        }
+
+        /** Makes {@code length} bytes from {@code offset} available in the buffer; returns their index. */
+        private int fill(long offset, int length) throws IOException {
+            if (offset >= bufferStart && offset + length <= bufferStart + bufferLength) {
+                return (int) (offset - bufferStart);
+            }
+            if (length > buffer.length) {
+                buffer = new byte[length];
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer);
+            while (target.position() < length) {
+                if (channel.read(target, offset + target.position()) < 0) {
+                    throw new IOException("Case record at " + offset + " is past the end of " + file);
+                }
+            }
+            bufferStart = offset;
+            bufferLength = target.position();
+            return 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.walnutgeek.junitreporter;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merges existing XML reports into one {@code <testsuites>} report.
+ *
+ * <p>Every input is streamed through StAX on a pool of threads: its
+ * {@code <testsuite>} elements are copied event by event into a temp fragment
+ * file while their totals are summed, so memory per file stays constant no
+ * matter how large the report is. The fragments are then concatenated under a
+ * header carrying the grand totals. Inputs may themselves be aggregated
+ * {@code <testsuites>} reports, and may be gzip-compressed.
+ */
+public class ReportMerger {
+
+    private static final XMLInputFactory INPUT = ReportReader.newFactory();
+    private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+    private static final QName TESTS = new QName("tests");
+    private static final QName FAILURES = new QName("failures");
+    private static final QName ERRORS = new QName("errors");
+    private static final QName TIME = new QName("time");
+
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile ReportOptions options = ReportOptions.DEFAULT;
+    private volatile File tempDirectory;
+
+    /** Number of threads reading reports; defaults to the number of processors. */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /** Options for the merged report; defaults to {@link ReportOptions#DEFAULT}. */
+    public void setReportOptions(ReportOptions options) {
+        this.options = options;
+    }
+
+    /** Directory for the per-report fragment files, {@code null} for the system default. */
+    public void setTempDirectory(File directory) {
+        this.tempDirectory = directory;
+    }
+
+    /** The {@code TEST-*.xml} and {@code TEST-*.xml.gz} files of {@code dir}, sorted by name. */
+    public static List<File> findReports(File dir) throws IOException {
+        File[] files = dir.listFiles((d, fileName) -> fileName.startsWith("TEST-")
+                && (fileName.endsWith(".xml") || fileName.endsWith(".xml.gz")));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Writes every {@code <testsuite>} of {@code reports}, in order, into
+     * {@code output} under a {@code <testsuites name="{name}">} element.
+     *
+     * @return the totals over all merged suites
+     */
+    public TestSuiteReporter.Summary merge(Collection<File> reports, File output, String name) throws IOException {
+        List<File> fragments = new ArrayList<>(reports.size());
+        List<Future<?>> futures = new ArrayList<>(reports.size());
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(parallelism, Math.max(1, reports.size())), new ReportSession.WriterThreadFactory());
+        try {
+            for (final File report : reports) {
+                final File fragment = File.createTempFile("junit-reporter-", ".fragment", tempDirectory);
+                fragments.add(fragment);
+                futures.add(pool.submit(() -> copySuites(report, fragment)));
+            }
+            ReportSession.awaitAll(futures);
+
+            int tests = 0;
+            int failures = 0;
+            int errors = 0;
+            long timeNanos = 0;
+            for (Future<?> f : futures) {
+                TestSuiteReporter.Summary summary = (TestSuiteReporter.Summary) f.get();
+                tests += summary.getTests();
+                failures += summary.getFailures();
+                errors += summary.getErrors();
+                timeNanos += summary.getTimeNanos();
+            }
+            TestSuiteReporter.Summary total = new TestSuiteReporter.Summary(tests, failures, errors, timeNanos);
+            try (ReportFiles.Output out = ReportFiles.create(output, options)) {
+                new StreamingXmlWriter(out.writer()).writeMerged(name, total, fragments);
+                out.commit();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> f : futures) f.cancel(true);
+            throw new InterruptedIOException("interrupted while merging reports");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdown();
+            for (File fragment : fragments) {
+                fragment.delete();
+            }
+        }
+    }
+
+    /** Copies the {@code <testsuite>} elements of {@code report} to {@code fragment}, summing their totals. */
+    static TestSuiteReporter.Summary copySuites(File report, File fragment) throws IOException {
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        long timeNanos = 0;
+        try (InputStream in = ReportFiles.openInput(report);
+             Writer writer = new OutputStreamWriter(new FileOutputStream(fragment), StandardCharsets.UTF_8)) {
+            XMLEventReader events = INPUT.createXMLEventReader(in);
+            XMLEventWriter copy = OUTPUT.createXMLEventWriter(writer);
+            int depth = 0;
+            while (events.hasNext()) {
+                XMLEvent event = events.nextEvent();
+                if (depth == 0) {
+                    if (!event.isStartElement()
+                            || !event.asStartElement().getName().getLocalPart().equals("testsuite")) {
+                        continue;
+                    }
+                    StartElement suite = event.asStartElement();
+                    tests += intAttribute(suite, TESTS);
+                    failures += intAttribute(suite, FAILURES);
+                    errors += intAttribute(suite, ERRORS);
+                    timeNanos += Math.round(ReportReader.parseTime(value(suite, TIME)) * 1e9);
+                    copy.add(EVENTS.createCharacters("\n  "));
+                }
+                copy.add(event);
+                if (event.isStartElement()) {
+                    depth++;
+                } else if (event.isEndElement()) {
+                    depth--;
+                }
+            }
+            copy.flush();
+            copy.close();
+            events.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse " + report + ": " + e.getMessage(), e);
+        }
+        return new TestSuiteReporter.Summary(tests, failures, errors, timeNanos);
+    }
+
+    private static int intAttribute(StartElement element, QName name) {
+        String value = value(element, name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String value(StartElement element, QName name) {
+        Attribute attribute = element.getAttributeByName(name);
+        return attribute == null ? null : attribute.getValue();
+    }
+}
@@ -0,0 +1,142 @@
+package com.walnutgeek.junitreporter;
+
+import java.util.zip.Deflater;
+
+/**
+ * How report files are written. Instances are immutable; the {@code with...}
+ * methods return modified copies.
+ *
+ * <pre>
+ * suite.writeXml(dir, ReportOptions.DEFAULT.withGzip(Deflater.BEST_SPEED));
+ * </pre>
+ */
+public final class ReportOptions {
+
+    public static final ReportOptions DEFAULT =
+            new ReportOptions(false, Deflater.DEFAULT_COMPRESSION, 64 * 1024, false, false, Long.MAX_VALUE,
+                    Integer.MAX_VALUE, false);
+
+    private final boolean gzip;
+    private final int compressionLevel;
+    private final int bufferSize;
+    private final boolean directBuffers;
+    private final boolean force;
+    private final long maxShardBytes;
+    private final int maxShardCases;
+    private final boolean summaryIndex;
+
+    private ReportOptions(boolean gzip, int compressionLevel, int bufferSize, boolean directBuffers, boolean force,
+                          long maxShardBytes, int maxShardCases, boolean summaryIndex) {
+        this.gzip = gzip;
+        this.compressionLevel = compressionLevel;
+        this.bufferSize = bufferSize;
+        this.directBuffers = directBuffers;
+        this.force = force;
+        this.maxShardBytes = maxShardBytes;
+        this.maxShardCases = maxShardCases;
+        this.summaryIndex = summaryIndex;
+    }
+
+    /** Compress reports with gzip at {@code level} (0-9, or -1 for the zlib default), adding {@code .gz}. */
+    public ReportOptions withGzip(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("compression level must be between -1 and 9: " + level);
+        }
+        return new ReportOptions(true, level, bufferSize, directBuffers, force, maxShardBytes, maxShardCases,
+                summaryIndex);
+    }
+
+    public ReportOptions withoutGzip() {
+        return new ReportOptions(false, compressionLevel, bufferSize, directBuffers, force, maxShardBytes,
+                maxShardCases, summaryIndex);
+    }
+
+    /** Size of the output buffers, in bytes; defaults to 64 KiB. */
+    public ReportOptions withBufferSize(int bytes) {
+        if (bytes < 512) {
+            throw new IllegalArgumentException("buffer size must be at least 512 bytes: " + bytes);
+        }
+        return new ReportOptions(gzip, compressionLevel, bytes, directBuffers, force, maxShardBytes, maxShardCases,
+                summaryIndex);
+    }
+
+    /** Encode into direct byte buffers, saving a copy per channel write; off by default. */
+    public ReportOptions withDirectBuffers(boolean direct) {
+        return new ReportOptions(gzip, compressionLevel, bufferSize, direct, force, maxShardBytes, maxShardCases,
+                summaryIndex);
+    }
+
+    /**
+     * Force the file contents to the storage device before the report is moved
+     * into place, so a published report survives a power loss; off by default.
+     */
+    public ReportOptions withForce(boolean force) {
+        return new ReportOptions(gzip, compressionLevel, bufferSize, directBuffers, force, maxShardBytes,
+                maxShardCases, summaryIndex);
+    }
+
+    /**
+     * Split a suite's XML report into {@code TEST-{name}-1.xml}, {@code TEST-{name}-2.xml}, ...
+     * when it would hold more than {@code maxCases} test cases or, by an estimate
+     * taken before compression, more than {@code maxBytes}. Each shard is a
+     * complete report with the totals of its own cases; shards are written in
+     * parallel. Unlimited by default.
+     */
+    public ReportOptions withShardLimits(long maxBytes, int maxCases) {
+        if (maxBytes < 1 || maxCases < 1) {
+            throw new IllegalArgumentException("shard limits must be positive: " + maxBytes + ", " + maxCases);
+        }
+        return new ReportOptions(gzip, compressionLevel, bufferSize, directBuffers, force, maxBytes, maxCases,
+                summaryIndex);
+    }
+
+    /**
+     * Write a {@link SummaryIndex} next to each XML report, {@code TEST-{name}.xml.idx},
+     * listing every case with its status, time and position in the report; off by default.
+     */
+    public ReportOptions withSummaryIndex(boolean summaryIndex) {
+        return new ReportOptions(gzip, compressionLevel, bufferSize, directBuffers, force, maxShardBytes,
+                maxShardCases, summaryIndex);
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    public boolean isForce() {
+        return force;
+    }
+
+    public long getMaxShardBytes() {
+        return maxShardBytes;
+    }
+
+    public int getMaxShardCases() {
+        return maxShardCases;
+    }
+
+    public boolean isSummaryIndex() {
+        return summaryIndex;
+    }
+
+    boolean isSharded() {
+        return maxShardBytes != Long.MAX_VALUE || maxShardCases != Integer.MAX_VALUE;
+    }
+
+    /** {@code fileName}, with {@code .gz} appended when compressing. */
+    String fileName(String fileName) {
+        return gzip ? fileName + ".gz" : fileName;
+    }
+}
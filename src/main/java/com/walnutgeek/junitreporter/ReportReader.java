@@ -0,0 +1,184 @@
+package com.walnutgeek.junitreporter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads Surefire/JUnit XML reports back into {@link TestSuiteReporter}s with a
+ * StAX pull parser. Nothing but the suite being filled is kept in memory, and
+ * {@code system-out}/{@code system-err} are appended chunk by chunk, so the
+ * suite's output memory limits apply while reading. Both single
+ * {@code <testsuite>} and aggregated {@code <testsuites>} files are accepted,
+ * plain or gzip-compressed ({@code .gz}).
+ *
+ * <p>Each {@code <testcase>} becomes a case of its own, also when several share
+ * a name, and keeps its {@code classname}.
+ */
+public final class ReportReader {
+
+    /** Creates or looks up the suite that a {@code <testsuite>} element is read into. */
+    public interface SuiteFactory {
+        TestSuiteReporter suite(String name, String timestamp);
+    }
+
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private ReportReader() {
+    }
+
+    /** Reads the first {@code <testsuite>} of {@code file} into a new suite. */
+    public static TestSuiteReporter read(File file) throws IOException {
+        final TestSuiteReporter[] first = new TestSuiteReporter[1];
+        read(file, (name, timestamp) -> {
+            if (first[0] == null) {
+                first[0] = timestamp == null ? new TestSuiteReporter(name) : new TestSuiteReporter(name, timestamp);
+                return first[0];
+            }
+            return null;
+        });
+        if (first[0] == null) {
+            throw new IOException("No <testsuite> in " + file);
+        }
+        return first[0];
+    }
+
+    /**
+     * Reads every {@code <testsuite>} of {@code file} into the suite returned by
+     * {@code suites}; a {@code null} suite skips the element.
+     */
+    public static void read(File file, SuiteFactory suites) throws IOException {
+        try (InputStream in = ReportFiles.openInput(file)) {
+            XMLStreamReader xml = FACTORY.createXMLStreamReader(in);
+            try {
+                while (xml.hasNext()) {
+                    if (xml.next() == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("testsuite")) {
+                        TestSuiteReporter suite = suites.suite(
+                                attribute(xml, "name"), xml.getAttributeValue(null, "timestamp"));
+                        if (suite == null) {
+                            skipElement(xml);
+                        } else {
+                            readSuite(xml, suite);
+                        }
+                    }
+                }
+            } finally {
+                xml.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static void readSuite(XMLStreamReader xml, TestSuiteReporter suite) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String element = xml.getLocalName();
+                if (element.equals("property")) {
+                    suite.addProperty(attribute(xml, "name"), attribute(xml, "value"));
+                    skipElement(xml);
+                } else if (element.equals("testcase")) {
+                    String classname = xml.getAttributeValue(null, "classname");
+                    readTestCase(xml, suite.addTestCase(attribute(xml, "name"),
+                            classname == null || classname.isEmpty() ? suite.getName() : classname));
+                } else if (!element.equals("properties")) {
+                    skipElement(xml);
+                } else {
+                    depth++;
+                }
+            }
+        }
+    }
+
+    private static void readTestCase(XMLStreamReader xml, TestCaseReporter tc) throws XMLStreamException {
+        tc.setTime(parseTime(xml.getAttributeValue(null, "time")));
+        while (true) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String element = xml.getLocalName();
+            if (element.equals("failure")) {
+                tc.addFailure(attribute(xml, "type"), attribute(xml, "message"), xml.getElementText());
+            } else if (element.equals("error")) {
+                tc.addError(attribute(xml, "type"), attribute(xml, "message"), xml.getElementText());
+            } else if (element.equals("system-out")) {
+                readOutput(xml, tc, true);
+            } else if (element.equals("system-err")) {
+                readOutput(xml, tc, false);
+            } else {
+                skipElement(xml);
+            }
+        }
+    }
+
+    /** Appends the element text one parser chunk at a time. */
+    private static void readOutput(XMLStreamReader xml, TestCaseReporter tc, boolean stdout)
+            throws XMLStreamException {
+        while (true) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            }
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                String chunk = new String(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                if (stdout) {
+                    tc.addStdout(chunk);
+                } else {
+                    tc.addStderr(chunk);
+                }
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement(xml);
+            }
+        }
+    }
+
+    /** Skips to the end of the current element; the reader must be on its start tag. */
+    static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    static String attribute(XMLStreamReader xml, String name) {
+        String value = xml.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    static double parseTime(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(value.replace(",", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+}
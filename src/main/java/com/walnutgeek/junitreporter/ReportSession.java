@@ -0,0 +1,241 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the {@link TestSuiteReporter}s of a test run and writes their reports in
+ * parallel on a bounded pool of threads.
+ *
+ * <p>Writing is throttled by an estimate of the memory each suite needs while
+ * its reports are produced (buffered output plus a fixed amount per test case):
+ * a suite is only handed to the pool once its estimate fits in the session's
+ * memory limit, so a run with a few huge suites does not write them all at once.
+ */
+public class ReportSession implements Closeable {
+
+    /** Rough per-test-case cost of rendering, in bytes. */
+    private static final long BYTES_PER_TEST_CASE = 512;
+    private static final int KIB = 1024;
+
+    private final ConcurrentHashMap<String, TestSuiteReporter> suites = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<String> suiteOrder = new ConcurrentLinkedQueue<>();
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile long memoryLimit = 256L * 1024 * 1024;
+    private volatile ReportOptions options = ReportOptions.DEFAULT;
+    private volatile ReporterMetrics metrics = ReporterMetrics.NONE;
+
+    public TestSuiteReporter suite(String suiteName) {
+        return suites.computeIfAbsent(suiteName, k -> newSuite(new TestSuiteReporter(k)));
+    }
+
+    /** Like {@link #suite(String)}, giving a newly created suite the timestamp of a report being read. */
+    TestSuiteReporter suite(String suiteName, String timestamp) {
+        if (timestamp == null) {
+            return suite(suiteName);
+        }
+        return suites.computeIfAbsent(suiteName, k -> newSuite(new TestSuiteReporter(k, timestamp)));
+    }
+
+    private TestSuiteReporter newSuite(TestSuiteReporter suite) {
+        suiteOrder.add(suite.getName());
+        ReporterMetrics m = metrics;
+        if (m != ReporterMetrics.NONE) {
+            suite.setMetrics(m);
+        }
+        return suite;
+    }
+
+    public int getSuiteCount() {
+        return suites.size();
+    }
+
+    /** Number of threads writing reports; defaults to the number of processors. */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Upper bound on the estimated memory of suites being written at the same
+     * time; defaults to 256 MiB. A suite larger than the limit is written alone.
+     */
+    public void setMemoryLimit(long bytes) {
+        if (bytes < KIB) {
+            throw new IllegalArgumentException("memory limit must be at least 1 KiB");
+        }
+        this.memoryLimit = bytes;
+    }
+
+    /** Options for every file the session writes; defaults to {@link ReportOptions#DEFAULT}. */
+    public void setReportOptions(ReportOptions options) {
+        this.options = options;
+    }
+
+    /** Installs {@code metrics} on every suite of the session, current and future. */
+    public void setMetrics(ReporterMetrics metrics) {
+        this.metrics = metrics == null ? ReporterMetrics.NONE : metrics;
+        for (TestSuiteReporter suite : suites.values()) {
+            suite.setMetrics(this.metrics);
+        }
+    }
+
+    /** Writes {@code TEST-{name}.xml} and {@code {name}.txt} for every suite. */
+    public void writeAll(final File outputDir) throws IOException {
+        final ReportOptions options = this.options;
+        List<TestSuiteReporter> ordered = getOrderedSuites();
+        int limitKib = (int) Math.min(Integer.MAX_VALUE, memoryLimit / KIB);
+        final Semaphore memory = new Semaphore(limitKib);
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(parallelism, Math.max(1, ordered.size())), new WriterThreadFactory());
+        List<Future<?>> futures = new ArrayList<>(ordered.size());
+        try {
+            for (final TestSuiteReporter suite : ordered) {
+                final int weight = (int) Math.min(limitKib, Math.max(1, estimateBytes(suite) / KIB));
+                memory.acquire(weight);
+                try {
+                    futures.add(pool.submit(() -> {
+                        try {
+                            suite.writeXml(outputDir, options);
+                            suite.writeText(outputDir, options);
+                        } finally {
+                            memory.release(weight);
+                        }
+                        return null;
+                    }));
+                } catch (RuntimeException e) {
+                    memory.release(weight);
+                    throw e;
+                }
+            }
+            awaitAll(futures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> f : futures) f.cancel(true);
+            throw new InterruptedIOException("interrupted while writing reports");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Reads existing XML reports into the session's suites in parallel, see
+     * {@link ReportReader}. Suites with the same name are merged into one.
+     */
+    public void readReports(Collection<File> reports) throws IOException {
+        readAll(reports, report -> ReportReader.read(report, this::suite), "reports");
+    }
+
+    /**
+     * Reads result logs written by forked JVMs into the session's suites in
+     * parallel, see {@link ResultLog}. Suites with the same name are merged into one.
+     */
+    public void readResultLogs(Collection<File> logs) throws IOException {
+        readAll(logs, log -> ResultLog.read(log, this::suite), "result logs");
+    }
+
+    private interface FileReader {
+        void read(File file) throws IOException;
+    }
+
+    private void readAll(Collection<File> files, FileReader reader, String what) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(parallelism, Math.max(1, files.size())), new WriterThreadFactory());
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        try {
+            for (final File file : files) {
+                futures.add(pool.submit(() -> {
+                    reader.read(file);
+                    return null;
+                }));
+            }
+            awaitAll(futures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> f : futures) f.cancel(true);
+            throw new InterruptedIOException("interrupted while reading " + what);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Writes all suites into one {@code <testsuites>} report, compressed if the report options ask for it. */
+    public void writeAggregatedXml(File file, String name) throws IOException {
+        try (ReportFiles.Output output = ReportFiles.create(file, options)) {
+            new StreamingXmlWriter(output.writer()).writeAll(name, getOrderedSuites());
+            output.commit();
+        }
+    }
+
+    /** Closes every suite, deleting spilled output. */
+    @Override
+    public void close() {
+        for (TestSuiteReporter suite : suites.values()) {
+            suite.close();
+        }
+    }
+
+    List<TestSuiteReporter> getOrderedSuites() {
+        List<TestSuiteReporter> ordered = new ArrayList<>();
+        for (String suiteName : suiteOrder) {
+            TestSuiteReporter suite = suites.get(suiteName);
+            if (suite != null) {
+                ordered.add(suite);
+            }
+        }
+        return ordered;
+    }
+
+    private static long estimateBytes(TestSuiteReporter suite) {
+        return suite.getBufferedOutputBytes() + suite.getTestCount() * BYTES_PER_TEST_CASE;
+    }
+
+    static void awaitAll(List<Future<?>> futures) throws IOException, InterruptedException {
+        IOException failure = null;
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                IOException io = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                if (failure == null) {
+                    failure = io;
+                } else {
+                    failure.addSuppressed(io);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    static final class WriterThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "junit-reporter-writer-" + COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
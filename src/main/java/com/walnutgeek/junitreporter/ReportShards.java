@@ -0,0 +1,174 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits the XML report of a suite into shards within the limits of
+ * {@link ReportOptions#withShardLimits}, and writes them in parallel.
+ *
+ * <p>Cases are assigned to shards in report order by count and by an estimate
+ * of their size: journaled cases by the length of their fragment, cases in
+ * memory by {@link TestCaseReporter.Snapshot#estimateXmlBytes()}.
+ * A case larger than the byte limit gets a shard of its own.
+ */
+final class ReportShards {
+
+    /** Cases of one shard and their totals. */
+    static final class Shard {
+        /** Indexes of the shard's cases in {@link SuiteSnapshot#getTestCases()}. */
+        final int[] cases;
+        final TestSuiteReporter.Summary summary;
+
+        Shard(int[] cases, TestSuiteReporter.Summary summary) {
+            this.cases = cases;
+            this.summary = summary;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxCases;
+    private final List<Shard> shards = new ArrayList<>();
+    private int[] cases = new int[16];
+    private int count;
+    private long bytes;
+    private int failures;
+    private int errors;
+    private long timeNanos;
+
+    private ReportShards(long maxBytes, int maxCases) {
+        this.maxBytes = maxBytes;
+        this.maxCases = maxCases;
+    }
+
+    /** Assigns the cases of {@code suite} to shards; always returns at least one. */
+    static List<Shard> plan(SuiteSnapshot suite, long maxBytes, int maxCases) throws IOException {
+        ReportShards plan = new ReportShards(maxBytes, maxCases);
+        List<TestCaseReporter.Snapshot> cases = suite.getTestCases();
+        ReportJournal.CaseReader journal = null;
+        try {
+            for (int i = 0; i < cases.size(); i++) {
+                TestCaseReporter.Snapshot tc = cases.get(i);
+                if (!suite.isJournaled(i)) {
+                    plan.add(i, tc.estimateXmlBytes(), tc.hasFailure(), tc.hasError(), tc.getTimeNanos());
+                    continue;
+                }
+                if (journal == null) {
+                    journal = new ReportJournal.CaseReader(suite.getJournalFile());
+                }
+                journal.read(suite.getJournalOffset(i));
+                plan.add(i, journal.fragmentLength(), journal.failed(), journal.errored(), journal.timeNanos);
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+        if (plan.count > 0 || plan.shards.isEmpty()) {
+            plan.close();
+        }
+        return plan.shards;
+    }
+
+    /**
+     * Writes {@code suite} to {@code {baseName}.xml} if it fits in one shard, and
+     * to {@code {baseName}-1.xml}, {@code {baseName}-2.xml}, ... in parallel otherwise.
+     * Report files of a different split left over from an earlier run are deleted.
+     *
+     * @param files receives the files written
+     * @return the total size of the files written
+     */
+    static long write(final SuiteSnapshot suite, File outputDir, String baseName, final ReportOptions options,
+                      List<File> files) throws IOException {
+        List<Shard> shards = plan(suite, options.getMaxShardBytes(), options.getMaxShardCases());
+        File unsharded = new File(outputDir, options.fileName(baseName + ".xml"));
+        if (shards.size() == 1) {
+            long bytes = StreamingXmlWriter.writeReport(unsharded, options, writer -> writer.write(suite), files);
+            deleteShards(outputDir, baseName, options, 1);
+            return bytes;
+        }
+
+        final AtomicLong bytes = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(shards.size(), Runtime.getRuntime().availableProcessors()),
+                new ReportSession.WriterThreadFactory());
+        List<Future<?>> futures = new ArrayList<>(shards.size());
+        List<List<File>> shardFiles = new ArrayList<>(shards.size());
+        try {
+            for (int n = 0; n < shards.size(); n++) {
+                final Shard shard = shards.get(n);
+                final File file = shardFile(outputDir, baseName, n + 1, options);
+                final List<File> written = new ArrayList<>(2);
+                shardFiles.add(written);
+                futures.add(pool.submit(() -> {
+                    bytes.addAndGet(StreamingXmlWriter.writeReport(file, options,
+                            writer -> writer.writeShard(suite, shard), written));
+                    return null;
+                }));
+            }
+            ReportSession.awaitAll(futures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<?> f : futures) f.cancel(true);
+            throw new InterruptedIOException("interrupted while writing report shards");
+        } finally {
+            pool.shutdown();
+        }
+        for (List<File> written : shardFiles) {
+            files.addAll(written);
+        }
+        Files.deleteIfExists(unsharded.toPath());
+        Files.deleteIfExists(indexFile(unsharded).toPath());
+        deleteShards(outputDir, baseName, options, shards.size() + 1);
+        return bytes.get();
+    }
+
+    static File shardFile(File outputDir, String baseName, int number, ReportOptions options) {
+        return new File(outputDir, options.fileName(baseName + "-" + number + ".xml"));
+    }
+
+    /** Deletes shards numbered from {@code first} up to the first one missing, with their indexes. */
+    private static void deleteShards(File outputDir, String baseName, ReportOptions options, int first)
+            throws IOException {
+        for (int n = first; ; n++) {
+            File shard = shardFile(outputDir, baseName, n, options);
+            if (!Files.deleteIfExists(shard.toPath())) break;
+            Files.deleteIfExists(indexFile(shard).toPath());
+        }
+    }
+
+    private static File indexFile(File report) {
+        return new File(report.getPath() + SummaryIndex.SUFFIX);
+    }
+
+    /** Adds case {@code index} to the current shard, first closing it if the case would not fit. */
+    private void add(int index, long size, boolean failed, boolean errored, long nanos) {
+        if (count > 0 && (count == maxCases || bytes + size > maxBytes)) {
+            close();
+        }
+        if (count == cases.length) {
+            cases = Arrays.copyOf(cases, count * 2);
+        }
+        cases[count++] = index;
+        bytes += size;
+        if (failed) failures++;
+        if (errored) errors++;
+        timeNanos += nanos;
+    }
+
+    private void close() {
+        shards.add(new Shard(Arrays.copyOf(cases, count),
+                new TestSuiteReporter.Summary(count, failures, errors, timeNanos)));
+        count = failures = errors = 0;
+        bytes = timeNanos = 0;
+    }
+}
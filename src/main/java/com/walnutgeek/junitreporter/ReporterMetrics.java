@@ -0,0 +1,49 @@
+package com.walnutgeek.junitreporter;
+
+/**
+ * Listener for what the reporter itself costs. Install one with
+ * {@link TestSuiteReporter#setMetrics}; every method has an empty default, and
+ * while a suite uses {@link #NONE} no event is timed or delivered.
+ *
+ * <p>Methods are called on the thread doing the work and must be thread-safe
+ * and cheap. {@link ReporterStats} aggregates the events and exposes them over JMX.
+ */
+public interface ReporterMetrics {
+
+    /** Serialization operations of a suite. */
+    enum Operation {
+        TO_DOCUMENT, WRITE_XML, WRITE_TEXT
+    }
+
+    /** Disabled metrics, the default. */
+    ReporterMetrics NONE = new ReporterMetrics() {
+    };
+
+    /** Called when {@link TestSuiteReporter#setMetrics} installs this listener on a suite. */
+    default void suiteAttached(TestSuiteReporter suite) {
+    }
+
+    /** Called when {@code suite} is closed, or switches to another listener. */
+    default void suiteDetached(TestSuiteReporter suite) {
+    }
+
+    /** {@code testCase} is {@code null} for a case registered by id in a compact suite. */
+    default void testCaseCreated(TestSuiteReporter suite, TestCaseReporter testCase) {
+    }
+
+    /**
+     * Called once per test case, on its first {@link TestCaseReporter#finish()};
+     * {@code testCase} is {@code null} when finished by id in a compact suite.
+     */
+    default void testCaseFinished(TestSuiteReporter suite, TestCaseReporter testCase) {
+    }
+
+    /**
+     * Called after {@code operation} completed.
+     *
+     * @param nanos elapsed wall time
+     * @param bytes size of the file written, 0 for {@link Operation#TO_DOCUMENT}
+     */
+    default void serialized(TestSuiteReporter suite, Operation operation, long nanos, long bytes) {
+    }
+}
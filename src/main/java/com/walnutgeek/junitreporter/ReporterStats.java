@@ -0,0 +1,189 @@
+package com.walnutgeek.junitreporter;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ReporterMetrics} that aggregates the events of any number of suites
+ * and can be registered as a platform MBean.
+ *
+ * <pre>
+ * ReporterStats stats = new ReporterStats();
+ * stats.register("build");       // com.walnutgeek.junitreporter:type=ReporterStats,name=build
+ * suite.setMetrics(stats);
+ * </pre>
+ */
+public class ReporterStats implements ReporterMetrics, ReporterStatsMXBean {
+
+    private static final class OperationStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            for (long max = maxNanos.get(); nanos > max; max = maxNanos.get()) {
+                if (maxNanos.compareAndSet(max, nanos)) break;
+            }
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+
+    private final Set<TestSuiteReporter> suites = ConcurrentHashMap.newKeySet();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private final OperationStats[] operations = new OperationStats[Operation.values().length];
+    private final LongAdder bytesWritten = new LongAdder();
+    private volatile ObjectName objectName;
+
+    public ReporterStats() {
+        for (int i = 0; i < operations.length; i++) {
+            operations[i] = new OperationStats();
+        }
+    }
+
+    /** Registers this instance with the platform MBean server under {@code name}. */
+    public synchronized ObjectName register(String name) throws JMException {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+        ObjectName on = new ObjectName("com.walnutgeek.junitreporter:type=ReporterStats,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void suiteAttached(TestSuiteReporter suite) {
+        suites.add(suite);
+    }
+
+    @Override
+    public void suiteDetached(TestSuiteReporter suite) {
+        suites.remove(suite);
+    }
+
+    @Override
+    public void testCaseCreated(TestSuiteReporter suite, TestCaseReporter testCase) {
+        created.increment();
+    }
+
+    @Override
+    public void testCaseFinished(TestSuiteReporter suite, TestCaseReporter testCase) {
+        finished.increment();
+    }
+
+    @Override
+    public void serialized(TestSuiteReporter suite, Operation operation, long nanos, long bytes) {
+        operations[operation.ordinal()].record(nanos);
+        bytesWritten.add(bytes);
+    }
+
+    @Override
+    public int getSuites() {
+        return suites.size();
+    }
+
+    @Override
+    public long getTestCasesCreated() {
+        return created.sum();
+    }
+
+    @Override
+    public long getTestCasesFinished() {
+        return finished.sum();
+    }
+
+    @Override
+    public long getLiveTestCases() {
+        return Math.max(0, created.sum() - finished.sum());
+    }
+
+    @Override
+    public long getBufferedOutputBytes() {
+        long bytes = 0;
+        for (TestSuiteReporter suite : suites) {
+            bytes += suite.getBufferedOutputBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getToDocumentCount() {
+        return operations[Operation.TO_DOCUMENT.ordinal()].count.sum();
+    }
+
+    @Override
+    public long getToDocumentTotalNanos() {
+        return operations[Operation.TO_DOCUMENT.ordinal()].totalNanos.sum();
+    }
+
+    @Override
+    public long getToDocumentMaxNanos() {
+        return operations[Operation.TO_DOCUMENT.ordinal()].maxNanos.get();
+    }
+
+    @Override
+    public long getWriteXmlCount() {
+        return operations[Operation.WRITE_XML.ordinal()].count.sum();
+    }
+
+    @Override
+    public long getWriteXmlTotalNanos() {
+        return operations[Operation.WRITE_XML.ordinal()].totalNanos.sum();
+    }
+
+    @Override
+    public long getWriteXmlMaxNanos() {
+        return operations[Operation.WRITE_XML.ordinal()].maxNanos.get();
+    }
+
+    @Override
+    public long getWriteTextCount() {
+        return operations[Operation.WRITE_TEXT.ordinal()].count.sum();
+    }
+
+    @Override
+    public long getWriteTextTotalNanos() {
+        return operations[Operation.WRITE_TEXT.ordinal()].totalNanos.sum();
+    }
+
+    @Override
+    public long getWriteTextMaxNanos() {
+        return operations[Operation.WRITE_TEXT.ordinal()].maxNanos.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public void resetOperations() {
+        for (OperationStats stats : operations) {
+            stats.reset();
+        }
+        bytesWritten.reset();
+    }
+}
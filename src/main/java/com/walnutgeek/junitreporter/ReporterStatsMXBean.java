@@ -0,0 +1,41 @@
+package com.walnutgeek.junitreporter;
+
+/** JMX view of {@link ReporterStats}. Times are in nanoseconds. */
+public interface ReporterStatsMXBean {
+
+    int getSuites();
+
+    long getTestCasesCreated();
+
+    long getTestCasesFinished();
+
+    /** Test cases created but not finished yet. */
+    long getLiveTestCases();
+
+    /** Captured stdout/stderr held in memory by the attached suites, in bytes. */
+    long getBufferedOutputBytes();
+
+    long getToDocumentCount();
+
+    long getToDocumentTotalNanos();
+
+    long getToDocumentMaxNanos();
+
+    long getWriteXmlCount();
+
+    long getWriteXmlTotalNanos();
+
+    long getWriteXmlMaxNanos();
+
+    long getWriteTextCount();
+
+    long getWriteTextTotalNanos();
+
+    long getWriteTextMaxNanos();
+
+    /** Bytes of report files written, after compression. */
+    long getBytesWritten();
+
+    /** Clears the operation counters; live counts are kept. */
+    void resetOperations();
+}
@@ -0,0 +1,425 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compact binary log of test results, for forked JVMs that leave writing the
+ * reports to a later merge step.
+ *
+ * <p>A fork creates one log, attaches its suites with
+ * {@link TestSuiteReporter#setResultLog}, and every finished test case is
+ * appended as one record: suite and case names and failure types are written
+ * once to a string table and referred to by index, and captured output is
+ * copied as UTF-8 bytes. Nothing is rendered as XML in the fork.
+ * {@link ReportSession#readResultLogs} reads logs back in one pass each.
+ *
+ * <pre>
+ * // in each fork
+ * try (ResultLog log = ResultLog.create(new File(dir, "fork-" + forkNumber + ResultLog.SUFFIX))) {
+ *     suite.setResultLog(log);
+ *     ... run tests, finishing each case ...
+ * }
+ *
+ * // after all forks
+ * ReportSession session = new ReportSession();
+ * session.readResultLogs(ResultLog.findLogs(dir));
+ * session.writeAll(outputDir);
+ * </pre>
+ *
+ * <p>Layout: a magic number, then records {@code type:byte length:varint payload}.
+ * Numbers in payloads are unsigned LEB128 varints; a string is its UTF-8 length
+ * plus one (0 for {@code null}) followed by the bytes; a name is the index of a
+ * string record. Records are buffered, so a log is complete once closed; a
+ * record cut short by a crash ends the log when it is read. Latency histograms
+ * are not recorded.
+ */
+public final class ResultLog implements Closeable {
+
+    public static final String SUFFIX = ".results";
+
+    private static final int MAGIC = 0x4A524C31; // "JRL1"
+    private static final byte STRING = 'T';
+    private static final byte SUITE = 'S';
+    private static final byte PROPERTY = 'P';
+    private static final byte CASE = 'C';
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Index of every string written to the table. */
+    private final Map<String, Integer> strings = new HashMap<>();
+    /** Payload of the record being written, reused under the lock. */
+    private final RecordBuffer record = new RecordBuffer();
+    private boolean closed;
+
+    private ResultLog(File file, OutputStream out) {
+        this.file = file;
+        this.out = out;
+    }
+
+    /** Creates {@code file}, replacing an existing one. */
+    public static ResultLog create(File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            out.write(MAGIC >>> 24);
+            out.write(MAGIC >>> 16);
+            out.write(MAGIC >>> 8);
+            out.write(MAGIC);
+            return new ResultLog(file, out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /** The {@code *.results} files of {@code dir}, sorted by name. */
+    public static List<File> findLogs(File dir) throws IOException {
+        File[] files = dir.listFiles((d, fileName) -> fileName.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Records a suite and the properties it already has; its cases refer to it by name. */
+    void appendSuite(String name, String timestamp, Map<String, String> properties) throws IOException {
+        lock.lock();
+        try {
+            int id = id(name);
+            record.clear();
+            record.varint(id);
+            record.string(timestamp);
+            write(SUITE, record);
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                appendProperty(name, entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void appendProperty(String suiteName, String key, String value) throws IOException {
+        lock.lock();
+        try {
+            int id = id(suiteName);
+            record.clear();
+            record.varint(id);
+            record.string(key);
+            record.string(value);
+            write(PROPERTY, record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Encodes time, messages and output outside the lock, then appends the case. */
+    void appendCase(String suiteName, TestCaseReporter tc) throws IOException {
+        TestCaseReporter.Snapshot snapshot = tc.snapshot();
+        List<TestCaseReporter.Entry> failures = snapshot.getFailures();
+        List<TestCaseReporter.Entry> errors = snapshot.getErrors();
+        RecordBuffer body = new RecordBuffer();
+        body.varint(snapshot.getTimeNanos());
+        for (TestCaseReporter.Entry entry : failures) {
+            body.string(entry.getMessage());
+            body.string(entry.getBody());
+        }
+        for (TestCaseReporter.Entry entry : errors) {
+            body.string(entry.getMessage());
+            body.string(entry.getBody());
+        }
+        Utf8.ByteArrayWriter output = new Utf8.ByteArrayWriter(256);
+        snapshot.writeStdout(output);
+        output.end();
+        body.bytes(output.array(), output.size());
+        output.reset();
+        snapshot.writeStderr(output);
+        output.end();
+        body.bytes(output.array(), output.size());
+
+        lock.lock();
+        try {
+            int suite = id(suiteName);
+            int name = id(snapshot.getName());
+            int[] types = new int[failures.size() + errors.size()];
+            for (int i = 0; i < types.length; i++) {
+                TestCaseReporter.Entry entry = i < failures.size() ? failures.get(i) : errors.get(i - failures.size());
+                types[i] = id(entry.getType() == null ? "" : entry.getType());
+            }
+            record.clear();
+            record.varint(suite);
+            record.varint(name);
+            record.varint(failures.size());
+            record.varint(errors.size());
+            for (int type : types) {
+                record.varint(type);
+            }
+            record.append(body);
+            write(CASE, record);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes buffered records to the file. */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Index of {@code s} in the string table, adding it first if needed. Call with the lock held. */
+    private int id(String s) throws IOException {
+        Integer id = strings.get(s);
+        if (id != null) {
+            return id;
+        }
+        int next = strings.size();
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.write(STRING);
+        writeVarint(out, utf8.length);
+        out.write(utf8);
+        strings.put(s, next);
+        return next;
+    }
+
+    private void write(byte type, RecordBuffer payload) throws IOException {
+        if (closed) {
+            throw new IOException("Result log is closed: " + file);
+        }
+        out.write(type);
+        writeVarint(out, payload.size);
+        out.write(payload.bytes, 0, payload.size);
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Reads every suite of a log into the suite returned by {@code suites}; a
+     * {@code null} suite skips its cases. Reading stops at the first incomplete record.
+     */
+    public static void read(File file, ReportReader.SuiteFactory suites) throws IOException {
+        try (DataInputStream in = new DataInputStream(ReportFiles.openInput(file))) {
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a result log: " + file);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Not a result log: " + file);
+            }
+            List<String> strings = new ArrayList<>();
+            Map<Integer, TestSuiteReporter> suiteById = new HashMap<>();
+            RecordReader record = new RecordReader();
+            for (int type = in.read(); type != -1; type = in.read()) {
+                if (!record.read(in)) {
+                    break;
+                }
+                if (type == STRING) {
+                    strings.add(new String(record.bytes, 0, record.size, StandardCharsets.UTF_8));
+                } else if (type == SUITE) {
+                    int id = record.varint();
+                    suiteById.put(id, suites.suite(strings.get(id), record.string()));
+                } else if (type == PROPERTY) {
+                    TestSuiteReporter suite = suiteById.get(record.varint());
+                    if (suite != null) {
+                        suite.addProperty(record.string(), record.string());
+                    }
+                } else if (type == CASE) {
+                    TestSuiteReporter suite = suiteById.get(record.varint());
+                    if (suite != null) {
+                        readCase(record, strings, suite);
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt result log: " + file, e);
+        }
+    }
+
+    private static void readCase(RecordReader record, List<String> strings, TestSuiteReporter suite) {
+        TestCaseReporter tc = suite.testCase(strings.get(record.varint()));
+        int failures = record.varint();
+        int errors = record.varint();
+        String[] types = new String[failures + errors];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = strings.get(record.varint());
+        }
+        tc.setTimeNanos(record.varlong());
+        for (int i = 0; i < types.length; i++) {
+            String message = record.string();
+            String body = record.string();
+            if (i < failures) {
+                tc.addFailure(types[i], message, body);
+            } else {
+                tc.addError(types[i], message, body);
+            }
+        }
+        int length = record.varint();
+        tc.addStdout(record.bytes, record.skip(length), length);
+        length = record.varint();
+        tc.addStderr(record.bytes, record.skip(length), length);
+    }
+
+    /** Growable byte array that payloads are encoded into. */
+    private static final class RecordBuffer {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            ensure(10 + s.length() * Utf8.MAX_BYTES_PER_CHAR);
+            int start = size;
+            // reserve the longest varint, then move the bytes if the length turns out shorter
+            int end = Utf8.encode(s, 0, s.length(), bytes, start + 5);
+            int length = end - start - 5;
+            varint(length + 1L);
+            System.arraycopy(bytes, start + 5, bytes, size, length);
+            size += length;
+        }
+
+        /** Appends {@code b[0, len)} with its length in front. */
+        void bytes(byte[] b, int len) {
+            varint(len);
+            write(b, 0, len);
+        }
+
+        void append(RecordBuffer other) {
+            write(other.bytes, 0, other.size);
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        void ensure(int extra) {
+            if (bytes.length - size < extra) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    /** Payload of one record being read. */
+    private static final class RecordReader {
+        byte[] bytes = new byte[256];
+        int size;
+        int position;
+
+        /** Reads a length-prefixed payload; {@code false} if the log ends first. */
+        boolean read(DataInputStream in) throws IOException {
+            long length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                if (b == -1 || shift > 28) return false;
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            if (length > Integer.MAX_VALUE - 8) return false;
+            if (bytes.length < length) {
+                bytes = new byte[(int) Math.max(length, bytes.length * 2L)];
+            }
+            try {
+                in.readFully(bytes, 0, (int) length);
+            } catch (EOFException e) {
+                return false;
+            }
+            size = (int) length;
+            position = 0;
+            return true;
+        }
+
+        int varint() {
+            long value = varlong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IndexOutOfBoundsException("varint out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        long varlong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position >= size) {
+                    throw new IndexOutOfBoundsException("record ends inside a number");
+                }
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        String string() {
+            int length = varint();
+            if (length == 0) return null;
+            return new String(bytes, skip(length - 1), length - 1, StandardCharsets.UTF_8);
+        }
+
+        /** Moves past {@code length} bytes and returns where they start. */
+        int skip(int length) {
+            if (length > size - position) {
+                throw new IndexOutOfBoundsException("record ends inside a field");
+            }
+            int start = position;
+            position += length;
+            return start;
+        }
+    }
+}
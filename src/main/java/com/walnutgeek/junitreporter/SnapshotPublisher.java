@@ -0,0 +1,131 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically writes a {@link SuiteSnapshot} of a running suite to a report
+ * file, for dashboards that follow a test run while it is in progress.
+ *
+ * <p>Each publish takes a snapshot, which never blocks threads reporting
+ * results, and writes it on the publisher's own daemon thread. The file is
+ * replaced atomically, so a reader sees either the previous or the new report.
+ * A failed publish, whether the file could not be written or rendering a case
+ * threw, is kept in {@link #getLastError()} and retried on the next tick.
+ * A tick finding the suite at the {@linkplain TestSuiteReporter#getVersion() version}
+ * it last published, and the file as it left it, writes nothing.
+ *
+ * <pre>
+ * try (SnapshotPublisher publisher = new SnapshotPublisher(suite, new File(dir, "TEST-live.xml"))) {
+ *     publisher.start(5, TimeUnit.SECONDS);
+ *     ... run tests ...
+ * }
+ * </pre>
+ */
+public class SnapshotPublisher implements Closeable {
+
+    private final TestSuiteReporter suite;
+    private final File file;
+    private final ReportOptions options;
+    private final AtomicLong published = new AtomicLong();
+    private volatile Exception lastError;
+    /** Suite version and file timestamp of the last publish; -1 before the first. */
+    private volatile long publishedVersion = -1;
+    private volatile long publishedModified;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> task;
+
+    public SnapshotPublisher(TestSuiteReporter suite, File file) {
+        this(suite, file, ReportOptions.DEFAULT);
+    }
+
+    /** {@code file} is used as given: {@code options} do not add a {@code .gz} suffix. */
+    public SnapshotPublisher(TestSuiteReporter suite, File file, ReportOptions options) {
+        this.suite = suite;
+        this.file = file;
+        this.options = options;
+    }
+
+    /** Publishes every {@code interval}, measured from the end of the previous publish. */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        if (executor != null) {
+            throw new IllegalStateException("Already started");
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ReportSession.WriterThreadFactory());
+        task = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (suite.getVersion() != publishedVersion || file.lastModified() != publishedModified) {
+                        publishNow();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // kept in lastError, the next tick tries again; a throw would cancel the schedule
+                }
+            }
+        }, 0, interval, unit);
+    }
+
+    /** Writes a snapshot on the calling thread. */
+    public void publishNow() throws IOException {
+        long version = suite.getVersion();
+        SuiteSnapshot snapshot = suite.snapshot();
+        try (ReportFiles.Output output = ReportFiles.create(file, options)) {
+            new StreamingXmlWriter(output.writer()).write(snapshot);
+            output.commit();
+        } catch (IOException | RuntimeException e) {
+            lastError = e;
+            throw e;
+        }
+        lastError = null;
+        publishedVersion = version;
+        publishedModified = file.lastModified();
+        published.incrementAndGet();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Number of snapshots written so far. */
+    public long getPublishCount() {
+        return published.get();
+    }
+
+    /**
+     * Failure of the most recent publish, or {@code null} if it succeeded: an
+     * {@link IOException}, or a {@link RuntimeException} such as one thrown while
+     * rendering a failure's {@link Throwable}.
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /** Stops scheduled publishing, waiting for a publish in progress to finish. */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService stopped;
+        synchronized (this) {
+            stopped = executor;
+            if (stopped == null) return;
+            task.cancel(false);
+            stopped.shutdown();
+            executor = null;
+            task = null;
+        }
+        try {
+            stopped.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
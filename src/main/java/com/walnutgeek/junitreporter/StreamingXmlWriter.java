@@ -0,0 +1,516 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Surefire-compatible XML for a {@link TestSuiteReporter} straight to a
+ * {@link Writer}, without building a JDOM tree first.
+ *
+ * <p>The output is indented the same way as {@code toDocument()} run through a
+ * pretty {@code XMLOutputter}, except that text content is written verbatim.
+ * Text and attribute values go through {@link XmlEscaper}, which replaces
+ * characters XML cannot represent, so a stray control character in captured
+ * output does not make the report unreadable.
+ */
+public class StreamingXmlWriter {
+
+    private static final String INDENT = "  ";
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    /** Cases whose element is estimated to fit in this many bytes keep it cached, see {@link #writeCase}. */
+    static final int MAX_CACHED_FRAGMENT = 1024;
+
+    private final Writer out;
+    private final Utf8.RawWriter raw;
+    private final XmlEscaper.TextWriter characters;
+    private final FixedPointFormat numbers = new FixedPointFormat();
+    /** Names of the open elements. */
+    private final List<String> open = new ArrayList<>();
+    /** Whether the last start tag still needs its {@code >}, or its {@code />} for an empty element. */
+    private boolean startTagOpen;
+    private boolean emptyElement;
+    /** Indentation of the current {@code <testsuite>} element. */
+    private int depth;
+    /** Renders fragments to cache, created on first use. */
+    private Utf8.ByteArrayWriter fragmentBuffer;
+    private StreamingXmlWriter fragmentWriter;
+    /** Collects where cases go when the report gets a summary index, see {@link #indexTo}. */
+    private SummaryIndex.Builder index;
+    private ReportFiles.Output indexed;
+
+    /** What goes into one report file, see {@link #writeReport}. */
+    interface Body {
+        void writeTo(StreamingXmlWriter writer) throws IOException;
+    }
+
+    public StreamingXmlWriter(Writer writer) throws IOException {
+        this.out = writer;
+        this.raw = writer instanceof Utf8.RawWriter ? (Utf8.RawWriter) writer : null;
+        this.characters = new XmlEscaper.TextWriter(writer);
+    }
+
+    /**
+     * Writes {@code file} and, when {@code options} ask for it, its {@link SummaryIndex}
+     * once the report is in place; otherwise deletes an index left from an earlier write.
+     *
+     * @param files receives the files written
+     * @return the size of the report
+     */
+    static long writeReport(File file, ReportOptions options, Body body, List<File> files) throws IOException {
+        File indexFile = new File(file.getPath() + SummaryIndex.SUFFIX);
+        SummaryIndex.Builder builder = options.isSummaryIndex() ? new SummaryIndex.Builder() : null;
+        long bytes;
+        try (ReportFiles.Output output = ReportFiles.create(file, options)) {
+            StreamingXmlWriter writer = new StreamingXmlWriter(output.writer());
+            if (builder != null) {
+                writer.index = builder;
+                writer.indexed = output;
+            }
+            body.writeTo(writer);
+            bytes = output.commit();
+        }
+        files.add(file);
+        if (builder != null) {
+            ReportFiles.write(indexFile, builder.toByteArray(bytes), options.isForce());
+            files.add(indexFile);
+        } else {
+            Files.deleteIfExists(indexFile.toPath());
+        }
+        return bytes;
+    }
+
+    public void write(TestSuiteReporter suite) throws IOException {
+        write(suite.snapshot());
+    }
+
+    /** Writes the report of a suite as it was when {@code suite} was taken. */
+    public void write(SuiteSnapshot suite) throws IOException {
+        writeStartDocument();
+        writeSuite(suite);
+        endDocument();
+    }
+
+    /**
+     * Writes an aggregated report: a {@code <testsuites>} element with totals over
+     * all suites, containing one {@code <testsuite>} per suite.
+     */
+    public void writeAll(String name, Collection<TestSuiteReporter> suites) throws IOException {
+        List<SuiteSnapshot> snapshots = new ArrayList<>(suites.size());
+        for (TestSuiteReporter suite : suites) {
+            snapshots.add(suite.snapshot());
+        }
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        long timeNanos = 0;
+        for (SuiteSnapshot suite : snapshots) {
+            TestSuiteReporter.Summary summary = suite.getSummary();
+            tests += summary.getTests();
+            failures += summary.getFailures();
+            errors += summary.getErrors();
+            timeNanos += summary.getTimeNanos();
+        }
+
+        writeStartDocument();
+        writeSuitesStart(name, tests, failures, errors, timeNanos);
+        depth = 1;
+        for (SuiteSnapshot suite : snapshots) {
+            writeSuite(suite);
+        }
+        depth = 0;
+        indent(0);
+        endElement();
+        endDocument();
+    }
+
+    /**
+     * Writes a single {@code <testcase>} element, indented for a top-level
+     * {@code <testsuite>}, with no XML declaration.
+     */
+    void writeFragment(TestCaseReporter.Snapshot tc) throws IOException {
+        writeTestCase(tc);
+        closeStartTag();
+    }
+
+    /** Writes one shard of a suite's report, see {@link ReportShards}. */
+    void writeShard(SuiteSnapshot suite, ReportShards.Shard shard) throws IOException {
+        writeStartDocument();
+        writeSuiteStart(suite.getName(), shard.summary, suite.getTimestamp(), suite.getProperties());
+        writeCases(suite, shard.cases, shard.cases.length);
+        indent(0);
+        endElement();
+        endDocument();
+    }
+
+    /** Writes a report from the records of a journal, see {@link ReportJournal#recover}. */
+    void writeRecovered(String name, String timestamp, TestSuiteReporter.Summary summary,
+                        Map<String, String> properties, File journalFile) throws IOException {
+        writeStartDocument();
+        writeSuiteStart(name, summary, timestamp, properties);
+        closeStartTag();
+        ReportJournal.copyCasesTo(journalFile, Long.MAX_VALUE, out);
+        indent(0);
+        endElement();
+        endDocument();
+    }
+
+    /**
+     * Writes a {@code <testsuites>} element with the given totals around
+     * {@code <testsuite>} fragments copied verbatim from UTF-8 files, see
+     * {@link ReportMerger}.
+     */
+    void writeMerged(String name, TestSuiteReporter.Summary total, List<File> fragments) throws IOException {
+        writeStartDocument();
+        writeSuitesStart(name, total.getTests(), total.getFailures(), total.getErrors(), total.getTimeNanos());
+        closeStartTag();
+        char[] buf = new char[COPY_BUFFER_SIZE];
+        for (File fragment : fragments) {
+            try (Reader in = new InputStreamReader(new FileInputStream(fragment), StandardCharsets.UTF_8)) {
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+        indent(0);
+        endElement();
+        endDocument();
+    }
+
+    private void writeSuitesStart(String name, int tests, int failures, int errors, long timeNanos)
+            throws IOException {
+        out.write('\n');
+        startElement("testsuites");
+        attribute("name", name);
+        intAttribute("tests", tests);
+        intAttribute("failures", failures);
+        intAttribute("errors", errors);
+        attribute("skipped", "0");
+        secondsAttribute("time", timeNanos);
+    }
+
+    private void writeSuite(SuiteSnapshot suite) throws IOException {
+        writeSuiteStart(suite.getName(), suite.getSummary(), suite.getTimestamp(), suite.getProperties());
+        writeCases(suite, null, suite.getTestCases().size());
+        indent(0);
+        endElement();
+    }
+
+    private void writeSuiteStart(String name, TestSuiteReporter.Summary summary, String timestamp,
+                                 Map<String, String> properties) throws IOException {
+        indent(0);
+        startElement("testsuite");
+        attribute("name", name);
+        intAttribute("tests", summary.getTests());
+        intAttribute("failures", summary.getFailures());
+        intAttribute("errors", summary.getErrors());
+        attribute("skipped", "0");
+        secondsAttribute("time", summary.getTimeNanos());
+        attribute("timestamp", timestamp);
+        if (index != null) {
+            index.suite(name);
+        }
+
+        if (!properties.isEmpty()) {
+            indent(1);
+            startElement("properties");
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                indent(2);
+                emptyElement("property");
+                attribute("name", entry.getKey());
+                attribute("value", entry.getValue());
+            }
+            indent(1);
+            endElement();
+        }
+    }
+
+    /**
+     * Writes the cases at {@code indexes}, or the first {@code count} cases when
+     * {@code indexes} is {@code null}, in order. Journaled cases are copied from
+     * the journal.
+     */
+    private void writeCases(SuiteSnapshot suite, int[] indexes, int count) throws IOException {
+        List<TestCaseReporter.Snapshot> cases = suite.getTestCases();
+        ReportJournal.CaseReader journal = null;
+        try {
+            for (int n = 0; n < count; n++) {
+                int i = indexes == null ? n : indexes[n];
+                if (!suite.isJournaled(i)) {
+                    writeCase(cases.get(i));
+                    continue;
+                }
+                if (journal == null) {
+                    journal = new ReportJournal.CaseReader(suite.getJournalFile());
+                }
+                journal.read(suite.getJournalOffset(i));
+                copyJournaled(cases.get(i).getName(), journal);
+            }
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
+
+    /** Writes a case, recording its place in the report when there is a summary index. */
+    private void writeCase(TestCaseReporter.Snapshot tc) throws IOException {
+        if (index == null) {
+            writeCaseElement(tc);
+            return;
+        }
+        closeStartTag();
+        long start = indexed.position() + leadLength();
+        writeCaseElement(tc);
+        closeStartTag();
+        index.add(tc.getName(), tc.hasFailure(), tc.hasError(), tc.getTimeNanos(), start,
+                indexed.position() - start);
+    }
+
+    /**
+     * Writes a case, reusing the element rendered for it last time if the case
+     * has not changed since. Small elements of a top-level suite are cached with
+     * their case, up to a per-suite total, so a suite written again and again only
+     * renders what changed.
+     */
+    private void writeCaseElement(TestCaseReporter.Snapshot tc) throws IOException {
+        if (depth != 0) {
+            writeTestCase(tc);
+            return;
+        }
+        byte[] fragment = tc.cachedFragment();
+        if (fragment == null) {
+            if (tc.estimateXmlBytes() > MAX_CACHED_FRAGMENT) {
+                writeTestCase(tc);
+                return;
+            }
+            if (fragmentWriter == null) {
+                fragmentBuffer = new Utf8.ByteArrayWriter(MAX_CACHED_FRAGMENT);
+                fragmentWriter = new StreamingXmlWriter(fragmentBuffer);
+            }
+            fragmentBuffer.reset();
+            fragmentWriter.writeFragment(tc);
+            fragment = fragmentBuffer.toByteArray();
+            tc.cacheFragment(fragment);
+        }
+        closeStartTag();
+        if (raw != null) {
+            raw.writeUtf8(fragment, 0, fragment.length);
+        } else {
+            out.write(new String(fragment, StandardCharsets.UTF_8));
+        }
+    }
+
+    /** Copies the case {@code journal} last read, indexing it if needed. */
+    private void copyJournaled(String name, ReportJournal.CaseReader journal) throws IOException {
+        closeStartTag();
+        if (index == null) {
+            writeIndented(journal.fragment());
+            return;
+        }
+        long start = indexed.position() + leadLength();
+        writeIndented(journal.fragment());
+        index.add(name, journal.failed(), journal.errored(), journal.timeNanos, start, indexed.position() - start);
+    }
+
+    /**
+     * Writes a fragment rendered for a top-level suite, adding {@link #depth}
+     * levels to each line of indentation.
+     */
+    private void writeIndented(String fragment) throws IOException {
+        if (depth == 0) {
+            out.write(fragment);
+            return;
+        }
+        int from = 0;
+        for (int i = fragment.indexOf('\n'); i >= 0; i = fragment.indexOf('\n', i + 1)) {
+            if (isIndentation(fragment, i)) {
+                out.write(fragment, from, i + 1 - from);
+                for (int d = 0; d < depth; d++) {
+                    out.write(INDENT);
+                }
+                from = i + 1;
+            }
+        }
+        out.write(fragment, from, fragment.length() - from);
+    }
+
+    /**
+     * Whether the line break at {@code i} starts indentation rather than being
+     * text. Markup characters in text are escaped and the text elements hold no
+     * child elements, so text can only be followed by the end tag of its element,
+     * while indentation precedes any other tag.
+     */
+    private static boolean isIndentation(String fragment, int i) {
+        int j = i + 1;
+        while (j < fragment.length() && fragment.charAt(j) == ' ') {
+            j++;
+        }
+        if (j == fragment.length() || fragment.charAt(j) != '<') return false;
+        return !fragment.startsWith("/", j + 1) || fragment.startsWith("/testcase>", j + 1)
+                || fragment.startsWith("/properties>", j + 1);
+    }
+
+    /** Bytes of the line break and indentation before a {@code <testcase>} element. */
+    private int leadLength() {
+        return 1 + INDENT.length() * (depth + 1);
+    }
+
+    private void writeTestCase(TestCaseReporter.Snapshot tc) throws IOException {
+        List<TestCaseReporter.Entry> failures = tc.getFailures();
+        List<TestCaseReporter.Entry> errors = tc.getErrors();
+        boolean hasStdout = tc.hasStdout();
+        boolean hasStderr = tc.hasStderr();
+        LatencyHistogram.Stats latency = tc.getLatency();
+        boolean empty = failures.isEmpty() && errors.isEmpty() && !hasStdout && !hasStderr && latency == null;
+
+        indent(1);
+        if (empty) {
+            emptyElement("testcase");
+        } else {
+            startElement("testcase");
+        }
+        attribute("name", tc.getName());
+        attribute("classname", tc.getClassName());
+        secondsAttribute("time", tc.getTimeNanos());
+        if (empty) return;
+
+        if (latency != null) {
+            indent(2);
+            startElement("properties");
+            long[] values = latency.propertyValues();
+            for (int i = 0; i < values.length; i++) {
+                indent(3);
+                emptyElement("property");
+                attribute("name", LatencyHistogram.Stats.PROPERTY_NAMES[i]);
+                intAttribute("value", values[i]);
+            }
+            indent(2);
+            endElement();
+        }
+        for (TestCaseReporter.Entry f : failures) {
+            writeEntry("failure", f);
+        }
+        for (TestCaseReporter.Entry e : errors) {
+            writeEntry("error", e);
+        }
+        if (hasStdout) {
+            indent(2);
+            startElement("system-out");
+            closeStartTag();
+            tc.writeStdout(characters);
+            characters.end();
+            endElement();
+        }
+        if (hasStderr) {
+            indent(2);
+            startElement("system-err");
+            closeStartTag();
+            tc.writeStderr(characters);
+            characters.end();
+            endElement();
+        }
+
+        indent(1);
+        endElement();
+    }
+
+    private void writeEntry(String elementName, TestCaseReporter.Entry entry) throws IOException {
+        indent(2);
+        startElement(elementName);
+        attribute("type", nullToEmpty(entry.getType()));
+        attribute("message", nullToEmpty(entry.getMessage()));
+        closeStartTag();
+        XmlEscaper.writeText(out, nullToEmpty(entry.getBody()));
+        endElement();
+    }
+
+    private void indent(int level) throws IOException {
+        closeStartTag();
+        out.write('\n');
+        for (int i = 0; i < depth + level; i++) {
+            out.write(INDENT);
+        }
+    }
+
+    private void writeStartDocument() throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+    }
+
+    private void endDocument() throws IOException {
+        closeStartTag();
+        out.write('\n');
+        out.flush();
+    }
+
+    private void startElement(String name) throws IOException {
+        closeStartTag();
+        out.write('<');
+        out.write(name);
+        open.add(name);
+        startTagOpen = true;
+    }
+
+    private void emptyElement(String name) throws IOException {
+        closeStartTag();
+        out.write('<');
+        out.write(name);
+        startTagOpen = true;
+        emptyElement = true;
+    }
+
+    private void attribute(String name, String value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        XmlEscaper.writeAttribute(out, value);
+        out.write('"');
+    }
+
+    /** Writes {@code value} straight from {@link #numbers}; digits need no escaping. */
+    private void intAttribute(String name, long value) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        numbers.writeInt(value, out);
+        out.write('"');
+    }
+
+    /** Writes {@code nanos} as seconds straight from {@link #numbers}. */
+    private void secondsAttribute(String name, long nanos) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        numbers.writeSeconds(nanos, out);
+        out.write('"');
+    }
+
+    private void endElement() throws IOException {
+        closeStartTag();
+        out.write("</");
+        out.write(open.remove(open.size() - 1));
+        out.write('>');
+    }
+
+    /** Finishes a pending start tag, so that content can be written to {@link #out}. */
+    private void closeStartTag() throws IOException {
+        if (!startTagOpen) return;
+        out.write(emptyElement ? "/>" : ">");
+        startTagOpen = false;
+        emptyElement = false;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+}
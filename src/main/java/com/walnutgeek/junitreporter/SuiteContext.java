@@ -0,0 +1,125 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State a {@link TestSuiteReporter} shares with its test cases: the output memory
+ * budget and retention policy, the table of interned failure text and the running
+ * totals that test cases update as results arrive, so the suite summary can be
+ * read without visiting every case.
+ */
+final class SuiteContext {
+
+    final OutputBudget outputBudget = new OutputBudget();
+    final EntryInterner entries = new EntryInterner();
+
+    final LongAdder tests = new LongAdder();
+    /** Test cases with at least one failure. */
+    final LongAdder failures = new LongAdder();
+    /** Test cases with at least one error. */
+    final LongAdder errors = new LongAdder();
+    /** Sum of test case times, in nanoseconds. */
+    final LongAdder timeNanos = new LongAdder();
+    /** Changes to the suite and its cases, see {@link TestSuiteReporter#getVersion()}. */
+    final LongAdder modifications = new LongAdder();
+    /** Bytes of rendered elements cached with the cases, at most {@link #MAX_CACHED_FRAGMENT_BYTES}. */
+    final AtomicLong cachedFragmentBytes = new AtomicLong();
+
+    /** Rendered elements a suite keeps for reuse; cases past it are rendered on every write. */
+    static final long MAX_CACHED_FRAGMENT_BYTES = 1 << 20;
+
+    volatile ReportJournal journal;
+    volatile ResultLog resultLog;
+    volatile ReporterMetrics metrics = ReporterMetrics.NONE;
+    volatile OutputRetention outputRetention = OutputRetention.KEEP_ALL;
+
+    /** Output held by finished cases, counted against {@link OutputRetention#getSuiteBudgetBytes()}. */
+    private final AtomicLong retainedOutput = new AtomicLong();
+    /** Finished passing cases holding output, oldest first, with the bytes counted for them. */
+    private final ConcurrentLinkedQueue<Retained> passingOutput = new ConcurrentLinkedQueue<>();
+
+    private static final class Retained {
+        final TestCaseReporter testCase;
+        final long bytes;
+
+        Retained(TestCaseReporter testCase, long bytes) {
+            this.testCase = testCase;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The owning suite, {@code null} for a standalone test case. */
+    final TestSuiteReporter reporter;
+
+    SuiteContext() {
+        this(null);
+    }
+
+    SuiteContext(TestSuiteReporter reporter) {
+        this.reporter = reporter;
+    }
+
+    /** Called once per test case by {@link TestCaseReporter#finish()}. */
+    void caseFinished(TestCaseReporter tc) {
+        OutputRetention retention = outputRetention;
+        boolean passing = !tc.hasFailure() && !tc.hasError();
+        long tail = retention.getPassingTailBytes();
+        if (passing && tail != OutputRetention.UNLIMITED) {
+            if (tail == 0) {
+                tc.releaseOutput();
+            } else {
+                tc.retainOutputTail(tail);
+            }
+        }
+        ReporterMetrics m = metrics;
+        if (m != ReporterMetrics.NONE) {
+            m.testCaseFinished(reporter, tc);
+        }
+        ResultLog log = resultLog;
+        if (log != null) {
+            try {
+                log.appendCase(reporter.getName(), tc);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to log test case " + tc.getName(), e);
+            }
+        }
+        ReportJournal j = journal;
+        if (j != null) {
+            try {
+                j.appendCase(tc);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to journal test case " + tc.getName(), e);
+            }
+            tc.releaseOutput();
+        }
+        long budget = retention.getSuiteBudgetBytes();
+        if (budget != OutputRetention.UNLIMITED) {
+            retain(tc, passing, budget);
+        }
+    }
+
+    /** Counts the output of a finished case and drops the oldest passing output while over {@code budget}. */
+    private void retain(TestCaseReporter tc, boolean passing, long budget) {
+        long bytes = tc.outputLength();
+        if (bytes == 0) return;
+        if (passing) {
+            passingOutput.add(new Retained(tc, bytes));
+        }
+        long total = retainedOutput.addAndGet(bytes);
+        Retained oldest;
+        while (total > budget && (oldest = passingOutput.poll()) != null) {
+            oldest.testCase.releaseOutput();
+            total = retainedOutput.addAndGet(-oldest.bytes);
+        }
+    }
+
+    /** Forgets the finished cases counted against the retention budget, once their output is released. */
+    void clearRetained() {
+        passingOutput.clear();
+        retainedOutput.set(0);
+    }
+}
@@ -0,0 +1,75 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consistent view of a suite taken by {@link TestSuiteReporter#snapshot()}
+ * while test cases may still be running. Taking one never blocks threads
+ * reporting results, and its summary always agrees with the cases it holds.
+ *
+ * <p>When the suite is journaled, the XML writer copies the cases that were
+ * already in the journal from the journal file, each in its place among the
+ * others; their snapshots keep time and failures but no captured output.
+ */
+public final class SuiteSnapshot {
+
+    private final String name;
+    private final String timestamp;
+    private final Map<String, String> properties;
+    private final TestSuiteReporter.Summary summary;
+    private final List<TestCaseReporter.Snapshot> testCases;
+    /** Per case, the offset of its journal record or -1; {@code null} without a journal. */
+    private final long[] journalOffsets;
+    private final File journalFile;
+
+    SuiteSnapshot(String name, String timestamp, Map<String, String> properties, TestSuiteReporter.Summary summary,
+                  List<TestCaseReporter.Snapshot> testCases, long[] journalOffsets, File journalFile) {
+        this.name = name;
+        this.timestamp = timestamp;
+        this.properties = Collections.unmodifiableMap(properties);
+        this.summary = summary;
+        this.testCases = Collections.unmodifiableList(testCases);
+        this.journalOffsets = journalOffsets;
+        this.journalFile = journalFile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /** Totals over the cases of the snapshot, including those only in the journal. */
+    public TestSuiteReporter.Summary getSummary() {
+        return summary;
+    }
+
+    /** All cases, in insertion order. */
+    public List<TestCaseReporter.Snapshot> getTestCases() {
+        return testCases;
+    }
+
+    /** Whether case {@code index} is written from the journal rather than from its snapshot. */
+    boolean isJournaled(int index) {
+        return journalOffsets != null && journalOffsets[index] >= 0;
+    }
+
+    /** Offset of the journal record of case {@code index}, see {@link ReportJournal.CaseReader}. */
+    long getJournalOffset(int index) {
+        return journalOffsets[index];
+    }
+
+    /** Journal holding the journaled cases, or {@code null}. */
+    File getJournalFile() {
+        return journalFile;
+    }
+}
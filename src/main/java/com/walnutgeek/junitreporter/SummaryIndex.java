@@ -0,0 +1,269 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact sidecar of an XML report listing its test cases, written as
+ * {@code TEST-{name}.xml.idx} when {@link ReportOptions#withSummaryIndex} is on.
+ * Dashboards read names, statuses and times from it without parsing the report,
+ * captured output and all, and can jump to a case's element by its offset.
+ *
+ * <pre>
+ * for (SummaryIndex.Case c : SummaryIndex.findFailures(SummaryIndex.findIndexes(reportsDir))) {
+ *     System.out.println(c.getSuiteName() + "." + c.getName() + " " + c.getTime());
+ * }
+ * </pre>
+ *
+ * <p>{@link #open} memory-maps the file, and the header carries the suite
+ * totals, so a suite without failures is passed over after reading 40 bytes.
+ *
+ * <p>Layout, big-endian: a 40-byte header {@code magic:int cases:int failures:int
+ * errors:int timeNanos:long reportLength:long suiteNameLength:int reserved:int},
+ * then one 32-byte record per case in report order {@code offset:long length:int
+ * flags:int timeNanos:long nameOffset:int nameLength:int}, then the UTF-8 suite
+ * name followed by the case names. Offsets and lengths are in bytes of the
+ * report before compression; names are located relative to the end of the suite name.
+ */
+public final class SummaryIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x4A534931; // "JSI1"
+    static final int HEADER_LENGTH = 40;
+    static final int RECORD_LENGTH = 32;
+    private static final int FAILED = 1;
+    private static final int ERRORED = 2;
+
+    /** One test case of an index. */
+    public static final class Case {
+        private final SummaryIndex index;
+        private final String name;
+        private final int flags;
+        private final long timeNanos;
+        private final long offset;
+        private final int length;
+
+        private Case(SummaryIndex index, String name, int flags, long timeNanos, long offset, int length) {
+            this.index = index;
+            this.name = name;
+            this.flags = flags;
+            this.timeNanos = timeNanos;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getSuiteName() { return index.getSuiteName(); }
+        public String getName() { return name; }
+        public boolean isFailed() { return (flags & FAILED) != 0; }
+        public boolean isErrored() { return (flags & ERRORED) != 0; }
+        public double getTime() { return timeNanos / 1e9; }
+        public long getTimeNanos() { return timeNanos; }
+        public File getReportFile() { return index.getReportFile(); }
+        /** Offset of the {@code <testcase>} element in the uncompressed report. */
+        public long getOffset() { return offset; }
+        /** Length of the element in bytes. */
+        public int getLength() { return length; }
+
+        /** Reads the case's {@code <testcase>} element from the report. */
+        public String readXml() throws IOException {
+            byte[] bytes = new byte[length];
+            try (InputStream in = ReportFiles.openInput(getReportFile())) {
+                for (long skip = offset; skip > 0; ) {
+                    long skipped = in.skip(skip);
+                    if (skipped <= 0) throw new EOFException("Report shorter than its index: " + getReportFile());
+                    skip -= skipped;
+                }
+                for (int n = 0; n < length; ) {
+                    int read = in.read(bytes, n, length - n);
+                    if (read < 0) throw new EOFException("Report shorter than its index: " + getReportFile());
+                    n += read;
+                }
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int cases;
+    private final int namesStart;
+    private String suiteName;
+
+    private SummaryIndex(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a summary index: " + file);
+        }
+        this.cases = buffer.getInt(4);
+        long names = HEADER_LENGTH + (long) cases * RECORD_LENGTH;
+        if (cases < 0 || names + buffer.getInt(32) > buffer.capacity()) {
+            throw new IOException("Truncated summary index: " + file);
+        }
+        this.namesStart = (int) names + buffer.getInt(32);
+    }
+
+    /** Maps {@code file} into memory; the mapping is released when the index is garbage collected. */
+    public static SummaryIndex open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new SummaryIndex(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** The index files in {@code dir}, sorted by name. */
+    public static List<File> findIndexes(File dir) throws IOException {
+        File[] files = dir.listFiles((d, fileName) -> fileName.endsWith(SUFFIX));
+        if (files == null) {
+            throw new IOException("Not a directory: " + dir);
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /** The failed and errored cases of all {@code indexes}, suites without any skipped by their header. */
+    public static List<Case> findFailures(Collection<File> indexes) throws IOException {
+        List<Case> found = new ArrayList<>();
+        for (File file : indexes) {
+            SummaryIndex index = open(file);
+            if (index.getFailureCount() == 0 && index.getErrorCount() == 0) continue;
+            for (int i = 0; i < index.cases; i++) {
+                if (index.flags(i) != 0) {
+                    found.add(index.getCase(i));
+                }
+            }
+        }
+        return found;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** The report the index describes: its own file without {@code .idx}. */
+    public File getReportFile() {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    public String getSuiteName() {
+        if (suiteName == null) {
+            int start = HEADER_LENGTH + cases * RECORD_LENGTH;
+            suiteName = string(start, namesStart - start);
+        }
+        return suiteName;
+    }
+
+    public int getTestCount() {
+        return cases;
+    }
+
+    public int getFailureCount() {
+        return buffer.getInt(8);
+    }
+
+    public int getErrorCount() {
+        return buffer.getInt(12);
+    }
+
+    public long getTimeNanos() {
+        return buffer.getLong(16);
+    }
+
+    /** Size of the report file when the index was written. */
+    public long getReportLength() {
+        return buffer.getLong(24);
+    }
+
+    /** Whether the report is still the size it was when the index was written. */
+    public boolean isCurrent() {
+        return getReportFile().length() == getReportLength();
+    }
+
+    public Case getCase(int i) {
+        if (i < 0 || i >= cases) {
+            throw new IndexOutOfBoundsException("case " + i + " of " + cases);
+        }
+        int record = HEADER_LENGTH + i * RECORD_LENGTH;
+        return new Case(this, string(namesStart + buffer.getInt(record + 24), buffer.getInt(record + 28)),
+                buffer.getInt(record + 12), buffer.getLong(record + 16), buffer.getLong(record),
+                buffer.getInt(record + 8));
+    }
+
+    private int flags(int i) {
+        return buffer.getInt(HEADER_LENGTH + i * RECORD_LENGTH + 12);
+    }
+
+    private String string(int position, int length) {
+        byte[] utf8 = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        ((Buffer) b).position(position);
+        b.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /** Collects the cases of a report as it is written, see {@link StreamingXmlWriter}. */
+    static final class Builder {
+        private String suiteName = "";
+        private ByteBuffer records = ByteBuffer.allocate(RECORD_LENGTH * 64);
+        private final Utf8.ByteArrayWriter names = new Utf8.ByteArrayWriter(1024);
+        private int cases;
+        private int failures;
+        private int errors;
+        private long timeNanos;
+
+        void suite(String name) {
+            suiteName = name;
+        }
+
+        void add(String name, boolean failed, boolean errored, long nanos, long offset, long length) {
+            if (!records.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(records.capacity() * 2);
+                ((Buffer) records).flip();
+                records = grown.put(records);
+            }
+            int nameOffset = names.size();
+            names.write(name, 0, name.length());
+            names.end();
+            records.putLong(offset)
+                    .putInt((int) length)
+                    .putInt((failed ? FAILED : 0) | (errored ? ERRORED : 0))
+                    .putLong(nanos)
+                    .putInt(nameOffset)
+                    .putInt(names.size() - nameOffset);
+            cases++;
+            if (failed) failures++;
+            if (errored) errors++;
+            timeNanos += nanos;
+        }
+
+        /** The index of a report of {@code reportLength} bytes. */
+        byte[] toByteArray(long reportLength) {
+            byte[] suite = suiteName.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + records.position() + suite.length + names.size());
+            out.putInt(MAGIC)
+                    .putInt(cases)
+                    .putInt(failures)
+                    .putInt(errors)
+                    .putLong(timeNanos)
+                    .putLong(reportLength)
+                    .putInt(suite.length)
+                    .putInt(0);
+            out.put(records.array(), 0, records.position());
+            out.put(suite);
+            out.put(names.array(), 0, names.size());
+            return out.array();
+        }
+    }
+}
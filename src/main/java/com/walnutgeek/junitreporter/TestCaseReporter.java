@@ -1,85 +1,570 @@
 package com.walnutgeek.junitreporter;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
+/**
+ * Collects the result of one test case. All methods are lock-free and may be
+ * called from any number of threads: output is appended to lock-free segment
+ * lists, failures and errors are copy-on-write arrays swapped in with CAS, and
+ * the time is a single atomic field.
+ */
 public class TestCaseReporter {
 
+    /**
+     * A failure or an error. One added as a {@link Throwable} keeps the throwable
+     * and renders its stack trace when the body is first read, usually while the
+     * report is written, then lets go of it.
+     */
     public static class Entry {
         private final String type;
         private final String message;
-        private final String body;
+        private volatile String body;
+        /** Throwable whose trace is not rendered yet, and the suite table that renders it. */
+        private volatile Throwable thrown;
+        private final EntryInterner interner;
 
         public Entry(String type, String message, String body) {
             this.type = type;
             this.message = message;
             this.body = body;
+            this.interner = null;
+        }
+
+        Entry(String type, String message, Throwable thrown, EntryInterner interner) {
+            this.type = type;
+            this.message = message;
+            this.thrown = thrown;
+            this.interner = interner;
         }
 
         public String getType() { return type; }
         public String getMessage() { return message; }
-        public String getBody() { return body; }
+
+        public String getBody() {
+            String b = body;
+            if (b != null) return b;
+            Throwable t = thrown;
+            if (t == null) return body;  // rendered meanwhile, or there is no body
+            b = interner.intern(interner.render(t));
+            body = b;
+            thrown = null;
+            return b;
+        }
+    }
+
+    /**
+     * Consistent view of a test case taken by {@link #snapshot()}. Every field is
+     * read once, so a writer that decides what to emit from the snapshot emits
+     * exactly that, even while other threads keep adding to the test case.
+     */
+    public static class Snapshot {
+        private final String name;
+        private final String className;
+        private final long timeNanos;
+        private final Entry[] failures;
+        private final Entry[] errors;
+        /** {@code null} for a case of a compact suite that never captured output. */
+        private final OutputBuffer stdoutBuffer;
+        private final OutputBuffer stderrBuffer;
+        private final OutputBuffer.Mark stdout;
+        private final OutputBuffer.Mark stderr;
+        private final LatencyHistogram.Stats latency;
+        /** The case the snapshot was taken of and its version at the time; {@code null} in a compact suite. */
+        private final TestCaseReporter source;
+        private final long version;
+
+        private Snapshot(TestCaseReporter testCase) {
+            // read first: a change counted after this may or may not be in the fields below
+            this.version = testCase.version;
+            this.source = testCase;
+            this.name = testCase.name;
+            this.className = testCase.className;
+            this.timeNanos = testCase.timeNanos;
+            this.failures = testCase.failures;
+            this.errors = testCase.errors;
+            this.stdoutBuffer = testCase.stdout;
+            this.stderrBuffer = testCase.stderr;
+            this.stdout = testCase.stdout.mark();
+            this.stderr = testCase.stderr.mark();
+            LatencyHistogram histogram = testCase.histogram;
+            this.latency = histogram == null ? null : histogram.stats();
+        }
+
+        /** A case without captured output, kept only in a compact suite's arrays. */
+        Snapshot(String name, String className, long timeNanos, Entry[] failures, Entry[] errors) {
+            this.name = name;
+            this.className = className;
+            this.timeNanos = timeNanos;
+            this.failures = failures == null ? NO_ENTRIES : failures;
+            this.errors = errors == null ? NO_ENTRIES : errors;
+            this.stdoutBuffer = null;
+            this.stderrBuffer = null;
+            this.stdout = null;
+            this.stderr = null;
+            this.latency = null;
+            this.source = null;
+            this.version = 0;
+        }
+
+        public String getName() { return name; }
+        public String getClassName() { return className; }
+        public double getTime() { return toSeconds(timeNanos); }
+        long getTimeNanos() { return timeNanos; }
+        public List<Entry> getFailures() { return asList(failures); }
+        public List<Entry> getErrors() { return asList(errors); }
+        public boolean hasFailure() { return failures.length > 0; }
+        public boolean hasError() { return errors.length > 0; }
+        public boolean hasStdout() { return stdout != null && !stdout.isEmpty(); }
+        public boolean hasStderr() { return stderr != null && !stderr.isEmpty(); }
+        public String getStdout() { return stdout == null ? "" : stdoutBuffer.toString(stdout); }
+        public String getStderr() { return stderr == null ? "" : stderrBuffer.toString(stderr); }
+        /** Latency statistics of the invocations timed so far, {@code null} without a histogram. */
+        public LatencyHistogram.Stats getLatency() { return latency; }
+
+        /** Rough size of the case in an XML report, counting captured output at its size in memory. */
+        long estimateXmlBytes() {
+            long bytes = 128 + name.length() + className.length();
+            if (stdout != null) bytes += stdout.length();
+            if (stderr != null) bytes += stderr.length();
+            for (Entry entry : failures) bytes += estimateXmlBytes(entry);
+            for (Entry entry : errors) bytes += estimateXmlBytes(entry);
+            if (latency != null) bytes += 512;
+            return bytes;
+        }
+
+        /** Renders the trace of a {@link Throwable} entry, which the report is about to need anyway. */
+        private static long estimateXmlBytes(Entry entry) {
+            return 64 + length(entry.type) + length(entry.message) + length(entry.getBody());
+        }
+
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+
+        /** The {@code <testcase>} element cached for this version of the case, as UTF-8, or {@code null}. */
+        byte[] cachedFragment() {
+            Fragment f = source == null ? null : source.fragment;
+            return f != null && f.version == version ? f.utf8 : null;
+        }
+
+        /**
+         * Keeps the rendered element with the case until the case changes, unless
+         * the suite's cached elements would grow past
+         * {@link SuiteContext#MAX_CACHED_FRAGMENT_BYTES}.
+         */
+        void cacheFragment(byte[] utf8) {
+            if (source == null) return;
+            AtomicLong cached = source.suite.cachedFragmentBytes;
+            if (cached.addAndGet(utf8.length) > SuiteContext.MAX_CACHED_FRAGMENT_BYTES) {
+                cached.addAndGet(-utf8.length);
+                source.dropFragment();
+            } else {
+                Fragment previous = FRAGMENT.getAndSet(source, new Fragment(version, utf8));
+                if (previous != null) {
+                    cached.addAndGet(-previous.utf8.length);
+                }
+            }
+        }
+
+        /** Streams the captured stdout, including any part spilled to disk, to {@code out}. */
+        public void writeStdout(Writer out) throws IOException {
+            if (stdout != null) stdoutBuffer.writeTo(stdout, out);
+        }
+
+        /** Streams the captured stderr, including any part spilled to disk, to {@code out}. */
+        public void writeStderr(Writer out) throws IOException {
+            if (stderr != null) stderrBuffer.writeTo(stderr, out);
+        }
+    }
+
+    /**
+     * Times one invocation of a test case with {@link System#nanoTime()}. Started
+     * by {@link #startTimer()}; closing it is the same as {@link #stop()}.
+     */
+    public final class Timer implements AutoCloseable {
+        private final long start = System.nanoTime();
+        /** Set to 1 by the one call that records the time; not private, for {@link #TIMER_STOPPED}. */
+        volatile int stopped;
+
+        private Timer() {
+        }
+
+        /**
+         * Adds the elapsed time to the case and records it in its histogram, if any.
+         *
+         * @return the elapsed nanoseconds
+         */
+        public long stop() {
+            long elapsed = System.nanoTime() - start;
+            if (!tryStop(elapsed)) {
+                throw new IllegalStateException("Timer already stopped");
+            }
+            return elapsed;
+        }
+
+        @Override
+        public void close() {
+            if (stopped == 0) {
+                tryStop(System.nanoTime() - start);
+            }
+        }
+
+        /** Records {@code elapsed} unless another call stopped the timer first. */
+        private boolean tryStop(long elapsed) {
+            if (!TIMER_STOPPED.compareAndSet(this, 0, 1)) {
+                return false;
+            }
+            recordInvocation(elapsed);
+            return true;
+        }
     }
 
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final AtomicLongFieldUpdater<TestCaseReporter> TIME_NANOS =
+            AtomicLongFieldUpdater.newUpdater(TestCaseReporter.class, "timeNanos");
+    private static final AtomicReferenceFieldUpdater<TestCaseReporter, Entry[]> FAILURES =
+            AtomicReferenceFieldUpdater.newUpdater(TestCaseReporter.class, Entry[].class, "failures");
+    private static final AtomicReferenceFieldUpdater<TestCaseReporter, Entry[]> ERRORS =
+            AtomicReferenceFieldUpdater.newUpdater(TestCaseReporter.class, Entry[].class, "errors");
+    private static final AtomicLongFieldUpdater<TestCaseReporter> VERSION =
+            AtomicLongFieldUpdater.newUpdater(TestCaseReporter.class, "version");
+    private static final AtomicReferenceFieldUpdater<TestCaseReporter, LatencyHistogram> HISTOGRAM =
+            AtomicReferenceFieldUpdater.newUpdater(TestCaseReporter.class, LatencyHistogram.class, "histogram");
+    private static final AtomicReferenceFieldUpdater<TestCaseReporter, Fragment> FRAGMENT =
+            AtomicReferenceFieldUpdater.newUpdater(TestCaseReporter.class, Fragment.class, "fragment");
+    private static final AtomicIntegerFieldUpdater<Timer> TIMER_STOPPED =
+            AtomicIntegerFieldUpdater.newUpdater(Timer.class, "stopped");
+
     private final String name;
     private final String className;
-    private double time;
-    private final StringBuilder stdout = new StringBuilder();
-    private final StringBuilder stderr = new StringBuilder();
-    private final List<Entry> failures = new ArrayList<>();
-    private final List<Entry> errors = new ArrayList<>();
+    private volatile long timeNanos;
+    private final SuiteContext suite;
+    private final OutputBuffer stdout;
+    private final OutputBuffer stderr;
+    private volatile Entry[] failures = NO_ENTRIES;
+    private volatile Entry[] errors = NO_ENTRIES;
+    private volatile LatencyHistogram histogram;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    /** Offset of the case's record in the suite's journal, -1 until journaled. */
+    private volatile long journalOffset = -1;
+    /** Number of changes that show in a report, see {@link #getVersion()}. */
+    private volatile long version;
+    private volatile Fragment fragment;
+
+    /** A rendered {@code <testcase>} element and the version of the case it shows. */
+    private static final class Fragment {
+        final long version;
+        final byte[] utf8;
+
+        Fragment(long version, byte[] utf8) {
+            this.version = version;
+            this.utf8 = utf8;
+        }
+    }
 
     public TestCaseReporter(String name, String className) {
+        this(name, className, new SuiteContext());
+    }
+
+    TestCaseReporter(String name, String className, SuiteContext suite) {
         this.name = name;
         this.className = className;
+        this.suite = suite;
+        this.stdout = new OutputBuffer(suite.outputBudget);
+        this.stderr = new OutputBuffer(suite.outputBudget);
     }
 
     public String getName() { return name; }
     public String getClassName() { return className; }
-    public synchronized double getTime() { return time; }
+    public double getTime() { return toSeconds(timeNanos); }
+
+    /**
+     * Grows with every change that shows in a report: time, output, failures,
+     * errors, recorded invocations. Two equal values mean nothing changed in between.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Counts a change once it has been made, for the case and for its suite. */
+    private void changed() {
+        VERSION.incrementAndGet(this);
+        suite.modifications.increment();
+    }
+
+    public void setTime(double seconds) {
+        setTimeNanos(toNanos(seconds));
+    }
 
-    public synchronized void setTime(double seconds) {
-        this.time = seconds;
+    void setTimeNanos(long nanos) {
+        long previous = TIME_NANOS.getAndSet(this, nanos);
+        suite.timeNanos.add(nanos - previous);
+        changed();
     }
 
-    public synchronized void addStdout(String text) {
+    /**
+     * Starts timing an invocation. Each stopped timer adds to the time of the
+     * case, so a case run repeatedly reports the total.
+     *
+     * <pre>
+     * try (TestCaseReporter.Timer timer = tc.startTimer()) {
+     *     runTest();
+     * }
+     * </pre>
+     */
+    public Timer startTimer() {
+        return new Timer();
+    }
+
+    /** Adds one invocation of {@code nanos} to the time of the case and to its histogram, if enabled. */
+    public void recordInvocation(long nanos) {
+        TIME_NANOS.getAndAdd(this, nanos);
+        suite.timeNanos.add(nanos);
+        LatencyHistogram h = histogram;
+        if (h != null) {
+            h.record(nanos);
+        }
+        changed();
+    }
+
+    /**
+     * Starts keeping a {@link LatencyHistogram} of the invocations recorded from
+     * now on. Reports then include their count, min, p50, p90, p99 and max as
+     * properties of the test case. Returns the existing histogram if already enabled.
+     */
+    public LatencyHistogram enableHistogram() {
+        LatencyHistogram h = histogram;
+        if (h == null) {
+            if (HISTOGRAM.compareAndSet(this, null, new LatencyHistogram())) {
+                changed();
+            }
+            h = histogram;
+        }
+        return h;
+    }
+
+    /** The histogram enabled by {@link #enableHistogram()}, or {@code null}. */
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public void addStdout(String text) {
         stdout.append(text);
+        changed();
     }
 
-    public synchronized void addStderr(String text) {
+    public void addStderr(String text) {
         stderr.append(text);
+        changed();
+    }
+
+    /**
+     * Appends UTF-8 encoded output, copying {@code b[off, off + len)}. The bytes
+     * are kept as they are, taking half the heap of ASCII text added as a
+     * {@code String}, and XML reports copy them to the file without transcoding.
+     * A character may be split between two calls from the same thread; malformed
+     * input is replaced with U+FFFD when the output is read.
+     */
+    public void addStdout(byte[] b, int off, int len) {
+        stdout.appendUtf8(b, off, len);
+        changed();
+    }
+
+    /** Appends UTF-8 encoded output to stderr, see {@link #addStdout(byte[], int, int)}. */
+    public void addStderr(byte[] b, int off, int len) {
+        stderr.appendUtf8(b, off, len);
+        changed();
     }
 
-    public synchronized String getStdout() {
+    public String getStdout() {
         return stdout.toString();
     }
 
-    public synchronized String getStderr() {
+    public String getStderr() {
         return stderr.toString();
     }
 
-    public synchronized void addFailure(String type, String message, String stackTrace) {
-        failures.add(new Entry(type, message, stackTrace));
+    public boolean hasStdout() {
+        return !stdout.isEmpty();
+    }
+
+    public boolean hasStderr() {
+        return !stderr.isEmpty();
+    }
+
+    /** Streams captured stdout, including any part spilled to disk, to {@code out}. */
+    public void writeStdout(Writer out) throws IOException {
+        stdout.writeTo(out);
+    }
+
+    /** Streams captured stderr, including any part spilled to disk, to {@code out}. */
+    public void writeStderr(Writer out) throws IOException {
+        stderr.writeTo(out);
+    }
+
+    /**
+     * Drops buffered stdout/stderr and deletes their spill files, or leaves a
+     * spill file until snapshots taken before no longer need it.
+     */
+    public void releaseOutput() {
+        stdout.release();
+        stderr.release();
+        dropFragment();
+        changed();
+    }
+
+    /**
+     * Keeps only the last {@code maxBytes} bytes of stdout and of stderr, see
+     * {@link OutputRetention#withPassingTail(long)}.
+     */
+    void retainOutputTail(long maxBytes) {
+        boolean out = stdout.retainTail(maxBytes);
+        boolean err = stderr.retainTail(maxBytes);
+        if (out || err) {
+            dropFragment();
+            changed();
+        }
+    }
+
+    /** Drops the cached element and returns its bytes to the suite's cache budget. */
+    private void dropFragment() {
+        Fragment previous = FRAGMENT.getAndSet(this, null);
+        if (previous != null) {
+            suite.cachedFragmentBytes.addAndGet(-previous.utf8.length);
+        }
+    }
+
+    /** Heap bytes of the captured output, counting spilled output as if it were in memory. */
+    long outputLength() {
+        return stdout.length() + stderr.length();
+    }
+
+    public void addFailure(String type, String message, String stackTrace) {
+        addFailure(suite.entries.entry(type, message, stackTrace));
+    }
+
+    public void addError(String type, String message, String stackTrace) {
+        addError(suite.entries.entry(type, message, stackTrace));
+    }
+
+    /**
+     * Adds a failure of {@code thrown}'s class name and message. The stack trace
+     * is not rendered here but when it is first needed, normally while the report
+     * is written, with the suite's stack trace limits and frame filter in effect
+     * then; until then the case holds on to {@code thrown}.
+     */
+    public void addFailure(Throwable thrown) {
+        addFailure(suite.entries.entry(thrown));
     }
 
-    public synchronized void addError(String type, String message, String stackTrace) {
-        errors.add(new Entry(type, message, stackTrace));
+    /** Adds an error of {@code thrown}, rendered lazily as by {@link #addFailure(Throwable)}. */
+    public void addError(Throwable thrown) {
+        addError(suite.entries.entry(thrown));
     }
 
-    public synchronized List<Entry> getFailures() {
-        return Collections.unmodifiableList(new ArrayList<>(failures));
+    void addFailure(Entry entry) {
+        if (append(FAILURES, entry)) {
+            suite.failures.increment();
+        }
+        changed();
+    }
+
+    void addError(Entry entry) {
+        if (append(ERRORS, entry)) {
+            suite.errors.increment();
+        }
+        changed();
+    }
+
+    public List<Entry> getFailures() {
+        return asList(failures);
+    }
+
+    public List<Entry> getErrors() {
+        return asList(errors);
+    }
+
+    public boolean hasFailure() {
+        return failures.length > 0;
+    }
+
+    public boolean hasError() {
+        return errors.length > 0;
+    }
+
+    /**
+     * Marks the test case as complete. If the suite has a journal, the case is
+     * appended to it right away and its captured output is released; changes made
+     * after that are not reflected in the suite's XML report. Only the first call
+     * has an effect.
+     */
+    public void finish() {
+        if (finished.compareAndSet(false, true)) {
+            suite.caseFinished(this);
+        }
+    }
+
+    public boolean isFinished() {
+        return finished.get();
+    }
+
+    void markJournaled(long offset) {
+        journalOffset = offset;
+    }
+
+    long getJournalOffset() {
+        return journalOffset;
+    }
+
+    /**
+     * Takes over the state a compact suite kept for this case in its arrays,
+     * without counting it in the suite totals again.
+     */
+    void adopt(long timeNanos, Entry[] failures, Entry[] errors, boolean finished) {
+        this.timeNanos = timeNanos;
+        if (failures != null) this.failures = failures;
+        if (errors != null) this.errors = errors;
+        this.finished.set(finished);
+        changed();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /** Returns {@code true} if {@code entry} is the first one in the list. */
+    private boolean append(AtomicReferenceFieldUpdater<TestCaseReporter, Entry[]> field, Entry entry) {
+        for (;;) {
+            Entry[] current = field.get(this);
+            Entry[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = entry;
+            if (field.compareAndSet(this, current, updated)) {
+                return current.length == 0;
+            }
+        }
     }
 
-    public synchronized List<Entry> getErrors() {
-        return Collections.unmodifiableList(new ArrayList<>(errors));
+    private static List<Entry> asList(Entry[] entries) {
+        return entries.length == 0 ? Collections.<Entry>emptyList()
+                : Collections.unmodifiableList(Arrays.asList(entries));
     }
 
-    public synchronized boolean hasFailure() {
-        return !failures.isEmpty();
+    static long toNanos(double seconds) {
+        return Math.round(seconds * NANOS_PER_SECOND);
     }
 
-    public synchronized boolean hasError() {
-        return !errors.isEmpty();
+    private static double toSeconds(long nanos) {
+        return nanos / NANOS_PER_SECOND;
     }
 }
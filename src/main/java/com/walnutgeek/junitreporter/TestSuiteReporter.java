@@ -1,206 +1,708 @@
 package com.walnutgeek.junitreporter;
 
+import org.jdom2.Content;
 import org.jdom2.Document;
 import org.jdom2.Element;
-import org.jdom2.output.Format;
-import org.jdom2.output.XMLOutputter;
+import org.jdom2.JDOMException;
+import org.jdom2.JDOMFactory;
+import org.jdom2.Text;
+import org.jdom2.UncheckedJDOMFactory;
+import org.jdom2.input.SAXBuilder;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class TestSuiteReporter {
+public class TestSuiteReporter implements Closeable {
+
+    /**
+     * Suite totals maintained incrementally as results arrive. Reading one is O(1);
+     * while test cases are still being updated, the counts are not guaranteed to be
+     * from the same instant.
+     */
+    public static class Summary {
+        private final int tests;
+        private final int failures;
+        private final int errors;
+        private final long timeNanos;
+
+        Summary(int tests, int failures, int errors, long timeNanos) {
+            this.tests = tests;
+            this.failures = failures;
+            this.errors = errors;
+            this.timeNanos = timeNanos;
+        }
+
+        public int getTests() { return tests; }
+        /** Number of test cases with at least one failure. */
+        public int getFailures() { return failures; }
+        /** Number of test cases with at least one error. */
+        public int getErrors() { return errors; }
+        /** Sum of test case times in seconds. */
+        public double getTime() { return timeNanos / 1e9; }
+        public long getTimeNanos() { return timeNanos; }
+    }
+
+    private static final JDOMFactory UNCHECKED = new UncheckedJDOMFactory();
 
     private final String name;
     private final String timestamp;
     private final ConcurrentHashMap<String, TestCaseReporter> testCases = new ConcurrentHashMap<>();
     private final ConcurrentLinkedQueue<String> testCaseOrder = new ConcurrentLinkedQueue<>();
     private final ConcurrentHashMap<String, String> properties = new ConcurrentHashMap<>();
+    /** Reports written so far, by file, see {@link #getVersion()}. */
+    private final ConcurrentHashMap<String, Written> written = new ConcurrentHashMap<>();
+    private final SuiteContext context = new SuiteContext(this);
+    /** Case storage of a compact suite, {@code null} for a regular one. */
+    private final CompactCaseStore compact;
 
     public TestSuiteReporter(String name) {
+        this(name, now(), false);
+    }
+
+    /** Creates a suite with a given timestamp, as when reading an existing report. */
+    TestSuiteReporter(String name, String timestamp) {
+        this(name, timestamp, false);
+    }
+
+    private TestSuiteReporter(String name, String timestamp, boolean compact) {
         this.name = name;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
-        this.timestamp = sdf.format(new Date());
+        this.timestamp = timestamp;
+        this.compact = compact ? new CompactCaseStore(name, context) : null;
+    }
+
+    /**
+     * Creates a suite for millions of mostly passing test cases. Cases get dense
+     * integer ids and live in primitive arrays and bitsets; only cases with
+     * failures or errors use side tables, and a full {@link TestCaseReporter} is
+     * created only when {@link #testCase(String)} asks for one, e.g. to capture
+     * output. Record results through {@link #caseId(String)},
+     * {@link #setTime(int, double)}, {@link #addFailure(int, String, String, String)},
+     * {@link #addError(int, String, String, String)} and {@link #finish(int)}.
+     * Updates synchronize on the suite's case store, and journaling is not supported.
+     */
+    public static TestSuiteReporter compact(String name) {
+        return new TestSuiteReporter(name, now(), true);
+    }
+
+    private static String now() {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US).format(new Date());
+    }
+
+    public boolean isCompact() {
+        return compact != null;
     }
 
     public String getName() {
         return name;
     }
 
+    String getTimestamp() {
+        return timestamp;
+    }
+
+    Map<String, String> getProperties() {
+        return properties;
+    }
+
+    /** In a compact suite, creates the case's full reporter on first use. */
     public TestCaseReporter testCase(String testName) {
-        return testCases.computeIfAbsent(testName, k -> {
-            testCaseOrder.add(k);
-            return new TestCaseReporter(k, name);
-        });
+        if (compact != null) {
+            return compact.promote(caseId(testName));
+        }
+        return testCases.computeIfAbsent(testName, k -> registered(k, new TestCaseReporter(k, name, context)));
+    }
+
+    /**
+     * Adds a case read back from a report, see {@link ReportReader}. The case is
+     * new even if the suite has one named {@code testName} already, so repeated
+     * or parameterized runs reported under one name stay separate;
+     * {@link #testCase(String)} finds the first of them. A compact suite keeps
+     * its own class name and rejects a repeated name.
+     */
+    TestCaseReporter addTestCase(String testName, String className) {
+        if (compact != null) {
+            int size = compact.size();
+            int id = caseId(testName);
+            if (compact.size() == size) {
+                throw new IllegalStateException("Compact suite " + name + " already has a test case " + testName);
+            }
+            return compact.promote(id);
+        }
+        TestCaseReporter tc = new TestCaseReporter(testName, className, context);
+        // names read from XML cannot contain NUL, so the keys of repeated names never clash with a name
+        String key = testName;
+        for (int n = 2; testCases.putIfAbsent(key, tc) != null; n++) {
+            key = testName + '\0' + n;
+        }
+        return registered(key, tc);
+    }
+
+    private TestCaseReporter registered(String key, TestCaseReporter tc) {
+        testCaseOrder.add(key);
+        context.tests.increment();
+        context.modifications.increment();
+        ReporterMetrics m = context.metrics;
+        if (m != ReporterMetrics.NONE) {
+            m.testCaseCreated(this, tc);
+        }
+        return tc;
+    }
+
+    /** Dense id of a test case of a compact suite, registering the case if it is new. */
+    public int caseId(String testName) {
+        return compactStore().id(testName);
+    }
+
+    public void setTime(int caseId, double seconds) {
+        compactStore().setTime(caseId, TestCaseReporter.toNanos(seconds));
+    }
+
+    public void addFailure(int caseId, String type, String message, String stackTrace) {
+        compactStore().addFailure(caseId, context.entries.entry(type, message, stackTrace));
+    }
+
+    public void addError(int caseId, String type, String message, String stackTrace) {
+        compactStore().addError(caseId, context.entries.entry(type, message, stackTrace));
+    }
+
+    /** Adds a failure whose stack trace is rendered lazily, see {@link TestCaseReporter#addFailure(Throwable)}. */
+    public void addFailure(int caseId, Throwable thrown) {
+        compactStore().addFailure(caseId, context.entries.entry(thrown));
+    }
+
+    public void addError(int caseId, Throwable thrown) {
+        compactStore().addError(caseId, context.entries.entry(thrown));
+    }
+
+    public void finish(int caseId) {
+        CompactCaseStore store = compactStore();
+        if (store.finish(caseId)) {
+            ReporterMetrics m = context.metrics;
+            if (m != ReporterMetrics.NONE) {
+                m.testCaseFinished(this, null);
+            }
+        }
+    }
+
+    private CompactCaseStore compactStore() {
+        if (compact == null) {
+            throw new IllegalStateException("Case ids are only available in a compact suite");
+        }
+        return compact;
+    }
+
+    /**
+     * Reports test case and serialization events of this suite to {@code metrics};
+     * {@code null} or {@link ReporterMetrics#NONE} (the default) turns them off.
+     */
+    public synchronized void setMetrics(ReporterMetrics metrics) {
+        ReporterMetrics next = metrics == null ? ReporterMetrics.NONE : metrics;
+        ReporterMetrics previous = context.metrics;
+        if (next == previous) return;
+        context.metrics = next;
+        previous.suiteDetached(this);
+        next.suiteAttached(this);
+    }
+
+    /**
+     * Limits the heap used by captured stdout/stderr. When a single stream grows past
+     * {@code perCaseBytes}, or all streams of the suite together grow past
+     * {@code perSuiteBytes}, buffered text is moved to a temp file and streamed back
+     * when the report is written; over the suite limit, the streams that started
+     * buffering first are moved first. Both limits are unlimited by default, and
+     * should be set before output is captured.
+     */
+    public void setOutputMemoryLimits(long perCaseBytes, long perSuiteBytes) {
+        context.outputBudget.setLimits(perCaseBytes, perSuiteBytes);
+    }
+
+    /**
+     * Sets what captured output finished test cases keep, see {@link OutputRetention};
+     * {@code null} or {@link OutputRetention#KEEP_ALL} (the default) keeps it all.
+     * Applies to cases finished from then on.
+     */
+    public void setOutputRetention(OutputRetention retention) {
+        context.outputRetention = retention == null ? OutputRetention.KEEP_ALL : retention;
+    }
+
+    public OutputRetention getOutputRetention() {
+        return context.outputRetention;
+    }
+
+    /**
+     * Directory for spilled output; {@code null} (the default) uses {@code java.io.tmpdir}.
+     * Spill files are deleted when their output is released or by {@link #close()};
+     * a JVM that dies first leaves its {@code junit-reporter-*.out} files behind.
+     */
+    public void setSpillDirectory(File dir) {
+        context.outputBudget.setSpillDirectory(dir);
+    }
+
+    /**
+     * Truncates failure and error stack traces to at most {@code maxFrames}
+     * {@code at} lines per exception in the cause chain and {@code maxChars}
+     * characters in total. Identical type, message and stack trace text is
+     * always stored once per suite; both limits are unlimited by default.
+     */
+    public void setStackTraceLimits(int maxFrames, int maxChars) {
+        context.entries.setLimits(maxFrames, maxChars);
+    }
+
+    /**
+     * Leaves stack frames whose {@code class.method} starts with one of
+     * {@code prefixes} out of failure and error traces, e.g. {@code "org.junit."}
+     * or {@code "sun.reflect."}; each run of them is replaced by a count.
+     * Filtered frames do not count towards the {@code maxFrames} limit.
+     */
+    public void setStackTraceFilter(String... prefixes) {
+        context.entries.setExcludedFrames(prefixes);
+    }
+
+    /** Number of distinct failure/error texts held by the suite. */
+    int getInternedTextCount() {
+        return context.entries.size();
+    }
+
+    /** Bytes of captured stdout/stderr currently held in memory. */
+    public long getBufferedOutputBytes() {
+        return context.outputBudget.getUsed();
     }
 
     public void addProperty(String key, String value) {
         properties.put(key, value);
+        context.modifications.increment();
+        ReportJournal journal = context.journal;
+        if (journal != null) {
+            try {
+                journal.appendProperty(key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to journal property " + key, e);
+            }
+        }
+        ResultLog log = context.resultLog;
+        if (log != null) {
+            try {
+                log.appendProperty(name, key, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to log property " + key, e);
+            }
+        }
+    }
+
+    /**
+     * Starts journaling finished test cases to {@code TEST-{name}.xml.journal} in
+     * {@code dir}. From then on every {@link TestCaseReporter#finish()} appends the
+     * case to the journal and releases its captured output, {@code writeXml} and
+     * {@code toDocument} read journaled cases back from disk, and {@link ReportJournal#recover} can
+     * rebuild a partial report if the JVM dies. {@link #close()} deletes the journal.
+     */
+    public synchronized File enableJournal(File dir) throws IOException {
+        if (compact != null) {
+            throw new IllegalStateException("A compact suite cannot be journaled");
+        }
+        if (context.journal != null) {
+            throw new IllegalStateException("Journal already enabled: " + context.journal.getFile());
+        }
+        File file = new File(dir, "TEST-" + name + ".xml" + ReportJournal.SUFFIX);
+        ReportJournal journal = ReportJournal.create(file, name, timestamp);
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            journal.appendProperty(entry.getKey(), entry.getValue());
+        }
+        context.journal = journal;
+        return file;
+    }
+
+    /**
+     * Appends every test case to {@code log} when it is {@linkplain TestCaseReporter#finish() finished},
+     * for merging into reports later, see {@link ResultLog}. Several suites may share one log.
+     */
+    public synchronized void setResultLog(ResultLog log) throws IOException {
+        if (compact != null) {
+            throw new IllegalStateException("A compact suite cannot write a result log");
+        }
+        if (context.resultLog != null) {
+            throw new IllegalStateException("Result log already set: " + context.resultLog.getFile());
+        }
+        log.appendSuite(name, timestamp, properties);
+        context.resultLog = log;
+    }
+
+    ReportJournal getJournal() {
+        return context.journal;
+    }
+
+    /**
+     * Grows with every change to the suite or its cases that shows in a report.
+     * {@code writeXml} and {@code writeText} do nothing when the version is the
+     * one they last wrote and the files are still as they left them.
+     */
+    public long getVersion() {
+        return context.modifications.sum();
     }
 
     public int getTestCount() {
-        return testCases.size();
+        return compact != null ? compact.size() : testCases.size();
+    }
+
+    public Summary getSummary() {
+        return new Summary(context.tests.intValue(), context.failures.intValue(),
+                context.errors.intValue(), context.timeNanos.sum());
     }
 
+    /**
+     * Builds the report as a JDOM document. Cases of a journaled suite that are
+     * already in the journal are parsed back from it, captured output included.
+     */
     public Document toDocument() {
+        ReporterMetrics m = context.metrics;
+        if (m == ReporterMetrics.NONE) {
+            return buildDocument();
+        }
+        long start = System.nanoTime();
+        Document doc = buildDocument();
+        m.serialized(this, ReporterMetrics.Operation.TO_DOCUMENT, System.nanoTime() - start, 0);
+        return doc;
+    }
+
+    /** Builds the document from one {@link #snapshot()}, so its totals agree with the cases it lists. */
+    private Document buildDocument() {
+        SuiteSnapshot snapshot = snapshot();
+        FixedPointFormat numbers = new FixedPointFormat();
         Element root = new Element("testsuite");
-        List<TestCaseReporter> orderedCases = getOrderedTestCases();
-        int failureCount = 0;
-        int errorCount = 0;
-        double totalTime = 0;
-        for (TestCaseReporter tc : orderedCases) {
-            if (tc.hasFailure()) failureCount++;
-            if (tc.hasError()) errorCount++;
-            totalTime += tc.getTime();
-        }
-
-        root.setAttribute("name", name);
-        root.setAttribute("tests", String.valueOf(orderedCases.size()));
-        root.setAttribute("failures", String.valueOf(failureCount));
-        root.setAttribute("errors", String.valueOf(errorCount));
+        Summary summary = snapshot.getSummary();
+        setAttribute(root, "name", name);
+        root.setAttribute("tests", String.valueOf(summary.getTests()));
+        root.setAttribute("failures", String.valueOf(summary.getFailures()));
+        root.setAttribute("errors", String.valueOf(summary.getErrors()));
         root.setAttribute("skipped", "0");
-        root.setAttribute("time", formatTime(totalTime));
+        root.setAttribute("time", numbers.seconds(summary.getTimeNanos()));
         root.setAttribute("timestamp", timestamp);
 
-        if (!properties.isEmpty()) {
+        if (!snapshot.getProperties().isEmpty()) {
             Element propsEl = new Element("properties");
-            for (Map.Entry<String, String> entry : properties.entrySet()) {
+            for (Map.Entry<String, String> entry : snapshot.getProperties().entrySet()) {
                 Element prop = new Element("property");
-                prop.setAttribute("name", entry.getKey());
-                prop.setAttribute("value", entry.getValue());
+                setAttribute(prop, "name", entry.getKey());
+                setAttribute(prop, "value", entry.getValue());
                 propsEl.addContent(prop);
             }
             root.addContent(propsEl);
         }
 
-        for (TestCaseReporter tc : orderedCases) {
-            root.addContent(buildTestCaseElement(tc));
+        Iterator<Element> journaled = snapshot.getJournalFile() != null
+                ? readJournaledCases(snapshot).iterator() : Collections.<Element>emptyIterator();
+        List<TestCaseReporter.Snapshot> cases = snapshot.getTestCases();
+        for (int i = 0; i < cases.size(); i++) {
+            root.addContent(snapshot.isJournaled(i) ? journaled.next() : buildTestCaseElement(cases.get(i), numbers));
         }
 
         return new Document(root);
     }
 
-    public void writeXml(File outputDir) throws IOException {
-        File file = new File(outputDir, "TEST-" + name + ".xml");
-        XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat());
-        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
-            outputter.output(toDocument(), writer);
+    /**
+     * Parses the {@code <testcase>} fragments of the journaled cases of {@code snapshot},
+     * whose cases have released their output, in the order of the cases.
+     */
+    private static List<Element> readJournaledCases(SuiteSnapshot snapshot) {
+        File file = snapshot.getJournalFile();
+        StringWriter xml = new StringWriter();
+        xml.write("<journal>");
+        Element journal;
+        try {
+            try (ReportJournal.CaseReader reader = new ReportJournal.CaseReader(file)) {
+                for (int i = 0; i < snapshot.getTestCases().size(); i++) {
+                    if (snapshot.isJournaled(i)) {
+                        reader.read(snapshot.getJournalOffset(i));
+                        xml.write(reader.fragment());
+                    }
+                }
+            }
+            xml.write("</journal>");
+            journal = new SAXBuilder().build(new StringReader(xml.toString())).getRootElement();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read journal " + file, e);
+        } catch (JDOMException e) {
+            throw new IllegalStateException("Malformed journal " + file, e);
         }
+        List<Element> cases = new ArrayList<>(journal.getChildren("testcase"));
+        for (Element tc : cases) {
+            tc.detach();
+            removeIndentation(tc);
+            Element props = tc.getChild("properties");
+            if (props != null) {
+                removeIndentation(props);
+            }
+        }
+        return cases;
     }
 
-    public void writeText(File outputDir) throws IOException {
-        List<TestCaseReporter> orderedCases = getOrderedTestCases();
-        int failureCount = 0;
-        int errorCount = 0;
-        double totalTime = 0;
-        for (TestCaseReporter tc : orderedCases) {
-            if (tc.hasFailure()) failureCount++;
-            if (tc.hasError()) errorCount++;
-            totalTime += tc.getTime();
+    /** Drops the whitespace the journal indents child elements with, which built elements do not have. */
+    private static void removeIndentation(Element element) {
+        List<Content> content = element.getContent();
+        for (int i = content.size() - 1; i >= 0; i--) {
+            Content c = content.get(i);
+            if (c instanceof Text && ((Text) c).getTextTrim().isEmpty()) {
+                element.removeContent(i);
+            }
+        }
+    }
+
+    public void writeXml(File outputDir) throws IOException {
+        writeXml(outputDir, ReportOptions.DEFAULT);
+    }
+
+    /**
+     * Writes {@code TEST-{name}.xml}, or {@code TEST-{name}.xml.gz} when {@code options} ask for gzip.
+     * With {@link ReportOptions#withShardLimits shard limits}, a report over the limits is
+     * split into {@code TEST-{name}-1.xml}, {@code TEST-{name}-2.xml}, ... instead.
+     * With {@link ReportOptions#withSummaryIndex}, each report file gets a {@link SummaryIndex}.
+     */
+    public void writeXml(File outputDir, ReportOptions options) throws IOException {
+        long version = getVersion();
+        File file = new File(outputDir, options.fileName("TEST-" + name + ".xml"));
+        String key = options.isSharded()
+                ? file.getPath() + "#" + options.getMaxShardBytes() + "/" + options.getMaxShardCases()
+                : file.getPath();
+        if (options.isSummaryIndex()) {
+            key += SummaryIndex.SUFFIX;
+        }
+        if (isWritten(key, version)) {
+            return;
+        }
+        long start = System.nanoTime();
+        long bytes;
+        List<File> files = new ArrayList<>(1);
+        if (options.isSharded()) {
+            bytes = ReportShards.write(snapshot(), outputDir, "TEST-" + name, options, files);
+        } else {
+            bytes = StreamingXmlWriter.writeReport(file, options, writer -> writer.write(this), files);
         }
+        written.put(key, new Written(version, files));
+        serialized(ReporterMetrics.Operation.WRITE_XML, start, bytes);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("-------------------------------------------------------------------------------\n");
-        sb.append("Test set: ").append(name).append("\n");
-        sb.append("-------------------------------------------------------------------------------\n");
-        sb.append(String.format("Tests run: %d, Failures: %d, Errors: %d, Skipped: 0, Time elapsed: %s s\n",
-                orderedCases.size(), failureCount, errorCount, formatTime(totalTime)));
+    public void writeText(File outputDir) throws IOException {
+        writeText(outputDir, ReportOptions.DEFAULT);
+    }
 
-        for (TestCaseReporter tc : orderedCases) {
-            appendTestCaseText(sb, tc);
+    /** Writes {@code {name}.txt}, or {@code {name}.txt.gz} when {@code options} ask for gzip. */
+    public void writeText(File outputDir, ReportOptions options) throws IOException {
+        long version = getVersion();
+        File file = new File(outputDir, options.fileName(name + ".txt"));
+        if (isWritten(file.getPath(), version)) {
+            return;
         }
+        long start = System.nanoTime();
+        long bytes;
+        try (ReportFiles.Output output = ReportFiles.create(file, options)) {
+            new TextReportWriter(output.writer()).write(this);
+            bytes = output.commit();
+        }
+        written.put(file.getPath(), new Written(version, Collections.singletonList(file)));
+        serialized(ReporterMetrics.Operation.WRITE_TEXT, start, bytes);
+    }
 
-        File file = new File(outputDir, name + ".txt");
-        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
-            writer.write(sb.toString());
+    /**
+     * Releases captured output of all test cases, deleting any spill files and the
+     * journal. Snapshots taken before cannot be written after this.
+     */
+    @Override
+    public void close() {
+        for (TestCaseReporter tc : compact != null ? compact.promotedCases() : testCases.values()) {
+            tc.releaseOutput();
+        }
+        context.outputBudget.deleteRetired();
+        context.clearRetained();
+        context.entries.clear();
+        context.metrics.suiteDetached(this);
+        ReportJournal journal = context.journal;
+        if (journal != null) {
+            context.journal = null;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                // the journal is deleted below, nothing else to release
+            }
+            journal.getFile().delete();
         }
     }
 
-    private Element buildTestCaseElement(TestCaseReporter tc) {
+    private static Element buildTestCaseElement(TestCaseReporter.Snapshot tc, FixedPointFormat numbers) {
         Element tcEl = new Element("testcase");
-        tcEl.setAttribute("name", tc.getName());
-        tcEl.setAttribute("classname", tc.getClassName());
-        tcEl.setAttribute("time", formatTime(tc.getTime()));
+        setAttribute(tcEl, "name", tc.getName());
+        setAttribute(tcEl, "classname", tc.getClassName());
+        tcEl.setAttribute("time", numbers.seconds(tc.getTimeNanos()));
+
+        LatencyHistogram.Stats latency = tc.getLatency();
+        if (latency != null) {
+            Element propsEl = new Element("properties");
+            long[] values = latency.propertyValues();
+            for (int i = 0; i < values.length; i++) {
+                Element prop = new Element("property");
+                prop.setAttribute("name", LatencyHistogram.Stats.PROPERTY_NAMES[i]);
+                prop.setAttribute("value", String.valueOf(values[i]));
+                propsEl.addContent(prop);
+            }
+            tcEl.addContent(propsEl);
+        }
 
         for (TestCaseReporter.Entry f : tc.getFailures()) {
-            Element fel = new Element("failure");
-            fel.setAttribute("type", f.getType());
-            fel.setAttribute("message", f.getMessage());
-            fel.setText(f.getBody());
-            tcEl.addContent(fel);
+            tcEl.addContent(buildEntryElement("failure", f));
         }
 
         for (TestCaseReporter.Entry e : tc.getErrors()) {
-            Element eel = new Element("error");
-            eel.setAttribute("type", e.getType());
-            eel.setAttribute("message", e.getMessage());
-            eel.setText(e.getBody());
-            tcEl.addContent(eel);
+            tcEl.addContent(buildEntryElement("error", e));
         }
 
-        String stdout = tc.getStdout();
-        if (!stdout.isEmpty()) {
-            Element sysout = new Element("system-out");
-            sysout.setText(stdout);
-            tcEl.addContent(sysout);
+        if (tc.hasStdout()) {
+            tcEl.addContent(textElement("system-out", tc.getStdout()));
         }
 
-        String stderr = tc.getStderr();
-        if (!stderr.isEmpty()) {
-            Element syserr = new Element("system-err");
-            syserr.setText(stderr);
-            tcEl.addContent(syserr);
+        if (tc.hasStderr()) {
+            tcEl.addContent(textElement("system-err", tc.getStderr()));
         }
 
         return tcEl;
     }
 
-    private void appendTestCaseText(StringBuilder sb, TestCaseReporter tc) {
-        boolean hasFail = tc.hasFailure();
-        boolean hasErr = tc.hasError();
-        if (!hasFail && !hasErr) return;
+    private static Element buildEntryElement(String elementName, TestCaseReporter.Entry entry) {
+        Element element = textElement(elementName, entry.getBody());
+        setAttribute(element, "type", entry.getType());
+        setAttribute(element, "message", entry.getMessage());
+        return element;
+    }
 
-        sb.append("\n");
-        sb.append(tc.getName()).append("  Time elapsed: ").append(formatTime(tc.getTime())).append(" s  <<< ");
-        if (hasFail) {
-            sb.append("FAILURE!");
-        } else {
-            sb.append("ERROR!");
+    /**
+     * Element holding {@code text} with illegal characters replaced. The text
+     * node is created unchecked: after {@link XmlEscaper#sanitize} JDOM's own
+     * per-character verification of large output would only repeat the scan.
+     */
+    private static Element textElement(String elementName, String text) {
+        Element element = new Element(elementName);
+        element.addContent(UNCHECKED.text(XmlEscaper.sanitize(text)));
+        return element;
+    }
+
+    private static void setAttribute(Element element, String name, String value) {
+        element.setAttribute(name, XmlEscaper.sanitize(value));
+    }
+
+    /** Whether the report with {@code key} was written at {@code version} and its files are untouched. */
+    private boolean isWritten(String key, long version) {
+        Written w = written.get(key);
+        return w != null && w.version == version && w.isIntact();
+    }
+
+    /** Files a report was written to, with the suite version they show. */
+    private static final class Written {
+        final long version;
+        final File[] files;
+        final long[] lengths;
+        final long[] modified;
+
+        Written(long version, List<File> files) {
+            this.version = version;
+            this.files = files.toArray(new File[0]);
+            this.lengths = new long[this.files.length];
+            this.modified = new long[this.files.length];
+            for (int i = 0; i < this.files.length; i++) {
+                lengths[i] = this.files[i].length();
+                modified[i] = this.files[i].lastModified();
+            }
         }
-        sb.append("\n");
 
-        for (TestCaseReporter.Entry f : tc.getFailures()) {
-            sb.append(f.getType()).append(": ").append(f.getMessage()).append("\n");
-            sb.append(f.getBody()).append("\n");
+        boolean isIntact() {
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].length() != lengths[i] || files[i].lastModified() != modified[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
-        for (TestCaseReporter.Entry e : tc.getErrors()) {
-            sb.append(e.getType()).append(": ").append(e.getMessage()).append("\n");
-            sb.append(e.getBody()).append("\n");
+    }
+
+    private void serialized(ReporterMetrics.Operation operation, long start, long bytes) {
+        ReporterMetrics m = context.metrics;
+        if (m != ReporterMetrics.NONE) {
+            m.serialized(this, operation, System.nanoTime() - start, bytes);
         }
     }
 
-    private List<TestCaseReporter> getOrderedTestCases() {
-        List<TestCaseReporter> ordered = new ArrayList<>();
+    /**
+     * Takes a consistent view of the suite without blocking threads that report
+     * results: every case is snapshotted lock-free, and when the suite is
+     * journaled the journal position is read afterwards, so each case is either
+     * in the journal part of the view or in memory, never both. The summary is
+     * computed from the same view.
+     */
+    public SuiteSnapshot snapshot() {
+        Map<String, String> props = new LinkedHashMap<>(properties);
+        if (compact != null) {
+            List<TestCaseReporter.Snapshot> cases = compact.snapshots();
+            return new SuiteSnapshot(name, timestamp, props, summarize(cases, null, null), cases, null, null);
+        }
+        List<TestCaseReporter> live = new ArrayList<>();
         for (String testName : testCaseOrder) {
             TestCaseReporter tc = testCases.get(testName);
             if (tc != null) {
-                ordered.add(tc);
+                live.add(tc);
             }
         }
-        return ordered;
+        List<TestCaseReporter.Snapshot> cases = new ArrayList<>(live.size());
+        for (TestCaseReporter tc : live) {
+            cases.add(tc.snapshot());
+        }
+        ReportJournal journal = context.journal;
+        if (journal == null) {
+            return new SuiteSnapshot(name, timestamp, props, summarize(cases, null, null), cases, null, null);
+        }
+        ReportJournal.Position position = journal.position();
+        long[] journalOffsets = new long[cases.size()];
+        for (int i = 0; i < journalOffsets.length; i++) {
+            // a case journaled after the position was read is written from memory; its output
+            // is released then, but the marks of its snapshot keep any spill file they read
+            long offset = live.get(i).getJournalOffset();
+            journalOffsets[i] = offset < position.length ? offset : -1;
+        }
+        return new SuiteSnapshot(name, timestamp, props, summarize(cases, journalOffsets, position), cases,
+                journalOffsets, journal.getFile());
     }
 
-    private static String formatTime(double seconds) {
-        return String.format(Locale.US, "%.3f", seconds);
+    private static Summary summarize(List<TestCaseReporter.Snapshot> cases, long[] journalOffsets,
+                                     ReportJournal.Position position) {
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        long timeNanos = 0;
+        for (int i = 0; i < cases.size(); i++) {
+            if (journalOffsets != null && journalOffsets[i] >= 0) continue;
+            TestCaseReporter.Snapshot tc = cases.get(i);
+            tests++;
+            if (tc.hasFailure()) failures++;
+            if (tc.hasError()) errors++;
+            timeNanos += tc.getTimeNanos();
+        }
+        if (position != null) {
+            tests += position.cases;
+            failures += position.failures;
+            errors += position.errors;
+            timeNanos += position.timeNanos;
+        }
+        return new Summary(tests, failures, errors, timeNanos);
     }
 }
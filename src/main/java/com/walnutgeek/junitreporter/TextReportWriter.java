@@ -0,0 +1,83 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes the Surefire-style plain text summary of a {@link TestSuiteReporter}
+ * straight to a {@link Writer}, one test case at a time, without building the
+ * report in memory. Counts and times go through a {@link FixedPointFormat}
+ * instead of {@code String.format}, so formatting them creates no garbage.
+ */
+public class TextReportWriter {
+
+    private static final String RULE =
+            "-------------------------------------------------------------------------------\n";
+
+    private final Writer out;
+    private final FixedPointFormat numbers = new FixedPointFormat();
+
+    public TextReportWriter(Writer writer) {
+        this.out = writer;
+    }
+
+    public void write(TestSuiteReporter suite) throws IOException {
+        write(suite.snapshot());
+    }
+
+    /**
+     * Writes the summary of a suite as it was when {@code suite} was taken. Only
+     * failing cases are listed, journaled ones included: their snapshots keep
+     * failures and errors, which is all the text report shows.
+     */
+    public void write(SuiteSnapshot suite) throws IOException {
+        TestSuiteReporter.Summary summary = suite.getSummary();
+        out.write(RULE);
+        out.write("Test set: ");
+        out.write(suite.getName());
+        out.write('\n');
+        out.write(RULE);
+        out.write("Tests run: ");
+        numbers.writeInt(summary.getTests(), out);
+        out.write(", Failures: ");
+        numbers.writeInt(summary.getFailures(), out);
+        out.write(", Errors: ");
+        numbers.writeInt(summary.getErrors(), out);
+        out.write(", Skipped: 0, Time elapsed: ");
+        numbers.writeSeconds(summary.getTimeNanos(), out);
+        out.write(" s\n");
+
+        for (TestCaseReporter.Snapshot tc : suite.getTestCases()) {
+            writeTestCase(tc);
+        }
+        out.flush();
+    }
+
+    private void writeTestCase(TestCaseReporter.Snapshot tc) throws IOException {
+        boolean hasFail = tc.hasFailure();
+        boolean hasErr = tc.hasError();
+        if (!hasFail && !hasErr) return;
+
+        out.write('\n');
+        out.write(tc.getName());
+        out.write("  Time elapsed: ");
+        numbers.writeSeconds(tc.getTimeNanos(), out);
+        out.write(hasFail ? " s  <<< FAILURE!\n" : " s  <<< ERROR!\n");
+
+        for (TestCaseReporter.Entry f : tc.getFailures()) {
+            writeEntry(f);
+        }
+        for (TestCaseReporter.Entry e : tc.getErrors()) {
+            writeEntry(e);
+        }
+    }
+
+    private void writeEntry(TestCaseReporter.Entry entry) throws IOException {
+        out.write(String.valueOf(entry.getType()));
+        out.write(": ");
+        out.write(String.valueOf(entry.getMessage()));
+        out.write('\n');
+        out.write(String.valueOf(entry.getBody()));
+        out.write('\n');
+    }
+}
@@ -0,0 +1,287 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** UTF-8 helpers for output captured as bytes. */
+final class Utf8 {
+
+    /** Bytes of U+FFFD, written for an unpaired surrogate. */
+    private static final byte[] REPLACEMENT = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+    private Utf8() {
+    }
+
+    /**
+     * Takes captured UTF-8 bytes as they are, possibly malformed or with a
+     * character split between calls; see {@link OutputBuffer#writeTo}.
+     */
+    interface Sink {
+        void writeUtf8(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * A {@link Writer} that also takes well-formed, complete UTF-8 sequences and
+     * copies them to its output without encoding. Bytes and chars stay in order.
+     */
+    interface RawWriter {
+        void writeUtf8(byte[] b, int off, int len) throws IOException;
+    }
+
+    /** Most bytes {@link #encode} writes per char. */
+    static final int MAX_BYTES_PER_CHAR = 3;
+
+    /**
+     * Encodes {@code s[off, off + len)} into {@code dst} from {@code pos}, which
+     * must have room for {@code len * MAX_BYTES_PER_CHAR} bytes. Unpaired
+     * surrogates become U+FFFD.
+     *
+     * @return the position after the last byte written
+     */
+    static int encode(CharSequence s, int off, int len, byte[] dst, int pos) {
+        int end = off + len;
+        int i = off;
+        // ASCII runs are the common case for logs
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c >= 0x80) break;
+            dst[pos++] = (byte) c;
+            i++;
+        }
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | c >> 6);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    dst[pos++] = (byte) (0xF0 | cp >> 18);
+                    dst[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                    dst[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                    dst[pos++] = (byte) (0x80 | cp & 0x3F);
+                } else {
+                    System.arraycopy(REPLACEMENT, 0, dst, pos, REPLACEMENT.length);
+                    pos += REPLACEMENT.length;
+                }
+            } else {
+                dst[pos++] = (byte) (0xE0 | c >> 12);
+                dst[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                dst[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Length of the UTF-8 sequence starting with {@code lead}, or 0 if it cannot
+     * start one.
+     */
+    static int sequenceLength(int lead) {
+        if (lead < 0x80) return 1;
+        if (lead < 0xC2) return 0;
+        if (lead < 0xE0) return 2;
+        if (lead < 0xF0) return 3;
+        if (lead < 0xF5) return 4;
+        return 0;
+    }
+
+    /**
+     * Checks the sequence starting at {@code b[i]}.
+     *
+     * @return its length if it is a well-formed character, 0 if it is malformed
+     *         (the lead byte should be replaced), -1 if it is cut off by {@code end}
+     */
+    static int validLength(byte[] b, int i, int end) {
+        int lead = b[i] & 0xFF;
+        if (lead < 0x80) return 1;
+        int n = sequenceLength(lead);
+        if (n == 0) return 0;
+        for (int j = 1; j < n; j++) {
+            if (i + j >= end) return -1;
+            int c = b[i + j] & 0xFF;
+            int lo = 0x80;
+            int hi = 0xBF;
+            if (j == 1) {
+                // exclude overlong forms, surrogates and code points above U+10FFFF
+                if (lead == 0xE0) lo = 0xA0;
+                else if (lead == 0xED) hi = 0x9F;
+                else if (lead == 0xF0) lo = 0x90;
+                else if (lead == 0xF4) hi = 0x8F;
+            }
+            if (c < lo || c > hi) return 0;
+        }
+        return n;
+    }
+
+    /**
+     * Decodes UTF-8 chunks to a {@link Writer}; a character split between two
+     * chunks is decoded once both have arrived. Malformed input becomes U+FFFD.
+     */
+    static final class Decoder {
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer chars = CharBuffer.allocate(4096);
+        /** Start of an incomplete sequence that ended the previous chunk. */
+        private final ByteBuffer pending = ByteBuffer.allocate(4);
+
+        void write(byte[] b, int off, int len, Writer out) throws IOException {
+            int n = 0;
+            if (pending.position() > 0) {
+                // complete the pending sequence on its own, then decode the rest in place
+                while (n < len && pending.hasRemaining() && pending.position() < needed()) {
+                    pending.put(b[off + n++]);
+                }
+                ((Buffer) pending).flip();
+                decode(pending, out, false);
+                pending.compact();
+                if (pending.position() > 0 && n < len) {
+                    // still incomplete although more bytes followed: malformed
+                    flushPending(out);
+                }
+            }
+            ByteBuffer in = ByteBuffer.wrap(b, off + n, len - n);
+            decode(in, out, false);
+            pending.put(in);
+        }
+
+        /** Writes U+FFFD for an incomplete sequence left by the last chunk. */
+        void end(Writer out) throws IOException {
+            if (pending.position() > 0) {
+                flushPending(out);
+            }
+        }
+
+        private void flushPending(Writer out) throws IOException {
+            ((Buffer) pending).flip();
+            decode(pending, out, true);
+            ((Buffer) pending).clear();
+            decoder.reset();
+        }
+
+        private int needed() {
+            int length = sequenceLength(pending.get(0) & 0xFF);
+            return length == 0 ? 1 : length;
+        }
+
+        private void decode(ByteBuffer in, Writer out, boolean endOfInput) throws IOException {
+            for (;;) {
+                CoderResult result = decoder.decode(in, chars, endOfInput);
+                if (endOfInput && result.isUnderflow()) {
+                    result = decoder.flush(chars);
+                }
+                ((Buffer) chars).flip();
+                out.write(chars.array(), chars.arrayOffset(), chars.remaining());
+                ((Buffer) chars).clear();
+                if (!result.isOverflow()) break;
+            }
+        }
+    }
+
+    /**
+     * Writer collecting UTF-8 in a growable array. Bytes handed to
+     * {@link #writeUtf8} are copied as they are; a surrogate pair split between
+     * two writes is joined up.
+     */
+    static final class ByteArrayWriter extends Writer implements Sink, RawWriter {
+        private byte[] bytes;
+        private int size;
+        /** High surrogate that ended the last write, waiting for its pair. */
+        private char pendingHigh;
+
+        ByteArrayWriter(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            write(CharBuffer.wrap(cbuf, off, len), 0, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            write((CharSequence) str, off, len);
+        }
+
+        private void write(CharSequence s, int off, int len) {
+            if (len == 0) return;
+            if (pendingHigh != 0) {
+                if (Character.isLowSurrogate(s.charAt(off))) {
+                    encode(new String(new char[] {pendingHigh, s.charAt(off)}), 0, 2);
+                    off++;
+                    len--;
+                } else {
+                    encode(String.valueOf(pendingHigh), 0, 1);
+                }
+                pendingHigh = 0;
+            }
+            if (len > 0 && Character.isHighSurrogate(s.charAt(off + len - 1))) {
+                pendingHigh = s.charAt(off + --len);
+            }
+            encode(s, off, len);
+        }
+
+        @Override
+        public void writeUtf8(byte[] b, int off, int len) {
+            end();
+            ensure(len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        /** Writes U+FFFD for a high surrogate left without its pair. */
+        void end() {
+            if (pendingHigh != 0) {
+                encode(String.valueOf(pendingHigh), 0, 1);
+                pendingHigh = 0;
+            }
+        }
+
+        byte[] array() {
+            return bytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        void reset() {
+            size = 0;
+            pendingHigh = 0;
+        }
+
+        private void encode(CharSequence s, int off, int len) {
+            ensure(len * MAX_BYTES_PER_CHAR);
+            size = Utf8.encode(s, off, len, bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (bytes.length - size < extra) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.walnutgeek.junitreporter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Escapes text and attribute values for XML 1.0, replacing characters XML
+ * cannot represent (most C0 controls, unpaired surrogates, U+FFFE and U+FFFF)
+ * with U+FFFD instead of failing.
+ *
+ * <p>Input is scanned for the few characters that need attention and the runs
+ * between them are written to the {@link Writer} in bulk, so text with nothing
+ * to escape is written with a single call and never copied.
+ */
+final class XmlEscaper {
+
+    static final char REPLACEMENT = '\uFFFD';
+    private static final String REPLACEMENT_TEXT = String.valueOf(REPLACEMENT);
+
+    /** ASCII chars that text content cannot contain as is. */
+    private static final boolean[] TEXT_SPECIAL = new boolean[128];
+    /** ASCII chars that attribute values cannot contain as is; parsers normalize tabs and newlines in them. */
+    private static final boolean[] ATTRIBUTE_SPECIAL = new boolean[128];
+
+    static {
+        for (char c = 0; c < 0x20; c++) {
+            TEXT_SPECIAL[c] = c != '\t' && c != '\n';
+            ATTRIBUTE_SPECIAL[c] = true;
+        }
+        TEXT_SPECIAL['<'] = TEXT_SPECIAL['&'] = TEXT_SPECIAL['>'] = true;
+        ATTRIBUTE_SPECIAL['<'] = ATTRIBUTE_SPECIAL['&'] = ATTRIBUTE_SPECIAL['>'] = ATTRIBUTE_SPECIAL['"'] = true;
+    }
+
+    private XmlEscaper() {
+    }
+
+    /** Writes {@code s} as escaped text content. */
+    static void writeText(Writer out, String s) throws IOException {
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 128 ? !TEXT_SPECIAL[c] : c < Character.MIN_SURROGATE) {
+                continue;
+            }
+            if (c >= 128 && legal(s, i, len)) {
+                if (Character.isHighSurrogate(c)) i++;
+                continue;
+            }
+            if (i > start) out.write(s, start, i - start);
+            out.write(escape(c, false));
+            start = i + 1;
+        }
+        if (start == 0) {
+            out.write(s);
+        } else if (start < len) {
+            out.write(s, start, len - start);
+        }
+    }
+
+    /** Writes {@code s} as the escaped value of a double-quoted attribute. */
+    static void writeAttribute(Writer out, String s) throws IOException {
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 128 ? !ATTRIBUTE_SPECIAL[c] : c < Character.MIN_SURROGATE) {
+                continue;
+            }
+            if (c >= 128 && legal(s, i, len)) {
+                if (Character.isHighSurrogate(c)) i++;
+                continue;
+            }
+            if (i > start) out.write(s, start, i - start);
+            out.write(escape(c, true));
+            start = i + 1;
+        }
+        if (start == 0) {
+            out.write(s);
+        } else if (start < len) {
+            out.write(s, start, len - start);
+        }
+    }
+
+    /**
+     * Returns {@code s} with characters XML cannot represent replaced by
+     * {@link #REPLACEMENT}; {@code s} itself when there are none, {@code ""} for {@code null}.
+     */
+    static String sanitize(String s) {
+        if (s == null) return "";
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 ? c < Character.MIN_SURROGATE : c == '\t' || c == '\n' || c == '\r') {
+                continue;
+            }
+            if (c >= 0x20 && legal(s, i, len)) {
+                if (Character.isHighSurrogate(c)) i++;
+                continue;
+            }
+            char[] chars = s.toCharArray();
+            for (int j = i; j < len; j++) {
+                char d = chars[j];
+                if (d >= 0x20 ? d < Character.MIN_SURROGATE : d == '\t' || d == '\n' || d == '\r') {
+                    continue;
+                }
+                if (d >= 0x20 && legal(s, j, len)) {
+                    if (Character.isHighSurrogate(d)) j++;
+                    continue;
+                }
+                chars[j] = REPLACEMENT;
+            }
+            return new String(chars);
+        }
+        return s;
+    }
+
+    /** Whether the non-ASCII char at {@code i} is legal, a high surrogate counting only when its pair follows. */
+    private static boolean legal(CharSequence s, int i, int len) {
+        char c = s.charAt(i);
+        if (Character.isHighSurrogate(c)) {
+            return i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1));
+        }
+        return !Character.isLowSurrogate(c) && c != '\uFFFE' && c != '\uFFFF';
+    }
+
+    private static String escape(char c, boolean attribute) {
+        switch (c) {
+            case '<': return "&lt;";
+            case '>': return "&gt;";
+            case '&': return "&amp;";
+            case '"': return "&quot;";
+            case '\r': return "&#13;";
+            case '\n': return attribute ? "&#10;" : "\n";
+            case '\t': return attribute ? "&#9;" : "\t";
+            default: return REPLACEMENT_TEXT;
+        }
+    }
+
+    /**
+     * Writer escaping text content streamed in chunks, for output read back from
+     * a buffer. A character split between two writes is kept together; call
+     * {@link #end()} after the last chunk of an element.
+     *
+     * <p>Captured UTF-8 bytes are escaped as bytes: when the underlying writer is
+     * a {@link Utf8.RawWriter}, well-formed runs are copied to it without being
+     * decoded and encoded again. Malformed bytes are replaced like illegal chars.
+     */
+    static final class TextWriter extends Writer implements Utf8.Sink {
+        private final Writer out;
+        private final Utf8.RawWriter raw;
+        /** High surrogate that ended the previous chunk, or 0. */
+        private char pending;
+        /** Start of a UTF-8 sequence that ended the previous byte chunk. */
+        private final byte[] pendingBytes = new byte[4];
+        private int pendingByteCount;
+        /** Decodes bytes when {@link #out} only takes chars. */
+        private Utf8.Decoder decoder;
+        private final Writer chars = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                escapeChars(cbuf, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        TextWriter(Writer out) {
+            this.out = out;
+            this.raw = out instanceof Utf8.RawWriter ? (Utf8.RawWriter) out : null;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) return;
+            endBytes();
+            escapeChars(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            endBytes();
+            if (pending == 0 && off == 0 && len == str.length() && len > 0
+                    && !Character.isHighSurrogate(str.charAt(len - 1))) {
+                writeText(out, str);
+            } else {
+                super.write(str, off, len);
+            }
+        }
+
+        @Override
+        public void writeUtf8(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            endChars();
+            if (raw == null) {
+                if (decoder == null) decoder = new Utf8.Decoder();
+                decoder.write(b, off, len, chars);
+                return;
+            }
+            int end = off + len;
+            int i = completePending(b, off, end);
+            int start = i;
+            while (i < end) {
+                int c = b[i] & 0xFF;
+                if (c < 128) {
+                    if (!TEXT_SPECIAL[c]) {
+                        i++;
+                        continue;
+                    }
+                    if (i > start) raw.writeUtf8(b, start, i - start);
+                    out.write(escape((char) c, false));
+                    start = ++i;
+                    continue;
+                }
+                int n = Utf8.validLength(b, i, end);
+                if (n > 0 && !isNonCharacter(b, i, n)) {
+                    i += n;
+                    continue;
+                }
+                if (i > start) raw.writeUtf8(b, start, i - start);
+                if (n < 0) {
+                    pendingByteCount = end - i;
+                    System.arraycopy(b, i, pendingBytes, 0, pendingByteCount);
+                    return;
+                }
+                out.write(REPLACEMENT);
+                i += Math.max(n, 1);
+                start = i;
+            }
+            if (i > start) raw.writeUtf8(b, start, i - start);
+        }
+
+        /** Replaces a character left incomplete by the last chunk. */
+        void end() throws IOException {
+            endChars();
+            endBytes();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void escapeChars(char[] cbuf, int off, int len) throws IOException {
+            int end = off + len;
+            int start = off;
+            if (pending != 0) {
+                if (Character.isLowSurrogate(cbuf[off])) {
+                    out.write(pending);
+                    out.write(cbuf[off]);
+                    start++;
+                } else {
+                    out.write(REPLACEMENT);
+                }
+                pending = 0;
+            }
+            for (int i = start; i < end; i++) {
+                char c = cbuf[i];
+                if (c < 128 ? !TEXT_SPECIAL[c] : c < Character.MIN_SURROGATE) {
+                    continue;
+                }
+                if (c >= 128) {
+                    if (Character.isHighSurrogate(c)) {
+                        if (i + 1 == end) {
+                            if (i > start) out.write(cbuf, start, i - start);
+                            pending = c;
+                            return;
+                        }
+                        if (Character.isLowSurrogate(cbuf[i + 1])) {
+                            i++;
+                            continue;
+                        }
+                    } else if (!Character.isLowSurrogate(c) && c != '\uFFFE' && c != '\uFFFF') {
+                        continue;
+                    }
+                }
+                if (i > start) out.write(cbuf, start, i - start);
+                out.write(escape(c, false));
+                start = i + 1;
+            }
+            if (start < end) out.write(cbuf, start, end - start);
+        }
+
+        /**
+         * Completes {@link #pendingBytes} with the continuation bytes at the start of
+         * {@code b} and writes the character, or its replacement if malformed.
+         *
+         * @return the index of the first byte not consumed
+         */
+        private int completePending(byte[] b, int i, int end) throws IOException {
+            if (pendingByteCount == 0) return i;
+            int needed = Utf8.sequenceLength(pendingBytes[0] & 0xFF);
+            while (pendingByteCount < needed && i < end && (b[i] & 0xC0) == 0x80) {
+                pendingBytes[pendingByteCount++] = b[i++];
+            }
+            if (pendingByteCount < needed && i == end) {
+                return i;
+            }
+            int n = Utf8.validLength(pendingBytes, 0, pendingByteCount);
+            if (n == pendingByteCount && !isNonCharacter(pendingBytes, 0, n)) {
+                raw.writeUtf8(pendingBytes, 0, n);
+            } else {
+                out.write(REPLACEMENT);
+            }
+            pendingByteCount = 0;
+            return i;
+        }
+
+        private void endChars() throws IOException {
+            if (pending != 0) {
+                out.write(REPLACEMENT);
+                pending = 0;
+            }
+        }
+
+        private void endBytes() throws IOException {
+            if (pendingByteCount > 0) {
+                out.write(REPLACEMENT);
+                pendingByteCount = 0;
+            }
+            if (decoder != null) {
+                decoder.end(chars);
+            }
+        }
+
+        /** U+FFFE and U+FFFF are well-formed UTF-8 but not allowed in XML. */
+        private static boolean isNonCharacter(byte[] b, int i, int n) {
+            return n == 3 && b[i] == (byte) 0xEF && b[i + 1] == (byte) 0xBF
+                    && (b[i + 2] == (byte) 0xBE || b[i + 2] == (byte) 0xBF);
+        }
+    }
+}
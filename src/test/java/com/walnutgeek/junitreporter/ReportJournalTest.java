@@ -0,0 +1,308 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReportJournalTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static void record(TestSuiteReporter suite, int i) {
+        TestCaseReporter tc = suite.testCase("test" + i);
+        tc.setTime(0.5);
+        tc.addStdout("out " + i + " <&>\n");
+        if (i % 2 == 0) {
+            tc.addFailure("AssertionError", "msg " + i, "trace " + i);
+        }
+        tc.finish();
+    }
+
+    @Test
+    public void testFinishedCasesAreJournaledAndReleased() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File journal = suite.enableJournal(tempDir.getRoot());
+        assertEquals("TEST-com.example.MyTest.xml.journal", journal.getName());
+
+        record(suite, 0);
+        TestCaseReporter tc = suite.testCase("test0");
+        assertTrue(tc.isFinished());
+        assertFalse(tc.hasStdout());
+        assertTrue(journal.length() > 0);
+        suite.close();
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testWriteXmlCombinesJournalAndMemory() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.addProperty("env", "ci");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        for (int i = 0; i < 4; i++) {
+            record(suite, i);
+        }
+        suite.testCase("testEmpty").finish();
+        suite.testCase("testRunning").addStdout("still running\n");
+
+        File out = tempDir.newFolder("out");
+        suite.writeXml(out);
+        Element root = new SAXBuilder().build(new File(out, "TEST-com.example.MyTest.xml")).getRootElement();
+        assertEquals("6", root.getAttributeValue("tests"));
+        assertEquals("2", root.getAttributeValue("failures"));
+        assertEquals(2.0, Double.parseDouble(root.getAttributeValue("time")), 0.001);
+        assertEquals("ci", root.getChild("properties").getChild("property").getAttributeValue("value"));
+        List<Element> cases = root.getChildren("testcase");
+        assertEquals(6, cases.size());
+        assertEquals("testEmpty", cases.get(4).getAttributeValue("name"));
+        assertEquals("test0", cases.get(0).getAttributeValue("name"));
+        assertEquals("out 0 <&>\n", cases.get(0).getChildText("system-out"));
+        assertEquals("trace 0", cases.get(0).getChild("failure").getText());
+        assertEquals("testRunning", cases.get(5).getAttributeValue("name"));
+        assertEquals("still running\n", cases.get(5).getChildText("system-out"));
+        suite.close();
+    }
+
+    @Test
+    public void testJournaledCasesKeepRegistrationOrder() throws Exception {
+        TestSuiteReporter journaled = new TestSuiteReporter("com.example.MyTest", "2024-01-01T00:00:00");
+        TestSuiteReporter plain = new TestSuiteReporter("com.example.MyTest", "2024-01-01T00:00:00");
+        journaled.enableJournal(tempDir.newFolder("journal"));
+        for (TestSuiteReporter suite : new TestSuiteReporter[] {journaled, plain}) {
+            for (String name : new String[] {"testNeverFinished", "testB", "testRunning", "testD"}) {
+                suite.testCase(name);
+            }
+            suite.testCase("testNeverFinished").addStdout("left open\n");
+            TestCaseReporter d = suite.testCase("testD");
+            d.enableHistogram();
+            d.recordInvocation(1000);
+            d.addStdout("looks like\n  <indentation> \n  ");
+            d.finish();
+            TestCaseReporter b = suite.testCase("testB");
+            b.addFailure("AssertionError", "msg", "trace\n  ");
+            b.finish();
+            suite.testCase("testRunning").addStdout("partial\n");
+        }
+
+        File journaledOut = tempDir.newFolder("journaled");
+        File plainOut = tempDir.newFolder("plain");
+        journaled.writeXml(journaledOut);
+        plain.writeXml(plainOut);
+        assertEquals(read(new File(plainOut, "TEST-com.example.MyTest.xml")),
+                read(new File(journaledOut, "TEST-com.example.MyTest.xml")));
+
+        StringWriter journaledAll = new StringWriter();
+        new StreamingXmlWriter(journaledAll).writeAll("all", Arrays.asList(journaled));
+        StringWriter plainAll = new StringWriter();
+        new StreamingXmlWriter(plainAll).writeAll("all", Arrays.asList(plain));
+        assertEquals(plainAll.toString(), journaledAll.toString());
+
+        journaled.writeXml(journaledOut, ReportOptions.DEFAULT.withShardLimits(Long.MAX_VALUE, 3));
+        plain.writeXml(plainOut, ReportOptions.DEFAULT.withShardLimits(Long.MAX_VALUE, 3));
+        for (int n = 1; n <= 2; n++) {
+            String shard = "TEST-com.example.MyTest-" + n + ".xml";
+            assertEquals(read(new File(plainOut, shard)), read(new File(journaledOut, shard)));
+        }
+
+        XMLOutputter raw = new XMLOutputter(Format.getRawFormat());
+        assertEquals(raw.outputString(plain.toDocument()), raw.outputString(journaled.toDocument()));
+        journaled.close();
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testShardsSplitJournalAndMemory() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        for (int i = 0; i < 4; i++) {
+            record(suite, i);
+        }
+        suite.testCase("testEmpty").finish();
+        suite.testCase("testRunning").addStdout("still running\n");
+
+        File out = tempDir.newFolder("out");
+        suite.writeXml(out, ReportOptions.DEFAULT.withShardLimits(Long.MAX_VALUE, 2));
+        String[][] expected = {{"test0", "test1"}, {"test2", "test3"}, {"testEmpty", "testRunning"}};
+        for (int n = 0; n < expected.length; n++) {
+            Element root = new SAXBuilder().build(new File(out, "TEST-com.example.MyTest-" + (n + 1) + ".xml"))
+                    .getRootElement();
+            assertEquals("2", root.getAttributeValue("tests"));
+            assertEquals(n < 2 ? "1" : "0", root.getAttributeValue("failures"));
+            List<Element> cases = root.getChildren("testcase");
+            assertEquals(2, cases.size());
+            for (int i = 0; i < 2; i++) {
+                assertEquals(expected[n][i], cases.get(i).getAttributeValue("name"));
+            }
+        }
+        Element last = new SAXBuilder().build(new File(out, "TEST-com.example.MyTest-3.xml")).getRootElement();
+        assertEquals("still running\n", last.getChildren("testcase").get(1).getChildText("system-out"));
+        assertEquals(3, out.list().length);
+        suite.close();
+    }
+
+    @Test
+    public void testFinishIsIdempotent() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.getRoot());
+        record(suite, 1);
+        suite.testCase("test1").finish();
+
+        File out = tempDir.newFolder("out");
+        suite.writeXml(out);
+        Element root = new SAXBuilder().build(new File(out, "TEST-com.example.MyTest.xml")).getRootElement();
+        assertEquals(1, root.getChildren("testcase").size());
+        suite.close();
+    }
+
+    @Test
+    public void testRecoverFromTornJournal() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.addProperty("env", "ci");
+        File journal = suite.enableJournal(tempDir.newFolder("journal"));
+        for (int i = 0; i < 3; i++) {
+            record(suite, i);
+        }
+        // simulate a crash in the middle of appending the last record
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        File out = tempDir.newFolder("out");
+        File report = ReportJournal.recover(journal, out);
+        assertEquals("TEST-com.example.MyTest.xml", report.getName());
+        Element root = new SAXBuilder().build(report).getRootElement();
+        assertEquals("com.example.MyTest", root.getAttributeValue("name"));
+        assertEquals("2", root.getAttributeValue("tests"));
+        assertEquals("1", root.getAttributeValue("failures"));
+        assertEquals(1.0, Double.parseDouble(root.getAttributeValue("time")), 0.001);
+        assertEquals("ci", root.getChild("properties").getChild("property").getAttributeValue("value"));
+        assertEquals(2, root.getChildren("testcase").size());
+        assertEquals("out 1 <&>\n", root.getChildren("testcase").get(1).getChildText("system-out"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRecoverRejectsOtherFiles() throws IOException {
+        File file = tempDir.newFile("garbage.journal");
+        Files.write(file.toPath(), "not a journal".getBytes("UTF-8"));
+        ReportJournal.recover(file, tempDir.getRoot());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEnableJournalTwice() throws IOException {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.getRoot());
+        try {
+            suite.enableJournal(tempDir.getRoot());
+        } finally {
+            suite.close();
+        }
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByLaterJournaling() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        record(suite, 0);
+        record(suite, 1);
+        TestCaseReporter running = suite.testCase("test2");
+        running.addStdout("partial\n");
+        running.addFailure("AssertionError", "msg 2", "trace 2");
+
+        SuiteSnapshot snapshot = suite.snapshot();
+        running.finish();
+        record(suite, 3);
+
+        assertEquals(3, snapshot.getSummary().getTests());
+        assertEquals(2, snapshot.getSummary().getFailures());
+        assertEquals(3, snapshot.getTestCases().size());
+        StringWriter xml = new StringWriter();
+        new StreamingXmlWriter(xml).write(snapshot);
+        Element root = new SAXBuilder().build(new StringReader(xml.toString())).getRootElement();
+        assertEquals("3", root.getAttributeValue("tests"));
+        assertEquals("2", root.getAttributeValue("failures"));
+        List<Element> cases = root.getChildren("testcase");
+        assertEquals(3, cases.size());
+        assertEquals("out 1 <&>\n", cases.get(1).getChildText("system-out"));
+        assertEquals("test2", cases.get(2).getAttributeValue("name"));
+        assertEquals("partial\n", cases.get(2).getChildText("system-out"));
+
+        StringWriter text = new StringWriter();
+        new TextReportWriter(text).write(snapshot);
+        assertTrue(text.toString().contains("test0"));
+        assertTrue(text.toString().contains("test2"));
+        suite.close();
+    }
+
+    @Test
+    public void testSnapshotKeepsSpillFileOfLaterJournaledCase() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(100, Long.MAX_VALUE);
+        TestCaseReporter running = suite.testCase("test0");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String line = "line " + i + "\n";
+            running.addStdout(line);
+            expected.append(line);
+        }
+        assertEquals(1, spillDir.listFiles().length);
+
+        SuiteSnapshot snapshot = suite.snapshot();
+        running.finish();
+        assertEquals(0, suite.getBufferedOutputBytes());
+        StringWriter xml = new StringWriter();
+        new StreamingXmlWriter(xml).write(snapshot);
+        Element root = new SAXBuilder().build(new StringReader(xml.toString())).getRootElement();
+        assertEquals(expected.toString(), root.getChild("testcase").getChildText("system-out"));
+
+        suite.close();
+        assertEquals(0, spillDir.listFiles().length);
+    }
+
+    @Test
+    public void testToDocumentReadsJournaledCases() throws Exception {
+        TestSuiteReporter journaled = new TestSuiteReporter("com.example.MyTest", "2024-01-01T00:00:00");
+        TestSuiteReporter plain = new TestSuiteReporter("com.example.MyTest", "2024-01-01T00:00:00");
+        journaled.enableJournal(tempDir.getRoot());
+        for (TestSuiteReporter suite : new TestSuiteReporter[] {journaled, plain}) {
+            suite.addProperty("key", "value");
+            record(suite, 0);
+            record(suite, 1);
+            TestCaseReporter timed = suite.testCase("testTimed");
+            timed.enableHistogram();
+            timed.recordInvocation(1000);
+            timed.addStderr(" \n");
+            timed.finish();
+            suite.testCase("testRunning").addStdout("partial\n");
+        }
+
+        Element root = journaled.toDocument().getRootElement();
+        assertEquals("4", root.getAttributeValue("tests"));
+        assertEquals("out 1 <&>\n", root.getChildren("testcase").get(1).getChildText("system-out"));
+        assertEquals(" \n", root.getChildren("testcase").get(2).getChild("system-err").getText());
+        XMLOutputter raw = new XMLOutputter(Format.getRawFormat());
+        assertEquals(raw.outputString(plain.toDocument()), raw.outputString(journaled.toDocument()));
+        journaled.close();
+    }
+}
@@ -0,0 +1,140 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReportReaderTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static TestSuiteReporter sample(String name, int cases) {
+        TestSuiteReporter suite = new TestSuiteReporter(name);
+        suite.addProperty("env", "ci");
+        for (int i = 0; i < cases; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.setTime(0.25);
+            tc.addStdout("out " + i + " <&>\n");
+            if (i % 2 == 0) {
+                tc.addFailure("AssertionError", "msg " + i, "trace " + i);
+            }
+        }
+        return suite;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TestSuiteReporter original = sample("com.example.MyTest", 3);
+        original.testCase("testErr").addError("IOException", "boom", "at x");
+        original.testCase("testErr").addStderr("err\n");
+        File dir = tempDir.getRoot();
+        original.writeXml(dir);
+        File report = new File(dir, "TEST-com.example.MyTest.xml");
+
+        TestSuiteReporter read = ReportReader.read(report);
+        assertEquals("com.example.MyTest", read.getName());
+        assertEquals(original.getTimestamp(), read.getTimestamp());
+        assertEquals("ci", read.getProperties().get("env"));
+        assertEquals(4, read.getTestCount());
+        assertEquals(2, read.getSummary().getFailures());
+        assertEquals(1, read.getSummary().getErrors());
+        assertEquals(0.75, read.getSummary().getTime(), 1e-9);
+
+        TestCaseReporter tc = read.testCase("test0");
+        assertEquals("out 0 <&>\n", tc.getStdout());
+        assertEquals("trace 0", tc.getFailures().get(0).getBody());
+        assertEquals("msg 0", tc.getFailures().get(0).getMessage());
+        assertEquals("err\n", read.testCase("testErr").getStderr());
+    }
+
+    @Test
+    public void testKeepsCasesOfTheSameNameAndTheirClassNames() throws Exception {
+        File report = tempDir.newFile("TEST-com.example.Suite.xml");
+        Files.write(report.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuite name=\"com.example.Suite\" tests=\"3\" failures=\"1\" errors=\"0\">\n"
+                + "  <testcase name=\"testRun\" classname=\"com.example.FirstTest\" time=\"1.000\">\n"
+                + "    <failure type=\"AssertionError\" message=\"first\">trace</failure>\n"
+                + "  </testcase>\n"
+                + "  <testcase name=\"testRun\" classname=\"com.example.SecondTest\" time=\"2.000\"/>\n"
+                + "  <testcase name=\"testOther\" time=\"0.500\"/>\n"
+                + "</testsuite>\n").getBytes(StandardCharsets.UTF_8));
+
+        TestSuiteReporter read = ReportReader.read(report);
+        assertEquals(3, read.getTestCount());
+        assertEquals(1, read.getSummary().getFailures());
+        assertEquals(3.5, read.getSummary().getTime(), 1e-9);
+        assertEquals("com.example.FirstTest", read.testCase("testRun").getClassName());
+        assertTrue(read.testCase("testRun").hasFailure());
+
+        List<Element> cases = read.toDocument().getRootElement().getChildren("testcase");
+        assertEquals(3, cases.size());
+        assertEquals("testRun", cases.get(1).getAttributeValue("name"));
+        assertEquals("com.example.SecondTest", cases.get(1).getAttributeValue("classname"));
+        assertNull(cases.get(1).getChild("failure"));
+        assertEquals("com.example.Suite", cases.get(2).getAttributeValue("classname"));
+    }
+
+    @Test
+    public void testReadsGzipReport() throws Exception {
+        sample("com.example.Zipped", 2).writeXml(tempDir.getRoot(), ReportOptions.DEFAULT.withGzip(6));
+        File report = new File(tempDir.getRoot(), "TEST-com.example.Zipped.xml.gz");
+        assertEquals(2, ReportReader.read(report).getTestCount());
+    }
+
+    @Test
+    public void testSessionReadsReportsInParallel() throws Exception {
+        File dir = tempDir.getRoot();
+        for (int i = 0; i < 5; i++) {
+            sample("com.example.Test" + i, i + 1).writeXml(dir);
+        }
+        ReportSession session = new ReportSession();
+        session.setParallelism(3);
+        session.readReports(ReportMerger.findReports(dir));
+        assertEquals(5, session.getSuiteCount());
+        assertEquals(5, session.suite("com.example.Test4").getTestCount());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        File in = tempDir.newFolder("in");
+        TestSuiteReporter a = sample("com.example.A", 2);
+        TestSuiteReporter b = sample("com.example.B", 3);
+        a.writeXml(in);
+        b.writeXml(in, ReportOptions.DEFAULT.withGzip(1));
+        ReportSession nested = new ReportSession();
+        nested.suite("com.example.C").testCase("only").setTime(1);
+        nested.writeAggregatedXml(new File(in, "TEST-all.xml"), "all");
+
+        List<File> reports = ReportMerger.findReports(in);
+        assertEquals(3, reports.size());
+        ReportMerger merger = new ReportMerger();
+        merger.setParallelism(2);
+        merger.setTempDirectory(tempDir.newFolder("tmp"));
+        File out = tempDir.newFile("merged.xml");
+        TestSuiteReporter.Summary total = merger.merge(reports, out, "merged");
+
+        assertEquals(6, total.getTests());
+        assertEquals(3, total.getFailures());
+        assertEquals(2.25, total.getTime(), 1e-9);
+        Element root = new SAXBuilder().build(out).getRootElement();
+        assertEquals("testsuites", root.getName());
+        assertEquals("6", root.getAttributeValue("tests"));
+        List<Element> suites = root.getChildren("testsuite");
+        assertEquals(Arrays.asList("com.example.C", "com.example.A", "com.example.B"),
+                Arrays.asList(suites.get(0).getAttributeValue("name"), suites.get(1).getAttributeValue("name"),
+                        suites.get(2).getAttributeValue("name")));
+        assertEquals("out 1 <&>\n", suites.get(2).getChildren("testcase").get(1).getChildText("system-out"));
+        assertEquals(0, tempDir.getRoot().toPath().resolve("tmp").toFile().list().length);
+    }
+}
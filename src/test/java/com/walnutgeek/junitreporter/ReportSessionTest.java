@@ -0,0 +1,96 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReportSessionTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static ReportSession sampleSession(int suiteCount) {
+        ReportSession session = new ReportSession();
+        for (int i = 0; i < suiteCount; i++) {
+            TestSuiteReporter suite = session.suite("com.example.Suite" + i);
+            suite.testCase("testPass").setTime(0.5);
+            TestCaseReporter tc = suite.testCase("testFail");
+            tc.setTime(0.25);
+            tc.addFailure("AssertionError", "msg " + i, "trace");
+            tc.addStdout("out " + i + "\n");
+        }
+        return session;
+    }
+
+    @Test
+    public void testSuiteIsCreatedOnce() {
+        ReportSession session = new ReportSession();
+        assertSame(session.suite("com.example.A"), session.suite("com.example.A"));
+        assertEquals(1, session.getSuiteCount());
+    }
+
+    @Test
+    public void testWriteAllWritesEverySuite() throws Exception {
+        ReportSession session = sampleSession(20);
+        session.setParallelism(4);
+        File dir = tempDir.getRoot();
+        session.writeAll(dir);
+
+        for (int i = 0; i < 20; i++) {
+            File xml = new File(dir, "TEST-com.example.Suite" + i + ".xml");
+            assertTrue(xml.exists());
+            Element root = new SAXBuilder().build(xml).getRootElement();
+            assertEquals("2", root.getAttributeValue("tests"));
+            assertEquals("1", root.getAttributeValue("failures"));
+            assertTrue(new File(dir, "com.example.Suite" + i + ".txt").exists());
+        }
+        session.close();
+    }
+
+    @Test
+    public void testWriteAllWithTinyMemoryLimit() throws Exception {
+        ReportSession session = sampleSession(5);
+        session.setMemoryLimit(1024);
+        session.writeAll(tempDir.getRoot());
+        assertEquals(10, tempDir.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void testWriteAllReportsFailure() {
+        ReportSession session = sampleSession(3);
+        File missing = new File(tempDir.getRoot(), "missing");
+        try {
+            session.writeAll(missing);
+            fail("expected IOException");
+        } catch (java.io.IOException expected) {
+        }
+    }
+
+    @Test
+    public void testWriteAggregatedXml() throws Exception {
+        ReportSession session = sampleSession(3);
+        File file = new File(tempDir.getRoot(), "TEST-all.xml");
+        session.writeAggregatedXml(file, "all");
+
+        Document doc = new SAXBuilder().build(file);
+        Element root = doc.getRootElement();
+        assertEquals("testsuites", root.getName());
+        assertEquals("all", root.getAttributeValue("name"));
+        assertEquals("6", root.getAttributeValue("tests"));
+        assertEquals("3", root.getAttributeValue("failures"));
+        assertEquals(2.25, Double.parseDouble(root.getAttributeValue("time")), 0.001);
+        List<Element> suites = root.getChildren("testsuite");
+        assertEquals(3, suites.size());
+        assertEquals("com.example.Suite0", suites.get(0).getAttributeValue("name"));
+        assertEquals(2, suites.get(2).getChildren("testcase").size());
+        assertEquals("out 2\n", suites.get(2).getChildren("testcase").get(1).getChildText("system-out"));
+    }
+}
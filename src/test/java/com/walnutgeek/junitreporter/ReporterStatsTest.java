@@ -0,0 +1,76 @@
+package com.walnutgeek.junitreporter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class ReporterStatsTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void testCountsLiveCasesAndSerialization() throws Exception {
+        ReporterStats stats = new ReporterStats();
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setMetrics(stats);
+        assertEquals(1, stats.getSuites());
+
+        suite.testCase("testOne").addStdout("hello");
+        suite.testCase("testTwo").finish();
+        suite.testCase("testTwo").finish();
+        assertEquals(2, stats.getTestCasesCreated());
+        assertEquals(1, stats.getTestCasesFinished());
+        assertEquals(1, stats.getLiveTestCases());
+        assertEquals(10, stats.getBufferedOutputBytes());
+
+        File dir = tempDir.getRoot();
+        suite.writeXml(dir);
+        suite.writeText(dir);
+        suite.toDocument();
+        assertEquals(1, stats.getWriteXmlCount());
+        assertEquals(1, stats.getWriteTextCount());
+        assertEquals(1, stats.getToDocumentCount());
+        assertTrue(stats.getWriteXmlMaxNanos() > 0);
+        assertEquals(new File(dir, "TEST-com.example.MyTest.xml").length()
+                + new File(dir, "com.example.MyTest.txt").length(), stats.getBytesWritten());
+
+        suite.close();
+        assertEquals(0, stats.getSuites());
+        stats.resetOperations();
+        assertEquals(0, stats.getWriteXmlCount());
+        assertEquals(2, stats.getTestCasesCreated());
+    }
+
+    @Test
+    public void testSessionAppliesMetricsToNewSuites() {
+        ReporterStats stats = new ReporterStats();
+        ReportSession session = new ReportSession();
+        session.suite("com.example.A").testCase("a");
+        session.setMetrics(stats);
+        session.suite("com.example.B").testCase("b");
+        assertEquals(2, stats.getSuites());
+        assertEquals(1, stats.getTestCasesCreated());
+    }
+
+    @Test
+    public void testRegisterWithJmx() throws Exception {
+        ReporterStats stats = new ReporterStats();
+        ObjectName name = stats.register("test");
+        try {
+            TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+            suite.setMetrics(stats);
+            suite.testCase("testOne");
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "LiveTestCases"));
+        } finally {
+            stats.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -0,0 +1,125 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResultLogTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static void run(TestSuiteReporter suite, int from, int to) {
+        for (int i = from; i < to; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.setTime(0.25);
+            tc.addStdout("out " + i + " <&> \uD83D");
+            tc.addStdout("\uDE00 ");
+            byte[] bytes = "\u20ac\n".getBytes(StandardCharsets.UTF_8);
+            tc.addStdout(bytes, 0, 1);
+            tc.addStdout(bytes, 1, bytes.length - 1);
+            if (i % 2 == 0) {
+                tc.addFailure("AssertionError", "msg " + i, "trace " + i);
+            }
+            if (i % 3 == 0) {
+                tc.addError("IOException", null, "at x");
+                tc.addStderr("err " + i);
+            }
+            tc.finish();
+        }
+    }
+
+    @Test
+    public void testForkLogsMergeIntoReports() throws Exception {
+        File logs = tempDir.newFolder("logs");
+        TestSuiteReporter expected = new TestSuiteReporter("com.example.MyTest");
+        expected.addProperty("env", "ci");
+        run(expected, 0, 6);
+
+        for (int fork = 0; fork < 2; fork++) {
+            try (ResultLog log = ResultLog.create(new File(logs, "fork-" + fork + ResultLog.SUFFIX))) {
+                TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+                suite.addProperty("env", "ci");
+                suite.setResultLog(log);
+                run(suite, fork * 3, fork * 3 + 3);
+                TestSuiteReporter other = new TestSuiteReporter("com.example.Other" + fork);
+                other.setResultLog(log);
+                other.addProperty("fork", String.valueOf(fork));
+                other.testCase("testOther").finish();
+                other.testCase("testUnfinished");
+            }
+        }
+
+        ReportSession session = new ReportSession();
+        session.setParallelism(1);  // keep the cases in fork order
+        session.readResultLogs(ResultLog.findLogs(logs));
+        assertEquals(3, session.getSuiteCount());
+        File out = tempDir.newFolder("out");
+        session.writeAll(out);
+
+        Element merged = new SAXBuilder().build(new File(out, "TEST-com.example.MyTest.xml")).getRootElement();
+        expected.writeXml(tempDir.getRoot());
+        Element direct = new SAXBuilder().build(new File(tempDir.getRoot(), "TEST-com.example.MyTest.xml"))
+                .getRootElement();
+        merged.removeAttribute("timestamp");
+        direct.removeAttribute("timestamp");
+        assertEquals(new XMLOutputter().outputString(direct), new XMLOutputter().outputString(merged));
+
+        Element other = new SAXBuilder().build(new File(out, "TEST-com.example.Other1.xml")).getRootElement();
+        assertEquals("1", other.getAttributeValue("tests"));
+        assertEquals("1", other.getChild("properties").getChild("property").getAttributeValue("value"));
+        assertTrue(new File(out, "com.example.Other0.txt").exists());
+    }
+
+    @Test
+    public void testTruncatedLogKeepsCompleteRecords() throws Exception {
+        File file = tempDir.newFile("fork" + ResultLog.SUFFIX);
+        try (ResultLog log = ResultLog.create(file)) {
+            TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+            suite.setResultLog(log);
+            run(suite, 0, 3);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        ReportSession session = new ReportSession();
+        session.readResultLogs(Arrays.asList(file));
+        TestSuiteReporter suite = session.suite("com.example.MyTest");
+        assertEquals(2, suite.getTestCount());
+        assertEquals("out 1 <&> \uD83D\uDE00 \u20ac\n", suite.testCase("test1").getStdout());
+    }
+
+    @Test
+    public void testReadRejectsOtherFiles() throws IOException {
+        File file = tempDir.newFile("bogus" + ResultLog.SUFFIX);
+        try {
+            ResultLog.read(file, (name, timestamp) -> null);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Not a result log"));
+        }
+    }
+
+    @Test
+    public void testFindLogs() throws IOException {
+        tempDir.newFile("b" + ResultLog.SUFFIX);
+        tempDir.newFile("a" + ResultLog.SUFFIX);
+        tempDir.newFile("TEST-a.xml");
+        List<File> logs = ResultLog.findLogs(tempDir.getRoot());
+        assertEquals(2, logs.size());
+        assertEquals("a" + ResultLog.SUFFIX, logs.get(0).getName());
+    }
+}
@@ -0,0 +1,161 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StreamingXmlWriterTest {
+
+    private static Document writeAndParse(TestSuiteReporter suite) throws Exception {
+        StringWriter out = new StringWriter();
+        new StreamingXmlWriter(out).write(suite);
+        return new SAXBuilder().build(new StringReader(out.toString()));
+    }
+
+    private static TestSuiteReporter sampleSuite() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.addProperty("env", "ci");
+        suite.testCase("testPass").setTime(0.01);
+        TestCaseReporter tc = suite.testCase("testFail");
+        tc.setTime(0.045);
+        tc.addFailure("AssertionError", "expected 3 got 4", "stack trace");
+        tc.addStdout("computing...\n");
+        TestCaseReporter tc2 = suite.testCase("testError");
+        tc2.setTime(0.03);
+        tc2.addError("ArithmeticException", "/ by zero", "error trace");
+        tc2.addStderr("oops\n");
+        return suite;
+    }
+
+    @Test
+    public void testMatchesToDocument() throws Exception {
+        TestSuiteReporter suite = sampleSuite();
+        Element expected = suite.toDocument().getRootElement();
+        Element actual = writeAndParse(suite).getRootElement();
+        assertElementEquals(expected, actual);
+    }
+
+    @Test
+    public void testEmptySuite() throws Exception {
+        Element root = writeAndParse(new TestSuiteReporter("com.example.Empty")).getRootElement();
+        assertEquals("testsuite", root.getName());
+        assertEquals("0", root.getAttributeValue("tests"));
+        assertNull(root.getChild("properties"));
+        assertTrue(root.getChildren("testcase").isEmpty());
+    }
+
+    @Test
+    public void testEscapesMarkup() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        TestCaseReporter tc = suite.testCase("test<&>");
+        tc.addFailure("AssertionError", "expected \"<a>\" & 'b'", "at <init>");
+        tc.addStdout("<xml>&amp;</xml>");
+
+        Element testcase = writeAndParse(suite).getRootElement().getChild("testcase");
+        assertEquals("test<&>", testcase.getAttributeValue("name"));
+        Element failure = testcase.getChild("failure");
+        assertEquals("expected \"<a>\" & 'b'", failure.getAttributeValue("message"));
+        assertEquals("at <init>", failure.getText());
+        assertEquals("<xml>&amp;</xml>", testcase.getChildText("system-out"));
+    }
+
+    @Test
+    public void testTextWrittenVerbatim() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("testOut").addStdout("  indented\n\n");
+
+        Element testcase = writeAndParse(suite).getRootElement().getChild("testcase");
+        assertEquals("  indented\n\n", testcase.getChildText("system-out"));
+    }
+
+    @Test
+    public void testNullMessageWrittenAsEmpty() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("testNull").addError("NullPointerException", null, "trace");
+
+        Element error = writeAndParse(suite).getRootElement().getChild("testcase").getChild("error");
+        assertEquals("", error.getAttributeValue("message"));
+        assertEquals("trace", error.getText());
+    }
+
+    @Test
+    public void testIllegalCharactersReplaced() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.addProperty("env", "a\u0001b");
+        TestCaseReporter tc = suite.testCase("test\u0000");
+        tc.addFailure("AssertionError", "bad \uFFFF", "trace \u001b[31m\uDC00");
+        tc.addStdout("null\u0000 ok\r\n");
+        tc.addStdout("pair \uD83D");
+        tc.addStdout("\uDE00 lone \uD83D");
+
+        Element root = writeAndParse(suite).getRootElement();
+        assertEquals("a\uFFFDb", root.getChild("properties").getChild("property").getAttributeValue("value"));
+        Element testcase = root.getChild("testcase");
+        assertEquals("test\uFFFD", testcase.getAttributeValue("name"));
+        assertEquals("bad \uFFFD", testcase.getChild("failure").getAttributeValue("message"));
+        assertEquals("trace \uFFFD[31m\uFFFD", testcase.getChild("failure").getText());
+        assertEquals("null\uFFFD ok\r\npair \uD83D\uDE00 lone \uFFFD", testcase.getChildText("system-out"));
+
+        assertElementEquals(suite.toDocument().getRootElement(), root);
+    }
+
+    @Test
+    public void testWhitespaceInAttributesPreserved() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("testMultiline").addFailure("AssertionError", "line 1\r\n\tline 2", "trace");
+
+        Element failure = writeAndParse(suite).getRootElement().getChild("testcase").getChild("failure");
+        assertEquals("line 1\r\n\tline 2", failure.getAttributeValue("message"));
+    }
+
+    @Test
+    public void testSanitizeReturnsSameInstanceWhenLegal() {
+        String legal = "plain <text> & \uD83D\uDE00\t\n";
+        assertSame(legal, XmlEscaper.sanitize(legal));
+        assertEquals("", XmlEscaper.sanitize(null));
+        assertEquals("\uFFFD\uFFFD", XmlEscaper.sanitize("\uDE00\uD83D"));
+    }
+
+    @Test
+    public void testLatencyProperties() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        TestCaseReporter tc = suite.testCase("testRepeated");
+        tc.enableHistogram();
+        for (int i = 1; i <= 100; i++) {
+            tc.recordInvocation(i);
+        }
+        Element root = writeAndParse(suite).getRootElement();
+        assertElementEquals(suite.toDocument().getRootElement(), root);
+        List<Element> properties = root.getChild("testcase").getChild("properties").getChildren("property");
+        assertEquals(6, properties.size());
+        assertEquals("latency.count", properties.get(0).getAttributeValue("name"));
+        assertEquals("100", properties.get(0).getAttributeValue("value"));
+        assertEquals("latency.p50.ns", properties.get(2).getAttributeValue("name"));
+        assertEquals("50", properties.get(2).getAttributeValue("value"));
+        assertEquals("100", properties.get(5).getAttributeValue("value"));
+    }
+
+    private static void assertElementEquals(Element expected, Element actual) {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getAttributes().size(), actual.getAttributes().size());
+        for (org.jdom2.Attribute a : expected.getAttributes()) {
+            assertEquals(a.getName(), a.getValue(), actual.getAttributeValue(a.getName()));
+        }
+        List<Element> expectedChildren = expected.getChildren();
+        List<Element> actualChildren = actual.getChildren();
+        assertEquals(expected.getName(), expectedChildren.size(), actualChildren.size());
+        if (expectedChildren.isEmpty()) {
+            assertEquals(expected.getText(), actual.getText());
+        }
+        for (int i = 0; i < expectedChildren.size(); i++) {
+            assertElementEquals(expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+}
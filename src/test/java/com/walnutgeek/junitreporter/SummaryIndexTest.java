@@ -0,0 +1,162 @@
+package com.walnutgeek.junitreporter;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class SummaryIndexTest {
+
+    private static final ReportOptions INDEXED = ReportOptions.DEFAULT.withSummaryIndex(true);
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static void run(TestSuiteReporter suite, int from, int to) {
+        for (int i = from; i < to; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i + (i % 4 == 1 ? " <\"a&b\"> \u00e9" : ""));
+            tc.setTime(i / 100.0);
+            tc.addStdout("out " + i + " \u4e2d\n");
+            if (i % 3 == 0) {
+                tc.addFailure("AssertionError", "msg " + i, "trace " + i);
+            }
+            if (i % 5 == 0) {
+                tc.addError("IOException", null, "at x");
+            }
+            tc.finish();
+        }
+    }
+
+    private static Element element(SummaryIndex.Case c) throws Exception {
+        return new SAXBuilder().build(new StringReader(c.readXml())).getRootElement();
+    }
+
+    private static void assertIndexed(TestSuiteReporter suite, SummaryIndex index) throws Exception {
+        TestSuiteReporter.Summary summary = suite.getSummary();
+        assertEquals(suite.getName(), index.getSuiteName());
+        assertEquals(summary.getTests(), index.getTestCount());
+        assertEquals(summary.getFailures(), index.getFailureCount());
+        assertEquals(summary.getErrors(), index.getErrorCount());
+        assertEquals(summary.getTimeNanos(), index.getTimeNanos());
+        assertTrue(index.isCurrent());
+        for (int i = 0; i < index.getTestCount(); i++) {
+            SummaryIndex.Case c = index.getCase(i);
+            TestCaseReporter tc = suite.testCase(c.getName());
+            assertEquals(tc.hasFailure(), c.isFailed());
+            assertEquals(tc.hasError(), c.isErrored());
+            assertEquals(tc.getTime(), c.getTime(), 0);
+            Element element = element(c);
+            assertEquals("testcase", element.getName());
+            assertEquals(c.getName(), element.getAttributeValue("name"));
+        }
+    }
+
+    @Test
+    public void testIndexDescribesReport() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        run(suite, 0, 10);
+        File dir = tempDir.getRoot();
+        suite.writeXml(dir, INDEXED);
+
+        SummaryIndex index = SummaryIndex.open(new File(dir, "TEST-com.example.MyTest.xml" + SummaryIndex.SUFFIX));
+        assertEquals(new File(dir, "TEST-com.example.MyTest.xml"), index.getReportFile());
+        assertEquals("test0", index.getCase(0).getName());
+        assertEquals("test1 <\"a&b\"> \u00e9", index.getCase(1).getName());
+        assertIndexed(suite, index);
+
+        suite.testCase("test1 <\"a&b\"> \u00e9").addStdout("more");
+        suite.writeXml(dir);
+        assertFalse(index.isCurrent());
+        assertFalse(new File(dir, "TEST-com.example.MyTest.xml" + SummaryIndex.SUFFIX).exists());
+    }
+
+    @Test
+    public void testJournaledAndCompressedReports() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        run(suite, 0, 6);
+        suite.testCase("testRunning").addStdout("still running");
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir, INDEXED.withGzip(Deflater.BEST_SPEED));
+
+        SummaryIndex index = SummaryIndex.open(new File(dir, "TEST-com.example.MyTest.xml.gz" + SummaryIndex.SUFFIX));
+        assertEquals(7, index.getTestCount());
+        assertEquals("test1 <\"a&b\"> \u00e9", index.getCase(1).getName());
+        assertEquals("testRunning", index.getCase(6).getName());
+        assertIndexed(suite, index);
+        assertEquals("still running", element(index.getCase(6)).getChildText("system-out"));
+        suite.close();
+    }
+
+    @Test
+    public void testShardsGetIndexes() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.enableJournal(tempDir.newFolder("journal"));
+        run(suite, 0, 5);
+        for (int i = 5; i < 10; i++) {
+            suite.testCase("test" + i).addStdout("in memory");
+        }
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir, INDEXED.withShardLimits(Long.MAX_VALUE, 3));
+
+        List<File> indexes = SummaryIndex.findIndexes(dir);
+        assertEquals(4, indexes.size());
+        int cases = 0;
+        for (File file : indexes) {
+            SummaryIndex index = SummaryIndex.open(file);
+            assertTrue(index.isCurrent());
+            for (int i = 0; i < index.getTestCount(); i++) {
+                assertEquals("test" + cases++, element(index.getCase(i)).getAttributeValue("name").split(" ")[0]);
+            }
+        }
+        assertEquals(10, cases);
+
+        suite.writeXml(dir, INDEXED.withShardLimits(Long.MAX_VALUE, 100));
+        assertEquals(1, SummaryIndex.findIndexes(dir).size());
+        assertFalse(new File(dir, "TEST-com.example.MyTest-1.xml" + SummaryIndex.SUFFIX).exists());
+        suite.close();
+    }
+
+    @Test
+    public void testFindFailuresAcrossSuites() throws Exception {
+        File dir = tempDir.getRoot();
+        for (int s = 0; s < 5; s++) {
+            TestSuiteReporter suite = new TestSuiteReporter("com.example.Suite" + s);
+            if (s == 2) {
+                run(suite, 0, 4);
+            } else {
+                suite.testCase("testPassing").finish();
+            }
+            suite.writeXml(dir, INDEXED);
+        }
+
+        List<SummaryIndex.Case> failures = SummaryIndex.findFailures(SummaryIndex.findIndexes(dir));
+        assertEquals(2, failures.size());
+        assertEquals("com.example.Suite2", failures.get(0).getSuiteName());
+        assertEquals("test0", failures.get(0).getName());
+        assertTrue(failures.get(0).isFailed());
+        assertTrue(failures.get(0).isErrored());
+        assertEquals("test3", failures.get(1).getName());
+        assertEquals("trace 3", element(failures.get(1)).getChildText("failure"));
+    }
+
+    @Test
+    public void testOpenRejectsOtherFiles() throws IOException {
+        File file = tempDir.newFile("bogus" + SummaryIndex.SUFFIX);
+        try {
+            SummaryIndex.open(file);
+            fail();
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().startsWith("Not a summary index"));
+        }
+    }
+}
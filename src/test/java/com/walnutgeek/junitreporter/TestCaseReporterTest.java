@@ -1,6 +1,12 @@
 package com.walnutgeek.junitreporter;
 
 import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.*;
 
 public class TestCaseReporterTest {
@@ -89,4 +95,260 @@ public class TestCaseReporterTest {
         tc.addError("RuntimeException", "msg", "trace");
         assertTrue(tc.hasError());
     }
+
+    @Test
+    public void testConcurrentAppends() throws InterruptedException {
+        final TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        int threadCount = 8;
+        final int perThread = 1000;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    tc.addStdout("x\n");
+                    if (j % 100 == 0) {
+                        tc.addFailure("AssertionError", "msg", "trace");
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        assertEquals(threadCount * perThread * 2, tc.getStdout().length());
+        assertEquals(threadCount * perThread / 100, tc.getFailures().size());
+    }
+
+    @Test
+    public void testSnapshotIgnoresLaterChanges() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        tc.setTime(0.5);
+        tc.addStdout("before\n");
+        TestCaseReporter.Snapshot snapshot = tc.snapshot();
+        tc.setTime(1.5);
+        tc.addStdout("after\n");
+        tc.addFailure("AssertionError", "msg", "trace");
+
+        assertEquals(0.5, snapshot.getTime(), 0.001);
+        assertEquals("before\n", snapshot.getStdout());
+        assertFalse(snapshot.hasFailure());
+        assertFalse(snapshot.hasStderr());
+        assertEquals("before\nafter\n", tc.getStdout());
+    }
+
+    @Test
+    public void testFailuresListIsUnmodifiable() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        tc.addFailure("AssertionError", "msg", "trace");
+        try {
+            tc.getFailures().add(new TestCaseReporter.Entry("a", "b", "c"));
+            fail("expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testReleaseOutput() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        tc.addStdout("dropped");
+        tc.releaseOutput();
+        assertFalse(tc.hasStdout());
+        assertEquals("", tc.getStdout());
+        tc.addStdout("kept");
+        assertEquals("kept", tc.getStdout());
+    }
+
+    @Test
+    public void testAddStdoutBytes() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        tc.addStdout("text ");
+        tc.addStdout("a".getBytes(StandardCharsets.UTF_8), 0, 1);
+        tc.addStdout(euro, 0, 1);
+        tc.addStdout(euro, 1, 2);
+        tc.addStdout(new byte[] {' ', (byte) 0xFF, ' ', (byte) 0xC3}, 0, 4);
+        tc.addStderr(euro, 0, 3);
+
+        assertEquals("text a\u20ac \uFFFD \uFFFD", tc.getStdout());
+        assertEquals("\u20ac", tc.getStderr());
+    }
+
+    @Test
+    public void testVersionCountsChanges() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        long version = tc.getVersion();
+        tc.setTime(1);
+        tc.addStdout("out");
+        tc.addStderr(new byte[] {'e'}, 0, 1);
+        tc.addFailure("AssertionError", "msg", "trace");
+        tc.addError("IOException", "msg", "trace");
+        tc.recordInvocation(10);
+        tc.enableHistogram();
+        tc.enableHistogram();
+        assertEquals(version + 7, tc.getVersion());
+
+        tc.getStdout();
+        tc.snapshot();
+        tc.finish();
+        assertEquals(version + 7, tc.getVersion());
+        tc.releaseOutput();
+        assertEquals(version + 8, tc.getVersion());
+    }
+
+    @Test
+    public void testOutputCaptureRoutesBoundThreads() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        PrintStream original = new PrintStream(console, true);
+        OutputCapture capture = new OutputCapture(original, original);
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        String nl = System.lineSeparator();
+
+        capture.getOut().println("unbound");
+        capture.bind(tc);
+        assertSame(tc, capture.current());
+        capture.getOut().print("a");
+        capture.getOut().println(1);
+        capture.getOut().printf("%s-%d%n", "x", 2);
+        capture.getErr().print('e');
+        byte[] bytes = "h\u00e9llo \u20ac".getBytes(Charset.defaultCharset());
+        for (byte b : bytes) {
+            capture.getOut().write(b);
+        }
+        assertFalse(tc.hasStdout());
+        capture.unbind();
+        assertNull(capture.current());
+        capture.getOut().println("after");
+
+        assertEquals("a1" + nl + String.format("x-2%n") + new String(bytes, Charset.defaultCharset()),
+                tc.getStdout());
+        assertEquals("e", tc.getStderr());
+        assertEquals("unbound" + nl + "after" + nl, console.toString());
+    }
+
+    @Test
+    public void testOutputCaptureFlushesLargeBatches() {
+        OutputCapture capture = new OutputCapture(System.out, System.err);
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        capture.bind(tc);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            capture.getOut().print(i);
+            expected.append(i);
+        }
+        assertTrue(tc.hasStdout());
+        capture.unbind();
+        assertEquals(expected.toString(), tc.getStdout());
+    }
+
+    @Test
+    public void testOutputCaptureSeparatesThreads() throws Exception {
+        final OutputCapture capture = new OutputCapture(System.out, System.err);
+        final TestCaseReporter[] cases = new TestCaseReporter[4];
+        Thread[] threads = new Thread[cases.length];
+        for (int t = 0; t < threads.length; t++) {
+            final TestCaseReporter tc = new TestCaseReporter("test" + t, "com.example.MyTest");
+            cases[t] = tc;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    capture.bind(tc);
+                    for (int i = 0; i < 1000; i++) {
+                        capture.getOut().print(tc.getName() + ";");
+                    }
+                    capture.unbind();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (TestCaseReporter tc : cases) {
+            String[] parts = tc.getStdout().split(";");
+            assertEquals(1000, parts.length);
+            for (String part : parts) {
+                assertEquals(tc.getName(), part);
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("try") // the timer is only closed, as in the Timer javadoc
+    public void testTimerAccumulatesInvocations() throws Exception {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        long total = 0;
+        for (int i = 0; i < 3; i++) {
+            TestCaseReporter.Timer timer = tc.startTimer();
+            Thread.sleep(2);
+            total += timer.stop();
+        }
+        assertEquals(total, tc.snapshot().getTimeNanos());
+        try (TestCaseReporter.Timer timer = tc.startTimer()) {
+            assertNull(tc.getHistogram());
+            Thread.sleep(2);
+        }
+        assertTrue(total >= 6_000_000);
+        assertTrue(tc.snapshot().getTimeNanos() >= total + 2_000_000);
+        assertNull(tc.snapshot().getLatency());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTimerStopsOnce() {
+        TestCaseReporter.Timer timer = new TestCaseReporter("testAdd", "com.example.MyTest").startTimer();
+        timer.stop();
+        timer.stop();
+    }
+
+    @Test
+    public void testConcurrentTimerStopsRecordOnce() throws Exception {
+        for (int round = 0; round < 100; round++) {
+            TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+            LatencyHistogram histogram = tc.enableHistogram();
+            TestCaseReporter.Timer timer = tc.startTimer();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(timer::close);
+            }
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join();
+            assertEquals(1, histogram.getCount());
+            assertEquals(histogram.getMax(), Math.round(tc.getTime() * 1e9), 1);
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        TestCaseReporter tc = new TestCaseReporter("testAdd", "com.example.MyTest");
+        LatencyHistogram histogram = tc.enableHistogram();
+        assertSame(histogram, tc.enableHistogram());
+        for (int i = 1; i <= 10000; i++) {
+            tc.recordInvocation(i * 1000L);
+        }
+        assertEquals(50005000L * 1000 / 1e9, tc.getTime(), 1e-9);
+
+        LatencyHistogram.Stats stats = tc.snapshot().getLatency();
+        assertEquals(10000, stats.getCount());
+        assertEquals(1000, stats.getMin());
+        assertEquals(10_000_000, stats.getMax());
+        assertEquals(5_000_000, stats.getP50(), 5_000_000 * 0.032);
+        assertEquals(9_000_000, stats.getP90(), 9_000_000 * 0.032);
+        assertEquals(9_900_000, stats.getP99(), 9_900_000 * 0.032);
+        assertTrue(stats.getP50() >= 5_000_000);
+        assertEquals(1000, histogram.getValueAtPercentile(0));
+        assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testHistogramBucketsCoverLongRange() {
+        long previous = -1;
+        for (long value : new long[] {0, 1, 63, 64, 65, 127, 128, 1000, 1L << 40, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(value);
+            long highest = LatencyHistogram.highestValue(index);
+            assertTrue(value + " <= " + highest, value <= highest);
+            assertTrue(highest - value <= value / 32);
+            assertTrue(highest >= previous);
+            previous = highest;
+        }
+        assertEquals(0, new LatencyHistogram().stats().getMax());
+    }
 }
@@ -2,6 +2,7 @@ package com.walnutgeek.junitreporter;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
 import org.jdom2.output.Format;
 import org.jdom2.output.XMLOutputter;
 import org.junit.Test;
@@ -10,8 +11,14 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -301,4 +308,852 @@ public class TestSuiteReporterTest {
         String timeStr = doc.getRootElement().getAttributeValue("time");
         assertEquals(3.5, Double.parseDouble(timeStr), 0.001);
     }
+
+    @Test
+    public void testOutputSpillsToDiskWhenCaseLimitExceeded() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(100, Long.MAX_VALUE);
+        TestCaseReporter tc = suite.testCase("testChatty");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            String line = "line " + i + " \u00e9\u4e2d<&>\n";
+            tc.addStdout(line);
+            expected.append(line);
+        }
+
+        assertEquals(1, spillDir.listFiles().length);
+        assertTrue(suite.getBufferedOutputBytes() <= 100);
+        assertEquals(expected.toString(), tc.getStdout());
+
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir);
+        Document doc = new org.jdom2.input.SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"));
+        assertEquals(expected.toString(), doc.getRootElement().getChild("testcase").getChildText("system-out"));
+
+        suite.close();
+        assertEquals(0, spillDir.listFiles().length);
+        assertEquals(0, suite.getBufferedOutputBytes());
+    }
+
+    @Test
+    public void testOutputSpillsToDiskWhenSuiteLimitExceeded() throws IOException {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(Long.MAX_VALUE, 64 * 1024);
+        char[] chunk = new char[8 * 1024];
+        java.util.Arrays.fill(chunk, 'x');
+        for (int i = 0; i < 8; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.addStdout(new String(chunk));
+            tc.addStderr(new String(chunk));
+        }
+
+        assertTrue(spillDir.listFiles().length > 0);
+        assertTrue(suite.getBufferedOutputBytes() <= 64 * 1024 + 32 * 1024);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(chunk.length, suite.testCase("test" + i).getStdout().length());
+            assertEquals(chunk.length, suite.testCase("test" + i).getStderr().length());
+        }
+        suite.close();
+    }
+
+    @Test
+    public void testSuiteLimitSpillsManySmallCases() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(Long.MAX_VALUE, 64 * 1024);
+        char[] chunk = new char[4000];
+        Arrays.fill(chunk, 'x');
+        String text = new String(chunk);
+        for (int i = 0; i < 200; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.addStdout(text);
+            tc.finish();
+        }
+
+        assertTrue(suite.getBufferedOutputBytes() <= 64 * 1024);
+        assertTrue(spillDir.listFiles().length > 100);
+        assertEquals(text, suite.testCase("test0").getStdout());
+        assertEquals(text, suite.testCase("test199").getStdout());
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir);
+        List<Element> cases = new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"))
+                .getRootElement().getChildren("testcase");
+        assertEquals(200, cases.size());
+        for (Element tc : cases) {
+            assertEquals(text, tc.getChildText("system-out"));
+        }
+        suite.close();
+        assertEquals(0, spillDir.listFiles().length);
+        assertEquals(0, suite.getBufferedOutputBytes());
+    }
+
+    @Test
+    public void testByteOutputCopiedToReport() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setSpillDirectory(tempDir.newFolder("spill"));
+        suite.setOutputMemoryLimits(100, Long.MAX_VALUE);
+        TestCaseReporter tc = suite.testCase("testBytes");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            byte[] line = ("line " + i + " \u00e9\u4e2d<&>\u0001\n").getBytes(StandardCharsets.UTF_8);
+            // split the last multi-byte character between two calls
+            tc.addStdout(line, 0, line.length - 6);
+            tc.addStdout(line, line.length - 6, 6);
+            tc.addStdout("\u2603");
+            expected.append("line ").append(i).append(" \u00e9\u4e2d<&>\uFFFD\n\u2603");
+        }
+        tc.addStdout(new byte[] {(byte) 0xE4, (byte) 0xB8}, 0, 2);
+
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir);
+        Document doc = new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"));
+        Element testcase = doc.getRootElement().getChild("testcase");
+        assertEquals(expected + "\uFFFD", testcase.getChildText("system-out"));
+
+        StringWriter out = new StringWriter();
+        new StreamingXmlWriter(out).write(suite);
+        assertEquals(new XMLOutputter().outputString(testcase),
+                new XMLOutputter().outputString(new SAXBuilder().build(new StringReader(out.toString()))
+                        .getRootElement().getChild("testcase")));
+        suite.close();
+    }
+
+    @Test
+    public void testWriteXmlShardsBySize() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        char[] chunk = new char[1000];
+        java.util.Arrays.fill(chunk, 'x');
+        for (int i = 0; i < 20; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.setTime(0.25);
+            tc.addStdout(new String(chunk));
+            if (i % 3 == 0) tc.addError("IllegalStateException", "broken " + i, "trace");
+        }
+        File dir = tempDir.newFolder("out");
+        File stale = new File(dir, "TEST-com.example.MyTest-11.xml");
+        assertTrue(new File(dir, "TEST-com.example.MyTest.xml").createNewFile());
+        assertTrue(stale.createNewFile());
+
+        suite.writeXml(dir, ReportOptions.DEFAULT.withShardLimits(5000, 100));
+        assertFalse(new File(dir, "TEST-com.example.MyTest.xml").exists());
+        assertFalse(stale.exists());
+        int tests = 0;
+        int errors = 0;
+        for (int n = 1; n <= 10; n++) {
+            Element root = new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest-" + n + ".xml"))
+                    .getRootElement();
+            List<Element> cases = root.getChildren("testcase");
+            assertEquals(2, cases.size());
+            assertEquals(String.valueOf(cases.size()), root.getAttributeValue("tests"));
+            assertEquals(0.5, Double.parseDouble(root.getAttributeValue("time")), 0.001);
+            int shardErrors = 0;
+            for (Element tc : cases) {
+                assertEquals("test" + tests++, tc.getAttributeValue("name"));
+                if (tc.getChild("error") != null) shardErrors++;
+            }
+            assertEquals(String.valueOf(shardErrors), root.getAttributeValue("errors"));
+            errors += shardErrors;
+        }
+        assertEquals(20, tests);
+        assertEquals(7, errors);
+
+        suite.writeXml(dir, ReportOptions.DEFAULT.withShardLimits(Long.MAX_VALUE, 100));
+        assertArrayEquals(new String[] {"TEST-com.example.MyTest.xml"}, dir.list());
+        assertEquals("20", new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"))
+                .getRootElement().getAttributeValue("tests"));
+    }
+
+    @Test
+    public void testWritesSkipUnchangedSuite() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        final List<ReporterMetrics.Operation> writes = new java.util.ArrayList<>();
+        suite.setMetrics(new ReporterMetrics() {
+            @Override
+            public void serialized(TestSuiteReporter s, Operation operation, long nanos, long bytes) {
+                writes.add(operation);
+            }
+        });
+        suite.testCase("test1").addStdout("out\n");
+        File dir = tempDir.newFolder("out");
+        File xml = new File(dir, "TEST-com.example.MyTest.xml");
+
+        long version = suite.getVersion();
+        suite.writeXml(dir);
+        suite.writeText(dir);
+        suite.writeXml(dir);
+        suite.writeText(dir);
+        suite.getSummary();
+        suite.testCase("test1").getStdout();
+        assertEquals(version, suite.getVersion());
+        assertEquals(2, writes.size());
+
+        suite.testCase("test1").addStdout("more\n");
+        assertTrue(suite.getVersion() > version);
+        suite.writeXml(dir);
+        assertEquals(3, writes.size());
+        assertEquals("out\nmore\n",
+                new SAXBuilder().build(xml).getRootElement().getChild("testcase").getChildText("system-out"));
+
+        assertTrue(xml.delete());
+        suite.writeXml(dir);
+        assertEquals(4, writes.size());
+        assertTrue(xml.exists());
+        suite.writeXml(dir, ReportOptions.DEFAULT.withGzip(1));
+        assertEquals(5, writes.size());
+    }
+
+    @Test
+    public void testUnchangedCasesReuseRenderedFragments() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("testPass").setTime(0.5);
+        suite.testCase("testFail").addFailure("AssertionError", "a < b", "trace");
+        char[] big = new char[2 * StreamingXmlWriter.MAX_CACHED_FRAGMENT];
+        java.util.Arrays.fill(big, 'x');
+        suite.testCase("testBig").addStdout(new String(big));
+
+        StringWriter first = new StringWriter();
+        new StreamingXmlWriter(first).write(suite);
+        TestCaseReporter.Snapshot pass = suite.testCase("testPass").snapshot();
+        byte[] cached = pass.cachedFragment();
+        assertNotNull(cached);
+        assertNotNull(suite.testCase("testFail").snapshot().cachedFragment());
+        assertNull(suite.testCase("testBig").snapshot().cachedFragment());
+
+        suite.testCase("testFail").setTime(1);
+        assertNull(suite.testCase("testFail").snapshot().cachedFragment());
+        StringWriter second = new StringWriter();
+        new StreamingXmlWriter(second).write(suite);
+        assertSame(cached, suite.testCase("testPass").snapshot().cachedFragment());
+        Element root = new SAXBuilder().build(new StringReader(second.toString())).getRootElement();
+        XMLOutputter compact = new XMLOutputter(Format.getCompactFormat());
+        assertEquals(compact.outputString(suite.toDocument().getRootElement()), compact.outputString(root));
+        assertEquals(1.0, Double.parseDouble(root.getChildren("testcase").get(1).getAttributeValue("time")), 0);
+
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir);
+        assertEquals(second.toString(), new String(
+                Files.readAllBytes(new File(dir, "TEST-com.example.MyTest.xml").toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFragmentCacheIsBoundedPerSuite() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            line.append('x');
+        }
+        for (int i = 0; i < 8000; i++) {
+            suite.testCase("test" + i).addStdout(line + "\n");
+        }
+        new StreamingXmlWriter(new StringWriter()).write(suite);
+
+        long cachedBytes = 0;
+        int cachedCases = 0;
+        for (int i = 0; i < 8000; i++) {
+            byte[] fragment = suite.testCase("test" + i).snapshot().cachedFragment();
+            if (fragment != null) {
+                cachedBytes += fragment.length;
+                cachedCases++;
+            }
+        }
+        assertTrue(cachedBytes <= SuiteContext.MAX_CACHED_FRAGMENT_BYTES);
+        assertTrue(cachedCases > 2000 && cachedCases < 8000);
+        assertNull(suite.testCase("test7999").snapshot().cachedFragment());
+
+        suite.testCase("test0").releaseOutput();
+        assertNull(suite.testCase("test0").snapshot().cachedFragment());
+        StringWriter second = new StringWriter();
+        new StreamingXmlWriter(second).write(suite);
+        assertNotNull(suite.testCase("test0").snapshot().cachedFragment());
+        List<Element> cases = new SAXBuilder().build(new StringReader(second.toString()))
+                .getRootElement().getChildren("testcase");
+        assertEquals(8000, cases.size());
+        assertNull(cases.get(0).getChild("system-out"));
+        assertEquals(line + "\n", cases.get(7999).getChildText("system-out"));
+    }
+
+    @Test
+    public void testRetentionKeepsTailOfPassingCases() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(100, Long.MAX_VALUE);
+        suite.setOutputRetention(OutputRetention.KEEP_ALL.withPassingTail(16));
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            expected.append("line ").append(i).append(" \u00e9\u4e2d\n");
+        }
+        TestCaseReporter passing = suite.testCase("testPassing");
+        TestCaseReporter failing = suite.testCase("testFailing");
+        TestCaseReporter quiet = suite.testCase("testQuiet");
+        for (TestCaseReporter tc : Arrays.asList(passing, failing)) {
+            tc.addStdout(expected.toString());
+            tc.addStderr(expected.toString().getBytes(StandardCharsets.UTF_8), 0, 100);
+        }
+        quiet.addStdout("short\n");
+        failing.addFailure("AssertionError", "boom", null);
+        assertEquals(2, spillDir.listFiles().length);
+        long version = passing.getVersion();
+
+        passing.finish();
+        failing.finish();
+        quiet.finish();
+        assertEquals("... truncated\n\nline 49 \u00e9\u4e2d\n", passing.getStdout());
+        assertEquals("... truncated\n \u00e9\u4e2d\nline 7 \u00e9", passing.getStderr());
+        assertEquals(expected.toString(), failing.getStdout());
+        assertEquals("short\n", quiet.getStdout());
+        assertTrue(passing.getVersion() > version);
+        assertEquals(1, spillDir.listFiles().length);
+
+        passing.addStdout("after\n");
+        File dir = tempDir.newFolder("out");
+        suite.writeXml(dir);
+        Document doc = new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"));
+        assertEquals("... truncated\n\nline 49 \u00e9\u4e2d\nafter\n",
+                doc.getRootElement().getChild("testcase").getChildText("system-out"));
+        suite.close();
+        assertEquals(0, suite.getBufferedOutputBytes());
+    }
+
+    @Test
+    public void testRetentionDropsPassingOutput() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setOutputRetention(OutputRetention.KEEP_ALL.withoutPassingOutput());
+        TestCaseReporter passing = suite.testCase("testPassing");
+        TestCaseReporter erroring = suite.testCase("testErroring");
+        passing.addStdout("noise");
+        erroring.addStdout("clue");
+        erroring.addError("IOException", null, null);
+        passing.finish();
+        erroring.finish();
+        assertFalse(passing.hasStdout());
+        assertEquals("clue", erroring.getStdout());
+        assertEquals(8, suite.getBufferedOutputBytes());
+    }
+
+    @Test
+    public void testRetentionBudgetDropsOldestPassingOutput() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setOutputRetention(OutputRetention.KEEP_ALL.withSuiteBudget(250));
+        for (int i = 0; i < 6; i++) {
+            TestCaseReporter tc = suite.testCase("test" + i);
+            tc.addStdout(new String(new char[50]).replace('\0', 'x'));  // 100 bytes
+            if (i == 0) {
+                tc.addFailure("AssertionError", null, null);
+            }
+            tc.finish();
+        }
+        assertTrue(suite.testCase("test0").hasStdout());
+        for (int i = 1; i < 5; i++) {
+            assertFalse("test" + i, suite.testCase("test" + i).hasStdout());
+        }
+        assertTrue(suite.testCase("test5").hasStdout());
+        assertEquals(200, suite.getBufferedOutputBytes());
+
+        TestCaseReporter running = suite.testCase("testRunning");
+        running.addStdout(new String(new char[500]));
+        assertTrue(running.hasStdout());
+    }
+
+    @Test
+    public void testRetentionLeavesSnapshotsReadable() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        File spillDir = tempDir.newFolder("spill");
+        suite.setSpillDirectory(spillDir);
+        suite.setOutputMemoryLimits(100, Long.MAX_VALUE);
+        suite.setOutputRetention(OutputRetention.KEEP_ALL.withPassingTail(16).withSuiteBudget(0));
+        TestCaseReporter tail = suite.testCase("testTail");
+        TestCaseReporter dropped = suite.testCase("testDropped");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        tail.addStdout(expected.toString());
+        dropped.addStderr(expected.toString());
+        assertEquals(2, spillDir.listFiles().length);
+
+        SuiteSnapshot snapshot = suite.snapshot();
+        tail.finish();
+        dropped.finish();
+        assertFalse(dropped.hasStderr());
+        StringWriter xml = new StringWriter();
+        new StreamingXmlWriter(xml).write(snapshot);
+        List<Element> cases = new SAXBuilder().build(new StringReader(xml.toString())).getRootElement()
+                .getChildren("testcase");
+        assertEquals(expected.toString(), cases.get(0).getChildText("system-out"));
+        assertEquals(expected.toString(), cases.get(1).getChildText("system-err"));
+
+        suite.close();
+        assertEquals(0, spillDir.listFiles().length);
+    }
+
+    @Test
+    public void testBufferedOutputBytesWithoutLimits() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("a").addStdout("12345");
+        suite.testCase("b").addStderr("123");
+        assertEquals(16, suite.getBufferedOutputBytes());
+    }
+
+    @Test
+    public void testConcurrentAppendsWhileSpilling() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setSpillDirectory(tempDir.newFolder("spill"));
+        suite.setOutputMemoryLimits(256, Long.MAX_VALUE);
+        final TestCaseReporter tc = suite.testCase("testChatty");
+        int threadCount = 8;
+        final int perThread = 500;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final char c = (char) ('a' + i);
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; j++) {
+                    tc.addStdout(c + "\n");
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        String stdout = tc.getStdout();
+        assertEquals(threadCount * perThread * 2, stdout.length());
+        for (int i = 0; i < threadCount; i++) {
+            char c = (char) ('a' + i);
+            int count = 0;
+            for (int k = 0; k < stdout.length(); k++) {
+                if (stdout.charAt(k) == c) count++;
+            }
+            assertEquals(perThread, count);
+        }
+        suite.close();
+    }
+
+    @Test
+    public void testSummaryTracksResultsIncrementally() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        TestSuiteReporter.Summary empty = suite.getSummary();
+        assertEquals(0, empty.getTests());
+        assertEquals(0.0, empty.getTime(), 0.0);
+
+        TestCaseReporter tc = suite.testCase("testFail");
+        tc.setTime(1.0);
+        tc.setTime(0.25);
+        tc.addFailure("AssertionError", "msg1", "trace1");
+        tc.addFailure("AssertionError", "msg2", "trace2");
+        suite.testCase("testError").addError("RuntimeException", "msg", "trace");
+        suite.testCase("testPass").setTime(0.5);
+
+        TestSuiteReporter.Summary summary = suite.getSummary();
+        assertEquals(3, summary.getTests());
+        assertEquals(1, summary.getFailures());
+        assertEquals(1, summary.getErrors());
+        assertEquals(750000000L, summary.getTimeNanos());
+        assertEquals(0.75, summary.getTime(), 0.0);
+    }
+
+    @Test
+    public void testSummaryUnderConcurrentUpdates() throws InterruptedException {
+        final TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        int threadCount = 8;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final int idx = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    TestCaseReporter tc = suite.testCase("test" + (j % 50));
+                    tc.setTime(0.001 * (j % 50));
+                    if (idx % 2 == 0) {
+                        tc.addFailure("AssertionError", "msg", "trace");
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        TestSuiteReporter.Summary summary = suite.getSummary();
+        assertEquals(50, summary.getTests());
+        assertEquals(50, summary.getFailures());
+        assertEquals(0, summary.getErrors());
+        double expectedTime = 0;
+        for (int j = 0; j < 50; j++) expectedTime += 0.001 * j;
+        assertEquals(expectedTime, summary.getTime(), 1e-9);
+    }
+
+    @Test
+    public void testToDocumentTotalsMatchCasesUnderConcurrentUpdates() throws InterruptedException {
+        final TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                TestCaseReporter tc = suite.testCase("test" + i);
+                if (i % 2 == 0) {
+                    tc.addFailure("AssertionError", "msg", "trace");
+                }
+            }
+        });
+        writer.start();
+        do {
+            Element root = suite.toDocument().getRootElement();
+            List<Element> cases = root.getChildren("testcase");
+            int failures = 0;
+            for (Element tc : cases) {
+                if (tc.getChild("failure") != null) failures++;
+            }
+            assertEquals(cases.size(), Integer.parseInt(root.getAttributeValue("tests")));
+            assertEquals(failures, Integer.parseInt(root.getAttributeValue("failures")));
+        } while (writer.isAlive());
+        writer.join();
+    }
+
+    @Test
+    public void testWriteGzip() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        TestCaseReporter tc = suite.testCase("testFail");
+        tc.addFailure("AssertionError", "expected 3 got 4", "stack trace here");
+        tc.addStdout("hello\n");
+
+        File dir = tempDir.getRoot();
+        ReportOptions options = ReportOptions.DEFAULT.withGzip(9).withBufferSize(1024);
+        suite.writeXml(dir, options);
+        suite.writeText(dir, options);
+
+        File xmlFile = new File(dir, "TEST-com.example.MyTest.xml.gz");
+        assertTrue(xmlFile.exists());
+        assertFalse(new File(dir, "TEST-com.example.MyTest.xml").exists());
+        try (java.io.InputStream in = new java.util.zip.GZIPInputStream(new java.io.FileInputStream(xmlFile))) {
+            Document doc = new org.jdom2.input.SAXBuilder().build(in);
+            assertEquals("hello\n", doc.getRootElement().getChild("testcase").getChildText("system-out"));
+        }
+
+        File txtFile = new File(dir, "com.example.MyTest.txt.gz");
+        try (java.io.InputStream in = new java.util.zip.GZIPInputStream(new java.io.FileInputStream(txtFile))) {
+            java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = in.read(buf)) != -1; ) bytes.write(buf, 0, n);
+            String content = new String(bytes.toByteArray(), "UTF-8");
+            assertTrue(content.contains("AssertionError: expected 3 got 4"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        ReportOptions.DEFAULT.withGzip(10);
+    }
+
+    @Test
+    public void testIdenticalStackTracesAreInterned() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        for (int i = 0; i < 100; i++) {
+            String trace = new StringBuilder("java.lang.IllegalStateException: fixture broken\n")
+                    .append("\tat com.example.Fixture.setUp(Fixture.java:12)\n").toString();
+            suite.testCase("test" + i).addError(new String("java.lang.IllegalStateException"),
+                    "fixture broken", trace);
+        }
+        assertEquals(3, suite.getInternedTextCount());
+        assertSame(suite.testCase("test0").getErrors().get(0).getBody(),
+                suite.testCase("test99").getErrors().get(0).getBody());
+
+        suite.writeXml(tempDir.getRoot());
+        String xml = new String(Files.readAllBytes(
+                new File(tempDir.getRoot(), "TEST-com.example.MyTest.xml").toPath()), "UTF-8");
+        assertEquals(100, xml.split("Fixture.java:12").length - 1);
+    }
+
+    @Test
+    public void testStackTraceLimits() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setStackTraceLimits(2, Integer.MAX_VALUE);
+        String trace = "java.lang.AssertionError: x\n"
+                + "\tat a.A.a(A.java:1)\n\tat a.A.b(A.java:2)\n\tat a.A.c(A.java:3)\n\tat a.A.d(A.java:4)\n"
+                + "Caused by: java.io.IOException\n"
+                + "\tat b.B.a(B.java:1)\n\tat b.B.b(B.java:2)\n\tat b.B.c(B.java:3)\n";
+        suite.testCase("frames").addFailure("AssertionError", "x", trace);
+        assertEquals("java.lang.AssertionError: x\n"
+                        + "\tat a.A.a(A.java:1)\n\tat a.A.b(A.java:2)\n\t... 2 frames truncated\n"
+                        + "Caused by: java.io.IOException\n"
+                        + "\tat b.B.a(B.java:1)\n\tat b.B.b(B.java:2)\n\t... 1 frames truncated",
+                suite.testCase("frames").getFailures().get(0).getBody());
+
+        suite.setStackTraceLimits(Integer.MAX_VALUE, 10);
+        suite.testCase("chars").addFailure("AssertionError", "x", trace);
+        assertEquals("java.lang.\n\t... truncated", suite.testCase("chars").getFailures().get(0).getBody());
+    }
+
+    @Test
+    public void testStackTraceFilter() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.setStackTraceFilter("org.junit.", "sun.reflect.");
+        suite.setStackTraceLimits(2, Integer.MAX_VALUE);
+        String trace = "java.lang.AssertionError: x\n"
+                + "\tat a.A.a(A.java:1)\n\tat sun.reflect.M.invoke(M.java:1)\n\tat sun.reflect.N.invoke(N.java:2)\n"
+                + "\tat a.A.b(A.java:2)\n\tat org.junit.R.run(R.java:3)\n\tat a.A.c(A.java:3)\n\tat a.A.d(A.java:4)\n";
+        suite.testCase("frames").addFailure("AssertionError", "x", trace);
+        assertEquals("java.lang.AssertionError: x\n"
+                        + "\tat a.A.a(A.java:1)\n\t... 2 frames filtered\n\tat a.A.b(A.java:2)\n"
+                        + "\t... 1 frames filtered\n\t... 2 frames truncated",
+                suite.testCase("frames").getFailures().get(0).getBody());
+    }
+
+    @Test
+    public void testThrowableRenderedLazily() {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        final int[] rendered = new int[1];
+        IllegalStateException cause = new IllegalStateException("cause");
+        AssertionError thrown = new AssertionError("expected <1>", cause) {
+            @Override
+            public String toString() {
+                rendered[0]++;
+                return super.toString();
+            }
+        };
+        thrown.addSuppressed(new java.io.IOException("suppressed"));
+        java.io.StringWriter printed = new java.io.StringWriter();
+        thrown.printStackTrace(new java.io.PrintWriter(printed));
+        rendered[0] = 0;
+
+        TestCaseReporter tc = suite.testCase("testLazy");
+        tc.addFailure(thrown);
+        tc.addError(cause);
+        assertEquals(0, rendered[0]);
+        TestCaseReporter.Entry failure = tc.getFailures().get(0);
+        assertEquals(thrown.getClass().getName(), failure.getType());
+        assertEquals("expected <1>", failure.getMessage());
+        assertEquals(1, suite.getSummary().getFailures());
+        assertEquals(1, suite.getSummary().getErrors());
+
+        assertEquals(printed.toString().replace(System.lineSeparator(), "\n").trim(), failure.getBody());
+        assertEquals(1, rendered[0]);
+        suite.toDocument();
+        assertEquals(1, rendered[0]);
+        assertSame(failure.getBody(), failure.getBody());
+    }
+
+    @Test
+    public void testUnrenderedThrowableCountsInSizeEstimate() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        AssertionError thrown = new AssertionError("deep");
+        StackTraceElement[] frames = new StackTraceElement[100];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new StackTraceElement("com.example.Deep", "level" + i, "Deep.java", i + 1);
+        }
+        thrown.setStackTrace(frames);
+        TestCaseReporter tc = suite.testCase("testDeep");
+        tc.addFailure(thrown);
+
+        assertTrue(tc.snapshot().estimateXmlBytes() > StreamingXmlWriter.MAX_CACHED_FRAGMENT);
+        suite.writeXml(tempDir.getRoot());
+        assertNull(tc.snapshot().cachedFragment());
+    }
+
+    @Test
+    public void testThrowableRenderedWithLimitsInEffect() {
+        TestSuiteReporter suite = TestSuiteReporter.compact("com.example.MyTest");
+        Exception thrown = new Exception("boom", new RuntimeException("cause"));
+        thrown.setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("a.A", "a", "A.java", 1),
+                new StackTraceElement("org.junit.R", "run", "R.java", 2),
+                new StackTraceElement("a.A", "b", "A.java", 3),
+                new StackTraceElement("a.A", "c", "A.java", 4),
+                new StackTraceElement("a.A", "main", "A.java", 5)});
+        thrown.getCause().setStackTrace(new StackTraceElement[] {
+                new StackTraceElement("b.B", "a", "B.java", 1),
+                new StackTraceElement("a.A", "main", "A.java", 5)});
+        suite.addError(suite.caseId("testCompact"), thrown);
+        suite.finish(suite.caseId("testCompact"));
+
+        // limits set after the error was added still apply, the trace is rendered when written
+        suite.setStackTraceFilter("org.junit.");
+        suite.setStackTraceLimits(2, Integer.MAX_VALUE);
+        Element error = suite.toDocument().getRootElement().getChild("testcase").getChild("error");
+        assertEquals("java.lang.Exception", error.getAttributeValue("type"));
+        assertEquals("boom", error.getAttributeValue("message"));
+        assertEquals("java.lang.Exception: boom\n"
+                        + "\tat a.A.a(A.java:1)\n\t... 1 frames filtered\n\tat a.A.b(A.java:3)\n"
+                        + "\t... 2 frames truncated\n"
+                        + "Caused by: java.lang.RuntimeException: cause\n"
+                        + "\tat b.B.a(B.java:1)\n\t... 1 more",
+                error.getText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeStackTraceLimit() {
+        new TestSuiteReporter("com.example.MyTest").setStackTraceLimits(-1, 10);
+    }
+
+    @Test
+    public void testFormatTimeMatchesStringFormat() {
+        double[] samples = {0, 0.0004, 0.0005, 0.0125, 0.999, 0.9996, 1.5, 12.345678, 86400.25, 123456.7891};
+        FixedPointFormat numbers = new FixedPointFormat();
+        for (double seconds : samples) {
+            assertEquals(String.format(java.util.Locale.US, "%.3f", seconds), numbers.seconds(Math.round(seconds * 1e9)));
+        }
+        assertEquals("0", numbers.integer(0));
+        assertEquals("-42", numbers.integer(-42));
+        assertEquals(String.valueOf(Long.MAX_VALUE), numbers.integer(Long.MAX_VALUE));
+        assertEquals("-1.500", numbers.seconds(-1_500_000_000L));
+    }
+
+    @Test
+    public void testUncommittedOutputLeavesNoFile() throws Exception {
+        File dir = tempDir.newFolder("out");
+        File target = new File(dir, "TEST-x.xml");
+        try (ReportFiles.Output output = ReportFiles.create(target, ReportOptions.DEFAULT)) {
+            output.writer().write("<partial");
+            assertFalse(target.exists());
+        }
+        assertFalse(target.exists());
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testCommitReplacesExistingReport() throws Exception {
+        File dir = tempDir.newFolder("out");
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("testOne").setTime(1);
+        suite.writeXml(dir);
+        suite.testCase("testTwo").setTime(1);
+        suite.writeXml(dir, ReportOptions.DEFAULT.withForce(true));
+        assertEquals(1, dir.list().length);
+        Document doc = new org.jdom2.input.SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"));
+        assertEquals("2", doc.getRootElement().getAttributeValue("tests"));
+    }
+
+    @Test
+    public void testChannelWriterEncodesAcrossBufferBoundaries() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("x\u00e9\u4e2d\ud83d\ude00");
+        }
+        String text = sb.toString();
+        for (ReportOptions options : new ReportOptions[] {
+                ReportOptions.DEFAULT.withBufferSize(512),
+                ReportOptions.DEFAULT.withBufferSize(513).withDirectBuffers(true)}) {
+            File target = tempDir.newFile();
+            try (ReportFiles.Output output = ReportFiles.create(target, options)) {
+                for (int i = 0; i < text.length(); i += 7) {
+                    output.writer().write(text, i, Math.min(7, text.length() - i));
+                }
+                output.writer().write('!');
+                output.commit();
+            }
+            assertEquals(text + "!", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+        }
+    }
+
+    private static String xmlWithoutTimestamp(TestSuiteReporter suite) {
+        Document doc = suite.toDocument();
+        doc.getRootElement().removeAttribute("timestamp");
+        return new XMLOutputter(Format.getCompactFormat()).outputString(doc);
+    }
+
+    @Test
+    public void testCompactSuiteMatchesRegularSuite() throws Exception {
+        TestSuiteReporter regular = new TestSuiteReporter("com.example.MyTest");
+        TestSuiteReporter compact = TestSuiteReporter.compact("com.example.MyTest");
+        assertTrue(compact.isCompact());
+        for (int i = 0; i < 5000; i++) {
+            String name = "test" + i;
+            regular.testCase(name).setTime(i / 1000.0);
+            int id = compact.caseId(name);
+            assertEquals(i, id);
+            compact.setTime(id, i / 1000.0);
+            if (i % 100 == 0) {
+                regular.testCase(name).addFailure("AssertionError", "msg " + i, "trace");
+                compact.addFailure(id, "AssertionError", "msg " + i, "trace");
+            }
+            if (i % 1000 == 1) {
+                regular.testCase(name).addError("IOException", "io", "trace");
+                compact.addError(id, "IOException", "io", "trace");
+            }
+            compact.finish(id);
+        }
+        regular.testCase("test1").addStdout("out");
+        compact.testCase("test1").addStdout("out");
+        regular.testCase("test200").setTime(9);
+        compact.testCase("test200").setTime(9);
+        compact.setTime(compact.caseId("test300"), 3);
+        regular.testCase("test300").setTime(3);
+
+        assertEquals(5000, compact.getTestCount());
+        assertEquals(1, compact.caseId("test1"));
+        TestSuiteReporter.Summary expected = regular.getSummary();
+        TestSuiteReporter.Summary actual = compact.getSummary();
+        assertEquals(expected.getTests(), actual.getTests());
+        assertEquals(expected.getFailures(), actual.getFailures());
+        assertEquals(expected.getErrors(), actual.getErrors());
+        assertEquals(expected.getTimeNanos(), actual.getTimeNanos());
+        assertEquals(xmlWithoutTimestamp(regular), xmlWithoutTimestamp(compact));
+        assertTrue(compact.testCase("test0").isFinished());
+
+        File dir = tempDir.getRoot();
+        compact.writeXml(dir);
+        Element root = new SAXBuilder().build(new File(dir, "TEST-com.example.MyTest.xml"))
+                .getRootElement();
+        assertEquals(5000, root.getChildren("testcase").size());
+        assertEquals("out", root.getChildren("testcase").get(1).getChildText("system-out"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCaseIdRequiresCompactSuite() {
+        new TestSuiteReporter("com.example.MyTest").caseId("test");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCompactSuiteCannotBeJournaled() throws Exception {
+        TestSuiteReporter.compact("com.example.MyTest").enableJournal(tempDir.getRoot());
+    }
+
+    @Test
+    public void testSnapshotPublisher() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        suite.testCase("test1").setTime(1);
+        File file = new File(tempDir.getRoot(), "TEST-live.xml");
+        try (SnapshotPublisher publisher = new SnapshotPublisher(suite, file)) {
+            publisher.start(10, TimeUnit.MILLISECONDS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (publisher.getPublishCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertTrue(publisher.getPublishCount() > 0);
+            suite.testCase("test2").addFailure("AssertionError", "msg", "trace");
+            publisher.publishNow();
+            assertNull(publisher.getLastError());
+        }
+        Element root = new SAXBuilder().build(file).getRootElement();
+        assertEquals("2", root.getAttributeValue("tests"));
+        assertEquals("1", root.getAttributeValue("failures"));
+    }
+
+    @Test
+    public void testSnapshotPublisherSurvivesRuntimeExceptions() throws Exception {
+        TestSuiteReporter suite = new TestSuiteReporter("com.example.MyTest");
+        final AtomicInteger calls = new AtomicInteger();
+        suite.testCase("test1").addFailure(new AssertionError("boom") {
+            @Override
+            public StackTraceElement[] getStackTrace() {
+                if (calls.getAndIncrement() == 0) {
+                    throw new IllegalStateException("not yet");
+                }
+                return super.getStackTrace();
+            }
+        });
+        File file = new File(tempDir.getRoot(), "TEST-live.xml");
+        try (SnapshotPublisher publisher = new SnapshotPublisher(suite, file)) {
+            publisher.start(10, TimeUnit.MILLISECONDS);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (publisher.getPublishCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, publisher.getPublishCount());
+            assertNull(publisher.getLastError());
+        }
+        assertTrue(calls.get() >= 2);
+        Element failure = new SAXBuilder().build(file).getRootElement().getChild("testcase").getChild("failure");
+        assertTrue(failure.getText().contains("boom"));
+    }
 }